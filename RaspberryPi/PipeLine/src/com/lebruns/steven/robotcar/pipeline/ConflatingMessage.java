@@ -0,0 +1,35 @@
+/**
+ * @file ConflatingMessage.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A Conflating Message is a message where only the latest value matters.
+ * When a Pipeline has conflation turned on and a new conflating message is
+ * sent while an older one of the same class and with the same conflation
+ * key is still waiting, the new message replaces the older one.  The older
+ * message is never processed.
+ *
+ * The new message takes the place of the older one in the queue, so it does
+ * not wait behind messages that were sent after the older one.  Messages
+ * that do not implement this interface are never replaced and keep their
+ * order.
+ */
+public interface ConflatingMessage
+{
+	/**
+	 * Identifies which waiting messages this message may replace.  Only a
+	 * waiting message of the same class with the same key is replaced.
+	 * 
+	 * @return Returns the conflation key for this message.
+	 */
+	public abstract int conflationKey( );
+
+}   // end of interface ConflatingMessage
@@ -0,0 +1,31 @@
+/**
+ * @file LaneScheduling.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * Lane Scheduling determines the order in which a Pipeline with more than
+ * one priority lane hands out the messages waiting in its lanes.  Lane 0
+ * has the highest priority.
+ *
+ *   STRICT_PRIORITY      -- The highest priority lane with a waiting
+ *                           message is always served first.  To prevent
+ *                           starvation, a lane that has been passed over
+ *                           too many times in a row is served next.
+ *   WEIGHTED_ROUND_ROBIN -- The lanes take turns.  On its turn each lane
+ *                           hands out up to its weight in messages.
+ *
+ * Out of Band messages are always served before any lane.
+ */
+public enum LaneScheduling
+{
+	STRICT_PRIORITY,
+	WEIGHTED_ROUND_ROBIN;
+}
@@ -0,0 +1,214 @@
+/**
+ * @file LatencyHistogram.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A LatencyHistogram counts how many times each range of durations has been
+ * recorded.  The ranges grow with the value, in the style of an HDR
+ * histogram: each power of two is split into eight equal buckets, so any
+ * recorded value is known to within 12.5 percent.  All the memory is
+ * allocated when the histogram is created, so recording a value never
+ * creates garbage.
+ *
+ * The values are normally nanoseconds, but any non-negative long can be
+ * recorded.  Negative values are recorded as zero.
+ *
+ * Instances are thread-safe.
+ */
+public class LatencyHistogram
+{
+	/**
+	 * Number of bits used to split each power of two into buckets.
+	 */
+	static private final int SUB_BITS    = 3;
+	static private final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * Enough buckets to hold any positive long.
+	 */
+	static private final int BUCKETS     = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+
+	private long count = 0;
+	private long total = 0;
+	private long max   = 0;
+
+	/**
+	 * Constructor for an empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		return;
+	}
+
+	/**
+	 * Records one value.
+	 *
+	 * @param value The value to record, normally a duration in nanoseconds.
+	 */
+	public synchronized void record( long value )
+	{
+		if ( value < 0 )
+		{
+			value = 0;
+		}
+
+		++counts[ bucketOf(value) ];
+		++count;
+		total += value;
+
+		if ( value > max )
+		{
+			max = value;
+		}
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	public synchronized void reset()
+	{
+		for ( int i = 0 ; i < BUCKETS ; ++i )
+		{
+			counts[i] = 0;
+		}
+
+		count = 0;
+		total = 0;
+		max   = 0;
+	}
+
+	/**
+	 * Makes a copy of the histogram.  Used to take a snapshot that will not
+	 * change as more values are recorded.
+	 *
+	 * @return Returns a new histogram holding the same values.
+	 */
+	public synchronized LatencyHistogram copy()
+	{
+		LatencyHistogram snapshot = new LatencyHistogram();
+
+		System.arraycopy(counts, 0, snapshot.counts, 0, BUCKETS);
+
+		snapshot.count = count;
+		snapshot.total = total;
+		snapshot.max   = max;
+
+		return snapshot;
+	}
+
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	public synchronized long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * @return Returns the average of all the recorded values or zero if no
+	 *         values have been recorded.
+	 */
+	public synchronized long getMean()
+	{
+		return ( count == 0 ) ? 0 : total / count ;
+	}
+
+	/**
+	 * Estimates a percentile of the recorded values.
+	 *
+	 * @param percent The percentile wanted, [0.0 .. 100.0].
+	 *
+	 * @return Returns the upper end of the bucket holding the percentile,
+	 *         limited to the largest recorded value.  Returns zero if no
+	 *         values have been recorded.
+	 */
+	public synchronized long getPercentile( double percent )
+	{
+		if ( count == 0 )
+		{
+			return 0;
+		}
+
+		long rank = (long) Math.ceil( (percent / 100.0) * count );
+
+		if ( rank < 1 )
+		{
+			rank = 1;
+		}
+
+		long seen = 0;
+
+		for ( int i = 0 ; i < BUCKETS ; ++i )
+		{
+			seen += counts[i];
+
+			if ( seen >= rank )
+			{
+				return Math.min( upperBoundOf(i), max );
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * A short summary of the histogram with times shown in microseconds.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+				count, getMean() / 1000,
+				getPercentile(50.0) / 1000, getPercentile(90.0) / 1000,
+				getPercentile(99.0) / 1000, max / 1000);
+	}
+
+	/**
+	 * Finds the bucket for a value.  Values below SUB_BUCKETS each have a
+	 * bucket of their own.  Larger values share a bucket with the values
+	 * that have the same highest bit and the same next SUB_BITS bits.
+	 */
+	static private int bucketOf( long value )
+	{
+		if ( value < SUB_BUCKETS )
+		{
+			return (int) value;
+		}
+
+		int  exponent = 63 - Long.numberOfLeadingZeros(value);
+		int  sub      = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Finds the largest value that falls in a bucket.
+	 */
+	static private long upperBoundOf( int bucket )
+	{
+		if ( bucket < SUB_BUCKETS )
+		{
+			return bucket;
+		}
+
+		int  exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub      = bucket % SUB_BUCKETS;
+		long width    = 1L << (exponent - SUB_BITS);
+		long lower    = (1L << exponent) + sub * width;
+
+		return lower + width - 1;
+	}
+
+}   // end of class LatencyHistogram
@@ -8,6 +8,9 @@
  */
 package com.lebruns.steven.robotcar.pipeline;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author Steven F. LeBrun
  *
@@ -20,7 +23,7 @@ public abstract class MsgCapsule
 	 * Static value shared by all MsgCapsule instances.  This variable is 
 	 * used to keep track of the next message ID that can be assigned.
 	 */
-	static private int nextId = 0;
+	static private final AtomicInteger nextId = new AtomicInteger(0);
 	
 	/**
 	 * This constant is used to prevent message ID values from going negative
@@ -44,6 +47,56 @@ public abstract class MsgCapsule
 	 */
 	private boolean processed;
 	
+	/**
+	 * The time, as given by System.nanoTime(), at which the message capsule
+	 * was created.
+	 */
+	private long createTime;
+	
+	/**
+	 * The time, as given by System.nanoTime(), after which the message
+	 * capsule is too old to be worth processing.  Only meaningful when
+	 * hasDeadline is @b true.
+	 */
+	private long    deadline;
+	private boolean hasDeadline;
+	
+	/**
+	 * The time, as given by System.nanoTime(), at which the message capsule
+	 * was last added to a Pipeline.
+	 */
+	private long enqueueTime;
+	
+	/**
+	 * The time, as given by System.nanoTime(), at which the message capsule
+	 * was last handed to the consumer of a Pipeline.
+	 */
+	private long dequeueTime;
+	
+	/**
+	 * Trace ID and start time used to follow the message capsule from the
+	 * input that caused it to the end of its life.  By default the trace
+	 * ID is the message ID and the trace starts when the message capsule
+	 * is created.
+	 */
+	private int  traceId;
+	private long traceStart;
+	
+	/**
+	 * The pool the message capsule is returned to when released, or
+	 * @b null if the message capsule was not taken from a pool.
+	 */
+	private MsgPool<?> pool = null;
+	
+	/**
+	 * The life stamp: the generation, which counts the times the message
+	 * capsule was handed out by its pool, shifted left by one, with the
+	 * low bit set once that life has ended.  A release is only accepted
+	 * for a life that has not ended, so a second release is ignored, and
+	 * a release meant for an earlier life cannot end the current one.
+	 */
+	private final AtomicInteger stamp = new AtomicInteger(0);
+	
 	/**
 	 * Constructor that initializes the base Message Capsule.
 	 */
@@ -51,6 +104,12 @@ public abstract class MsgCapsule
 	{
 		id = getNextId();
 		processed = false;
+		
+		createTime  = System.nanoTime();
+		hasDeadline = false;
+		
+		traceId     = id;
+		traceStart  = createTime;
 	}
 	
 	/**
@@ -85,6 +144,215 @@ public abstract class MsgCapsule
 		processed = true;
 	}
 	
+	/**
+	 * @return Returns the time, as given by System.nanoTime(), at which the
+	 *         message capsule was created.
+	 */
+	public long getCreateTime()
+	{
+		return createTime;
+	}
+	
+	/**
+	 * @return Returns the time, as given by System.nanoTime(), at which the
+	 *         message capsule was last added to a Pipeline.
+	 */
+	public long getEnqueueTime()
+	{
+		return enqueueTime;
+	}
+	
+	/**
+	 * Used by a Pipeline to record when the message capsule was added.
+	 */
+	void setEnqueueTime( long now )
+	{
+		enqueueTime = now;
+	}
+	
+	/**
+	 * @return Returns the time, as given by System.nanoTime(), at which the
+	 *         message capsule was last handed to the consumer of a Pipeline.
+	 */
+	public long getDequeueTime()
+	{
+		return dequeueTime;
+	}
+	
+	/**
+	 * Used by a Pipeline to record when the message capsule was handed to
+	 * the consumer.
+	 */
+	void setDequeueTime( long now )
+	{
+		dequeueTime = now;
+	}
+	
+	/**
+	 * Ties the message capsule to the input that caused it to be sent, so
+	 * that the latency of each stage can be measured from the moment the
+	 * input arrived.
+	 * 
+	 * @param id        The trace ID, normally a count of the inputs.
+	 * @param inputTime The time, as given by System.nanoTime(), at which
+	 *                  the input was received.
+	 */
+	public void startTrace( int id, long inputTime )
+	{
+		traceId    = id;
+		traceStart = inputTime;
+	}
+	
+	public int getTraceId()
+	{
+		return traceId;
+	}
+	
+	/**
+	 * @return Returns the time, as given by System.nanoTime(), at which the
+	 *         trace started.
+	 */
+	public long getTraceStart()
+	{
+		return traceStart;
+	}
+	
+	/**
+	 * Gives the message capsule a limited life.  A Pipeline throws away
+	 * message capsules that are older than their time to live instead of
+	 * handing them to the consumer.  By default message capsules live
+	 * forever.
+	 * 
+	 * @param ttl  How long, after being created, the message capsule is
+	 *             worth processing.
+	 * @param unit The time unit of the ttl argument.
+	 */
+	public void setTimeToLive( long ttl, TimeUnit unit )
+	{
+		deadline    = createTime + unit.toNanos(ttl);
+		hasDeadline = true;
+	}
+	
+	/**
+	 * Determines whether the message capsule has outlived its time to live.
+	 * 
+	 * @param now The current time as given by System.nanoTime().
+	 * 
+	 * @return Returns @b true if the message capsule has a time to live and
+	 *         it has passed.  Returns @b false otherwise.
+	 */
+	public boolean hasExpired( long now )
+	{
+		return hasDeadline && (now - deadline) > 0;
+	}
+	
+	/**
+	 * Ends the current life of the message capsule.  A message capsule
+	 * taken from a MsgPool is returned to its pool to be reused; any other
+	 * message capsule is left for the garbage collector.  Releasing a
+	 * message capsule whose life has already ended has no effect.
+	 * 
+	 * The message capsule must not be used after it has been released.
+	 * Only its owner may call this method.  A thread that may release a
+	 * message capsule after handing it on keeps the generation it was
+	 * given and calls release(int) instead.
+	 */
+	public void release()
+	{
+		release( getGeneration() );
+	}
+	
+	/**
+	 * Ends one life of the message capsule.  Nothing happens if that life
+	 * has already ended, including when the message capsule has since been
+	 * handed out again by its pool.
+	 * 
+	 * @param generation The generation of the life to end, as given by
+	 *                   getGeneration() while the caller owned the
+	 *                   message capsule.
+	 * 
+	 * @return Returns @b true if the life was ended by this call.
+	 */
+	public boolean release( int generation )
+	{
+		int live = generation << 1;
+		
+		if ( !stamp.compareAndSet(live, live | 1) )
+		{
+			if ( pool != null )
+			{
+				pool.refused();
+			}
+			
+			return false;
+		}
+		
+		ended();
+		
+		if ( pool != null )
+		{
+			pool.release(this);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return Returns the generation of the message capsule: the number of
+	 *         times its pool handed it out again.
+	 */
+	public int getGeneration()
+	{
+		return stamp.get() >>> 1;
+	}
+	
+	/**
+	 * Called once at the end of each life, before the message capsule is
+	 * returned to its pool.  Derived classes that have to tell someone the
+	 * message capsule is gone override this method.
+	 */
+	protected void ended()
+	{
+		return;
+	}
+	
+	/**
+	 * Clears the contents of a message capsule before it is handed out
+	 * again by its pool.  Derived classes that keep state which is not
+	 * always set by their factory override this method.  The base class
+	 * state has already been reset when this method is called.
+	 */
+	protected void reset()
+	{
+		return;
+	}
+	
+	/**
+	 * Used by a MsgPool to give a reused message capsule a new identity.
+	 */
+	void recycle()
+	{
+		stamp.set( ((stamp.get() >>> 1) + 1) << 1 );
+		
+		id = getNextId();
+		processed = false;
+		
+		createTime  = System.nanoTime();
+		hasDeadline = false;
+		enqueueTime = 0;
+		dequeueTime = 0;
+		
+		traceId     = id;
+		traceStart  = createTime;
+		
+		reset();
+	}
+	
+	void setPool( MsgPool<?> owner )
+	{
+		pool = owner;
+	}
+	
 	/**
 	 * Gets the next ID for a Message capsule.
 	 * 
@@ -96,11 +364,9 @@ public abstract class MsgCapsule
 	 * 
 	 * @return  Returns the next ID for a message capsule.
 	 */
-	private synchronized int getNextId()
+	static private int getNextId()
 	{
-		nextId = ( nextId < MAX_ID ) ? ++nextId : 1 ;
-		
-		return nextId;
+		return nextId.updateAndGet( last -> ( last < MAX_ID ) ? last + 1 : 1 );
 	}
 
 }   // end of class MsgCapsule
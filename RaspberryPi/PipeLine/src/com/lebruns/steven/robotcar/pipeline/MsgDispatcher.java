@@ -0,0 +1,121 @@
+/**
+ * @file MsgDispatcher.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A MsgDispatcher hands each message capsule to the handler registered for
+ * its class.  A message whose own class has no handler goes to the handler
+ * of its nearest registered superclass.  The handler for each message class
+ * is worked out once and cached, so dispatching a message is a single table
+ * lookup no matter how many handlers are registered.
+ *
+ * Handlers are normally registered when a controller is set up.
+ * Dispatching is thread-safe; registering while other threads dispatch is
+ * also safe, but those threads may briefly still use the old handlers.
+ */
+public class MsgDispatcher
+{
+	private final Object lock = new Object();
+
+	private final Map<Class<?>, MsgHandler<?>> handlers =
+			new HashMap<Class<?>, MsgHandler<?>>();
+
+	/**
+	 * Cache of the resolved handler for each message class.  Replaced
+	 * whenever a handler is registered.
+	 */
+	private volatile ClassValue<MsgHandler<?>> resolved = null;
+
+	/**
+	 * Constructor for a dispatcher with no handlers.
+	 */
+	public MsgDispatcher()
+	{
+		rebuild();
+	}
+
+	/**
+	 * Registers the handler for a message class and its subclasses.
+	 * Replaces any handler already registered for the same class.
+	 *
+	 * @param type    The message class.
+	 * @param handler The handler for messages of that class.
+	 */
+	public <T extends MsgCapsule> void register( Class<T> type, MsgHandler<? super T> handler )
+	{
+		synchronized (lock)
+		{
+			handlers.put( type, handler );
+
+			rebuild();
+		}
+	}
+
+	/**
+	 * Hands a message capsule to its handler.
+	 *
+	 * @param msg The message capsule.
+	 *
+	 * @return Returns @b true if a handler was found.  Returns @b false if
+	 *         no handler is registered for the message class.
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean dispatch( MsgCapsule msg )
+	{
+		MsgHandler<MsgCapsule> handler =
+				(MsgHandler<MsgCapsule>) resolved.get( msg.getClass() );
+
+		if ( handler == null )
+		{
+			return false;
+		}
+
+		handler.handle( msg );
+
+		return true;
+	}
+
+	/**
+	 * Replaces the handler cache with one that works from a copy of the
+	 * current registrations.
+	 *
+	 * @pre The caller must hold the lock, or be the constructor.
+	 */
+	private void rebuild()
+	{
+		final Map<Class<?>, MsgHandler<?>> table =
+				new HashMap<Class<?>, MsgHandler<?>>( handlers );
+
+		resolved = new ClassValue<MsgHandler<?>>()
+		{
+			@Override
+			protected MsgHandler<?> computeValue( Class<?> type )
+			{
+				for ( Class<?> c = type ; c != null ; c = c.getSuperclass() )
+				{
+					MsgHandler<?> handler = table.get( c );
+
+					if ( handler != null )
+					{
+						return handler;
+					}
+				}
+
+				return null;
+			}
+		};
+
+	}   // end of rebuild()
+
+}   // end of class MsgDispatcher
@@ -0,0 +1,28 @@
+/**
+ * @file MsgHandler.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A MsgHandler processes one class of message capsule taken from a
+ * Pipeline.  Handlers are registered with a MsgDispatcher.
+ *
+ * @param <T> The class of message capsule handled.
+ */
+public interface MsgHandler<T extends MsgCapsule>
+{
+	/**
+	 * Processes a message capsule.
+	 *
+	 * @param msg The message capsule.
+	 */
+	public abstract void handle( T msg );
+
+}   // end of interface MsgHandler
@@ -0,0 +1,246 @@
+/**
+ * @file MsgPool.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+import java.util.function.Supplier;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A MsgPool keeps message capsules that are no longer in use so that they
+ * can be handed out again instead of creating new ones.  Messages that are
+ * sent continuously, such as motor commands, would otherwise become a
+ * steady stream of garbage.
+ *
+ * A message taken from the pool with acquire() belongs to the caller.  It
+ * is returned to the pool by calling release() on the message once its
+ * life is over.  A released message must not be used again, since the pool
+ * may hand it to another thread at any time.  A message is given a fresh
+ * message ID each time it is reused, so a late response to the old ID can
+ * never be matched with the new message.
+ *
+ * Each time a message is handed out again its generation is bumped, and
+ * each life of a message can only be ended once.  A second release of the
+ * same life, or a late release that names an earlier generation, is
+ * refused and counted instead of putting a message that is in use back on
+ * the stack.
+ *
+ * The pool only keeps a limited number of free messages.  Messages
+ * released while the pool is full are left for the garbage collector.
+ *
+ * Instances are thread-safe.
+ *
+ * @param <T> The type of message capsule kept in the pool.
+ */
+public class MsgPool<T extends MsgCapsule>
+{
+	/**
+	 * The default number of free messages kept by a pool.
+	 */
+	static public final int DEFAULT_SIZE = 32;
+
+	private final Object lock = new Object();
+
+	/**
+	 * Creates a new message when the pool is empty.
+	 */
+	private final Supplier<T> factory;
+
+	/**
+	 * Stack of free messages.  The most recently released message is
+	 * reused first since it is the most likely to still be in the cache.
+	 */
+	private final MsgCapsule[] free;
+	private int count = 0;
+
+	private long created   = 0;
+	private long reused    = 0;
+	private long released  = 0;
+	private long discarded = 0;
+	private long refused   = 0;
+
+	/**
+	 * Constructor for a pool that keeps up to DEFAULT_SIZE free messages.
+	 *
+	 * @param factory Creates a new message when there is no free message
+	 *                to reuse.
+	 */
+	public MsgPool( Supplier<T> factory )
+	{
+		this( factory, DEFAULT_SIZE );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param factory Creates a new message when there is no free message
+	 *                to reuse.
+	 * @param maxFree The maximum number of free messages kept by the pool.
+	 *                Must be one or more.
+	 */
+	public MsgPool( Supplier<T> factory, int maxFree )
+	{
+		this.factory = factory;
+		this.free    = new MsgCapsule[ (maxFree < 1) ? 1 : maxFree ];
+	}
+
+	/**
+	 * Takes a message from the pool, creating a new one if the pool is
+	 * empty.  A reused message has been reset to the state of a newly
+	 * created message; it is up to the caller to fill in the contents.
+	 *
+	 * @return Returns a message that belongs to the caller.
+	 */
+	@SuppressWarnings("unchecked")
+	public T acquire()
+	{
+		MsgCapsule msg = null;
+
+		synchronized (lock)
+		{
+			if ( count > 0 )
+			{
+				msg = free[--count];
+				free[count] = null;
+
+				++reused;
+			}
+			else
+			{
+				++created;
+			}
+		}
+
+		if ( msg == null )
+		{
+			msg = factory.get();
+			msg.setPool(this);
+		}
+		else
+		{
+			msg.recycle();
+		}
+
+		return (T) msg;
+
+	}   // end of acquire()
+
+	/**
+	 * Returns a message to the pool.  Called by MsgCapsule.release() once
+	 * per life of the message, so the message is never on the stack twice.
+	 */
+	void release( MsgCapsule msg )
+	{
+		synchronized (lock)
+		{
+			++released;
+
+			if ( count < free.length )
+			{
+				free[count++] = msg;
+			}
+			else
+			{
+				++discarded;
+			}
+		}
+
+	}   // end of release()
+
+	/**
+	 * Counts a release refused because the life it was meant to end had
+	 * already ended.  Called by MsgCapsule.release().
+	 */
+	void refused()
+	{
+		synchronized (lock)
+		{
+			++refused;
+		}
+	}
+
+	/**
+	 * @return Returns the number of messages that had to be created
+	 *         because the pool was empty.
+	 */
+	public long getCreatedCount()
+	{
+		synchronized (lock)
+		{
+			return created;
+		}
+	}
+
+	/**
+	 * @return Returns the number of messages handed out again instead of
+	 *         being created.
+	 */
+	public long getReusedCount()
+	{
+		synchronized (lock)
+		{
+			return reused;
+		}
+	}
+
+	public long getReleasedCount()
+	{
+		synchronized (lock)
+		{
+			return released;
+		}
+	}
+
+	/**
+	 * @return Returns the number of released messages left for the
+	 *         garbage collector because the pool was full.
+	 */
+	public long getDiscardedCount()
+	{
+		synchronized (lock)
+		{
+			return discarded;
+		}
+	}
+
+	/**
+	 * @return Returns the number of releases refused because the message
+	 *         had already been released.  Anything but zero is a bug in
+	 *         the owner of a message.
+	 */
+	public long getRefusedCount()
+	{
+		synchronized (lock)
+		{
+			return refused;
+		}
+	}
+
+	/**
+	 * @return Returns the number of free messages waiting in the pool.
+	 */
+	public int getFreeCount()
+	{
+		synchronized (lock)
+		{
+			return count;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		synchronized (lock)
+		{
+			return String.format("created=%d reused=%d released=%d discarded=%d refused=%d free=%d",
+					created, reused, released, discarded, refused, count);
+		}
+	}
+
+}   // end of class MsgPool
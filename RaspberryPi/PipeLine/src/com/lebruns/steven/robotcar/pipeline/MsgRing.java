@@ -0,0 +1,205 @@
+/**
+ * @file MsgRing.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A MsgRing is an array backed ring buffer of message capsules.  The array
+ * is allocated once, when the ring is created, so adding and removing
+ * messages does not create any garbage.
+ *
+ * A ring is either bounded or growable.  A bounded ring never holds more
+ * than its capacity and it is up to the caller to decide what to do when
+ * the ring is full.  A growable ring doubles the size of its array when it
+ * runs out of room.  Growable rings are used where messages must never be
+ * lost, such as the Out of Band queue.
+ *
+ * This class is @b not thread-safe.  The owning Pipeline is responsible for
+ * guarding access to the ring.
+ */
+class MsgRing
+{
+	/**
+	 * The initial size of the array for a growable ring.
+	 */
+	static final int GROWABLE_SIZE = 16;
+
+	private MsgCapsule[] ring;
+
+	/**
+	 * Index of the oldest message in the ring.
+	 */
+	private int head = 0;
+
+	/**
+	 * Number of messages currently in the ring.
+	 */
+	private int count = 0;
+
+	private final boolean growable;
+
+	/**
+	 * Constructor for a bounded ring.
+	 *
+	 * @param capacity The maximum number of messages the ring can hold.
+	 *                 Must be one or more.
+	 */
+	MsgRing( int capacity )
+	{
+		this( capacity, false );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The initial number of messages the ring can hold.
+	 * @param grow     Set to @b true if the ring should grow when full.
+	 */
+	MsgRing( int capacity, boolean grow )
+	{
+		ring     = new MsgCapsule[ (capacity < 1) ? 1 : capacity ];
+		growable = grow;
+	}
+
+	/**
+	 * Adds a message to the tail of the ring.
+	 *
+	 * @param msg The message to be added.
+	 *
+	 * @return Returns @b true if the message was added.  Returns @b false
+	 *         if the ring is bounded and already full.
+	 */
+	boolean offer( MsgCapsule msg )
+	{
+		if ( count == ring.length )
+		{
+			if ( !growable )
+			{
+				return false;
+			}
+
+			grow();
+		}
+
+		ring[ (head + count) % ring.length ] = msg;
+		++count;
+
+		return true;
+	}
+
+	/**
+	 * Removes and returns the message at the head of the ring.
+	 *
+	 * @return Returns the oldest message in the ring or @b null if the
+	 *         ring is empty.
+	 */
+	MsgCapsule poll()
+	{
+		if ( count == 0 )
+		{
+			return null;
+		}
+
+		MsgCapsule msg = ring[head];
+
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		--count;
+
+		return msg;
+	}
+
+	/**
+	 * Replaces the newest waiting message that has the same class and
+	 * conflation key as the given message.  The replacement keeps the
+	 * position of the message it replaces.
+	 * 
+	 * @param msg The new message.  Must implement ConflatingMessage.
+	 * 
+	 * @return Returns the message that was replaced or @b null if there
+	 *         was no matching message in the ring.
+	 */
+	MsgCapsule conflate( MsgCapsule msg )
+	{
+		int key = ((ConflatingMessage) msg).conflationKey();
+		
+		// Search from the newest message, since that is the only one that
+		// can match when conflation is always applied.
+		for ( int i = count - 1 ; i >= 0 ; --i )
+		{
+			int        slot  = (head + i) % ring.length;
+			MsgCapsule other = ring[slot];
+			
+			if ( other.getClass() == msg.getClass() &&
+					((ConflatingMessage) other).conflationKey() == key )
+			{
+				ring[slot] = msg;
+				
+				return other;
+			}
+		}
+		
+		return null;
+		
+	}   // end of conflate()
+	
+	/**
+	 * Removes all messages from the ring.  The array is kept for reuse.
+	 */
+	void clear()
+	{
+		while ( count > 0 )
+		{
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			--count;
+		}
+
+		head = 0;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	int capacity()
+	{
+		return ring.length;
+	}
+
+	boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	boolean isFull()
+	{
+		return !growable && count == ring.length;
+	}
+
+	/**
+	 * Doubles the size of the array, unwrapping the messages so that the
+	 * head of the ring is at the start of the new array.
+	 */
+	private void grow()
+	{
+		MsgCapsule[] bigger = new MsgCapsule[ ring.length * 2 ];
+
+		for ( int i = 0 ; i < count ; ++i )
+		{
+			bigger[i] = ring[ (head + i) % ring.length ];
+		}
+
+		ring = bigger;
+		head = 0;
+	}
+
+}   // end of class MsgRing
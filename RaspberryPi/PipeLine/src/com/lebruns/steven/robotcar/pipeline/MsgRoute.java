@@ -0,0 +1,35 @@
+/**
+ * @file MsgRoute.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A MsgRoute holds everything a Pipeline needs to know about a message
+ * class in order to queue it: whether it is supported, whether it is Out
+ * of Band or conflating and which lane carries it.  The Pipeline works out
+ * the route once per message class and caches it, so sending a message
+ * costs a single table lookup instead of a chain of instanceof checks.
+ */
+final class MsgRoute
+{
+	final boolean supported;
+	final boolean outOfBand;
+	final boolean conflating;
+	final int     lane;
+
+	MsgRoute( boolean supported, boolean outOfBand, boolean conflating, int lane )
+	{
+		this.supported  = supported;
+		this.outOfBand  = outOfBand;
+		this.conflating = conflating;
+		this.lane       = lane;
+	}
+
+}   // end of class MsgRoute
@@ -8,8 +8,13 @@
  */
 package com.lebruns.steven.robotcar.pipeline;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Steven F. LeBrun
@@ -24,33 +29,384 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * Start, Stop, Pause, Resume, Terminate.
  * 
  * The Pipeline class is an abstract base class.  Each derived class will 
- * support a specific subtype of message and provide virtual methods to 
- * determine if message subtypes are allowed.
+ * support a specific subtype of message, registered with supportMessages().
+ * What the Pipeline needs to know about a message class is worked out once
+ * and cached, so sending a message needs no instanceof checks.
  * 
  * Pipelines are designed to have multiple senders and a single consumer.
+ * Each Pipeline has its own lock.  A sender only wakes the consumer of the
+ * Pipeline it sent to, never the consumers of other Pipelines.
  * 
  * If bi-directional communications is required, create two Pipelines, each
  * one sending messages in a different direction.
  *
+ * A Pipeline is either unbounded or bounded.  An unbounded Pipeline grows
+ * its fifo Queue as needed.  A bounded Pipeline has a fixed capacity that
+ * is preallocated when the Pipeline is created and an overflow policy that
+ * decides what happens when a sender finds the fifo Queue full.  The Out of
+ * Band Queue is never bounded since OOB messages, such as an Emergency Stop,
+ * must never be lost.
+ * 
+ * A Pipeline can also conflate messages.  With conflation turned on, a new
+ * ConflatingMessage replaces a waiting message of the same class and key
+ * instead of being queued behind it, so the consumer only ever sees the
+ * latest value.
+ * 
+ * The fifo Queue can be split into several priority lanes, each assigned
+ * the message classes it carries.  Each lane is a separate fifo with the
+ * Pipeline capacity, and the LaneScheduling decides which lane is served
+ * next, so a burst of one kind of message cannot hold up another kind.
+ * A Pipeline starts with a single lane.
+ * 
+ * Messages with a time to live that has passed by the time they reach the
+ * front of the Pipeline are thrown away, and counted, instead of being
+ * handed to the consumer.
+ * 
+ * Each Pipeline keeps counters of the messages passing through it, its
+ * depth and a histogram of how long messages wait.  Recording them does not
+ * create garbage.  getStats() returns a snapshot of them all.
  */
 public abstract class Pipeline
 {
-	private ConcurrentLinkedQueue<MsgCapsule> fifoQueue    = null;
-	private ConcurrentLinkedQueue<MsgCapsule> oobQueue     = null;
+	/**
+	 * Capacity value used to denote an unbounded Pipeline.
+	 */
+	public static final int UNBOUNDED = 0;
+
+	/**
+	 * Default number of times a lane may be passed over by STRICT_PRIORITY
+	 * scheduling before it is served anyway.
+	 */
+	public static final int DEFAULT_STARVATION_LIMIT = 8;
+
+	private MsgRing  oobQueue     = null;
+	
+	/**
+	 * The fifo Queue, split into priority lanes.  Lane 0 has the highest
+	 * priority.
+	 */
+	private MsgRing[] lanes       = null;
+	
+	/**
+	 * Maps a message class to the lane that carries it.  Classes that are
+	 * not assigned a lane use lane 0.
+	 */
+	private Map<Class<?>, Integer> laneOf = new HashMap<Class<?>, Integer>();
+	
+	/**
+	 * The message base classes supported by this Pipeline.
+	 */
+	private List<Class<?>> supportedTypes = new ArrayList<Class<?>>();
+	
+	/**
+	 * Cache of the route for each message class sent to this Pipeline.
+	 * Replaced whenever the supported classes or lanes change.
+	 */
+	private volatile ClassValue<MsgRoute> routes = null;
+	
+	private LaneScheduling scheduling = LaneScheduling.STRICT_PRIORITY;
+	
+	/**
+	 * For WEIGHTED_ROUND_ROBIN, the number of messages each lane may hand
+	 * out on its turn.
+	 */
+	private int[]  weights        = null;
+	
+	/**
+	 * For WEIGHTED_ROUND_ROBIN, the lane whose turn it is and how many more
+	 * messages it may hand out.  For STRICT_PRIORITY, how many times in a
+	 * row each lane has been passed over while holding messages.
+	 */
+	private int    turn           = 0;
+	private int    credits        = 0;
+	private int[]  passedOver     = null;
+	private int    starvationLimit = DEFAULT_STARVATION_LIMIT;
+	
+	/**
+	 * The number of messages added to each lane.
+	 */
+	private long[] laneEnqueued   = null;
+	
+	private final int                    capacity;
+	private final PipelineOverflowPolicy policy;
+	
+	/**
+	 * Number of messages thrown away by the DROP_OLDEST or DROP_NEWEST
+	 * overflow policies.
+	 */
+	private long droppedCount  = 0;
+	
+	/**
+	 * Number of messages refused by the REJECT overflow policy.
+	 */
+	private long rejectedCount = 0;
+	
+	/**
+	 * Number of messages refused because this Pipeline does not support
+	 * their class.
+	 */
+	private long unsupportedCount = 0;
+	
+	/**
+	 * Number of waiting messages replaced by newer conflating messages.
+	 */
+	private long conflatedCount = 0;
+	
+	/**
+	 * Number of messages thrown away because their time to live passed
+	 * while they were waiting.
+	 */
+	private long expiredCount = 0;
+	
+	/**
+	 * Traffic counters.  Messages that replace a waiting conflating message
+	 * count as enqueued fifo messages.
+	 */
+	private long oobEnqueued     = 0;
+	private long fifoEnqueued    = 0;
+	private long dequeuedCount   = 0;
+	private long flushCount      = 0;
+	private long flushedMessages = 0;
+	private int  highWaterDepth  = 0;
+	
+	/**
+	 * Time, in nanoseconds, between a message being sent and being handed
+	 * to the consumer.
+	 */
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	
+	/**
+	 * Flag that denotes whether ConflatingMessages replace older waiting
+	 * messages.
+	 */
+	private boolean conflation = false;
+	
+	
+	/**
+	 * Guards both queues and the counters.  Every Pipeline has its own lock
+	 * so that traffic on one Pipeline does not wake consumers of another.
+	 */
+	private final ReentrantLock lock     = new ReentrantLock();
 	
+	/**
+	 * Signaled when a message is added.  Only the single consumer waits
+	 * on this condition.
+	 */
+	private final Condition     notEmpty = lock.newCondition();
 	
-	private String lock = "Pipeline Lock";
+	/**
+	 * Signaled when room is made in a bounded fifo Queue.  Senders using
+	 * the BLOCK overflow policy wait on this condition.
+	 */
+	private final Condition     notFull  = lock.newCondition();
 
 
 	/**
-	 * 
+	 * Constructor for an unbounded Pipeline.
 	 */
 	public Pipeline()
 	{
-		fifoQueue = new ConcurrentLinkedQueue<MsgCapsule>();
-		oobQueue  = new ConcurrentLinkedQueue<MsgCapsule>();
+		this( UNBOUNDED, PipelineOverflowPolicy.BLOCK );
+	}
+	
+	/**
+	 * Constructor for a bounded Pipeline.
+	 * 
+	 * @param maxMessages The maximum number of messages that can wait in
+	 *                    the fifo Queue.  Use UNBOUNDED for no limit.
+	 * @param overflow    What to do when a message is sent while the fifo
+	 *                    Queue is full.  Ignored for unbounded Pipelines.
+	 */
+	public Pipeline( int maxMessages, PipelineOverflowPolicy overflow )
+	{
+		capacity = ( maxMessages > 0 ) ? maxMessages : UNBOUNDED ;
+		policy   = overflow;
+		
+		oobQueue  = new MsgRing( MsgRing.GROWABLE_SIZE, true );
+		
+		createLanes( new int[] { 1 } );
+		
+		buildRoutes();
+	}
+	
+	/**
+	 * Registers a message base class carried by this Pipeline.  The class
+	 * and all of its subclasses are supported.  Derived Pipelines call this
+	 * from their constructors.
+	 * 
+	 * @param type The message base class.
+	 */
+	protected final void supportMessages( Class<? extends MsgCapsule> type )
+	{
+		lock.lock();
+		try
+		{
+			supportedTypes.add( type );
+			
+			buildRoutes();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Splits the fifo Queue into priority lanes.  This should be done when
+	 * the Pipeline is set up, before any messages are sent, since any
+	 * waiting fifo messages are discarded.  They are released and counted
+	 * as dropped.  A sender waiting for room in the old lanes offers its
+	 * message to the new ones instead.
+	 * 
+	 * @param order    How the lanes are served.
+	 * @param weights  One entry per lane, lane 0 first.  For
+	 *                 WEIGHTED_ROUND_ROBIN, the number of messages the lane
+	 *                 hands out on its turn.  Weights less than one are
+	 *                 treated as one.  Ignored for STRICT_PRIORITY other
+	 *                 than to give the number of lanes.
+	 */
+	public void configureLanes( LaneScheduling order, int... weights )
+	{
+		lock.lock();
+		try
+		{
+			scheduling = order;
+			
+			for ( MsgRing lane : lanes )
+			{
+				MsgCapsule msg;
+				
+				while ( (msg = lane.poll()) != null )
+				{
+					msg.release();
+					++droppedCount;
+				}
+			}
+			
+			createLanes( (weights.length > 0) ? weights : new int[] { 1 } );
+			
+			buildRoutes();
+			
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Assigns a message class to a lane.  Only the exact class is assigned,
+	 * not its subclasses.
+	 * 
+	 * @param type The message class.
+	 * @param lane The lane that carries messages of that class.
+	 */
+	public void assignLane( Class<? extends MsgCapsule> type, int lane )
+	{
+		lock.lock();
+		try
+		{
+			laneOf.put( type, lane );
+			
+			buildRoutes();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sets how many times in a row STRICT_PRIORITY scheduling may pass over
+	 * a lane holding messages before serving it anyway.
+	 * 
+	 * @param limit The starvation limit.  Must be one or more.
+	 */
+	public void setStarvationLimit( int limit )
+	{
+		lock.lock();
+		try
+		{
+			starvationLimit = (limit < 1) ? 1 : limit ;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @pre The caller must hold the Pipeline lock, or be the constructor.
+	 */
+	private void createLanes( int[] laneWeights )
+	{
+		int nLanes = laneWeights.length;
+		
+		lanes        = new MsgRing[nLanes];
+		weights      = new int[nLanes];
+		passedOver   = new int[nLanes];
+		laneEnqueued = new long[nLanes];
+		
+		for ( int i = 0 ; i < nLanes ; ++i )
+		{
+			if ( capacity == UNBOUNDED )
+			{
+				lanes[i] = new MsgRing( MsgRing.GROWABLE_SIZE, true );
+			}
+			else
+			{
+				lanes[i] = new MsgRing( capacity );
+			}
+			
+			weights[i] = (laneWeights[i] < 1) ? 1 : laneWeights[i] ;
+		}
+		
+		turn    = 0;
+		credits = weights[0];
 	}
 	
+	/**
+	 * Replaces the route cache so that routes are worked out again from the
+	 * current supported classes and lane assignments.  The new cache works
+	 * from its own copy of them, so it can be used without the lock.
+	 * 
+	 * @pre The caller must hold the Pipeline lock, or be the constructor.
+	 */
+	private void buildRoutes()
+	{
+		final Class<?>[]             bases   = supportedTypes.toArray( new Class<?>[0] );
+		final Map<Class<?>, Integer> laneMap = new HashMap<Class<?>, Integer>( laneOf );
+		final int                    nLanes  = lanes.length;
+		
+		routes = new ClassValue<MsgRoute>()
+		{
+			@Override
+			protected MsgRoute computeValue( Class<?> type )
+			{
+				boolean supported = false;
+				
+				for ( Class<?> base : bases )
+				{
+					supported |= base.isAssignableFrom( type );
+				}
+				
+				Integer lane = laneMap.get( type );
+				
+				if ( lane == null || lane < 0 || lane >= nLanes )
+				{
+					lane = 0;
+				}
+				
+				return new MsgRoute( supported,
+						OutOfBandMessage.class.isAssignableFrom( type ),
+						ConflatingMessage.class.isAssignableFrom( type ),
+						lane );
+			}
+		};
+		
+	}   // end of buildRoutes()
+	
 	/**
 	 * Determines if the MsgCapsule is a child class that is
 	 * supported by this Pipeline child class.
@@ -61,7 +417,10 @@ public abstract class Pipeline
 	 *         that is supported by this Pipeline.  Returns @b false
 	 *         if the MsgCapsule derived type is not supported.
 	 */
-	public abstract boolean is_supported( MsgCapsule msg );
+	public final boolean is_supported( MsgCapsule msg )
+	{
+		return routes.get( msg.getClass() ).supported;
+	}
 	
 	//========================================================================
 	// Client Side [sender] public methods.
@@ -73,47 +432,156 @@ public abstract class Pipeline
 	 * the message will be added and whether it is placed in the regular queue
 	 * or the out of band queue.
 	 * 
-	 * Note, if any thread is waiting for a command, this method will
-	 * send a notification and wake them [all] up.
+	 * Note, if the consumer is waiting for a command, this method will
+	 * wake it up.
+	 * 
+	 * If the Pipeline is bounded and full, the overflow policy decides
+	 * whether this method waits for room, drops a message or rejects the
+	 * new message.
+	 * 
+	 * Unless this method throws, the Pipeline owns the message from then on
+	 * until it is handed to the consumer.  Messages the Pipeline throws
+	 * away, whether unsupported, dropped, conflated, expired or flushed,
+	 * are released so that pooled messages go back to their MsgPool.  A
+	 * rejected message still belongs to the sender.
 	 * 
 	 * @param msg The Message to be sent. 
 	 * 
-	 * @exception Throws a PipelineIllegalParameterException if the message is
-	 *            not a MsgCapsule type supported by this Pipeline.
+	 * @return Returns @b true if the message was added to the Pipeline,
+	 *         including replacing a waiting conflating message.
+	 *         Returns @b false if the message is not a MsgCapsule type
+	 *         supported by this Pipeline or if it was dropped by the
+	 *         DROP_NEWEST overflow policy.
+	 * 
+	 * @exception Throws a PipelineFullException if the Pipeline is full
+	 *            and uses the REJECT overflow policy.
 	 */
-	public void put(MsgCapsule msg)
+	public boolean put(MsgCapsule msg)
 		throws PipelineIllegalParameterException
 	{
-		// Determine if message is supported by this Pipeline
-		if ( ! this.is_supported(msg) )
+		lock.lock();
+		try
 		{
-			String error;
+			MsgRoute route = routes.get( msg.getClass() );
 			
-			error = "MsgCapsule Type: " + 
-			        msg.getClass().getName() +
-			        " is not supported by "  +
-			        this.getClass().getName();
+			// Determine if message is supported by this Pipeline
+			if ( !route.supported )
+			{
+				msg.release();
+				++unsupportedCount;
+				return false;
+			}
 			
-			throw new PipelineIllegalParameterException( error );
-		}
-		
-		if ( msg instanceof OutOfBandMessage )
-		{
-			oobQueue.add(msg);
+			msg.setEnqueueTime( System.nanoTime() );
+			
+			if ( route.outOfBand )
+			{
+				oobQueue.offer(msg);
+				++oobEnqueued;
+			}
+			else
+			{
+				int        lane     = route.lane;
+				MsgCapsule replaced = null;
+				
+				if ( conflation && route.conflating )
+				{
+					replaced = lanes[lane].conflate(msg);
+				}
+				
+				if ( replaced != null )
+				{
+					// Replaced a waiting message; the lane did not grow.
+					replaced.release();
+					++conflatedCount;
+				}
+				else if ( !offerFifo(msg) )
+				{
+					return false;
+				}
+				
+				++fifoEnqueued;
+			}
+			
+			int depth = currentDepth();
+			
+			if ( depth > highWaterDepth )
+			{
+				highWaterDepth = depth;
+			}
+			
+			notEmpty.signal();
 		}
-		else
+		finally
 		{
-			fifoQueue.add(msg);
+			lock.unlock();
 		}
 		
-		synchronized (lock)
+		return true;
+		
+	}   // end of put()
+	
+	/**
+	 * Adds a regular message to its fifo lane, applying the overflow
+	 * policy if the lane is full.  The lane is looked up again after each
+	 * wait, since configureLanes() may have replaced the lanes meanwhile.
+	 * 
+	 * @pre The caller must hold the Pipeline lock.
+	 * 
+	 * @return Returns @b true if the message was queued.  Returns @b false
+	 *         if the message was dropped.
+	 */
+	private boolean offerFifo(MsgCapsule msg)
+		throws PipelineFullException
+	{
+		int     laneIndex = routes.get( msg.getClass() ).lane;
+		MsgRing lane      = lanes[laneIndex];
+		
+		while ( lane.isFull() )
 		{
-			lock.notifyAll();
+			switch ( policy )
+			{
+			case DROP_OLDEST:
+				lane.poll().release();
+				++droppedCount;
+				break;
+				
+			case DROP_NEWEST:
+				msg.release();
+				++droppedCount;
+				return false;
+				
+			case REJECT:
+				++rejectedCount;
+				throw new PipelineFullException( "Pipeline full: " + capacity );
+				
+			case BLOCK:
+			default:
+				try
+				{
+					notFull.await();
+				}
+				catch ( InterruptedException exc )
+				{
+					// Give up on sending and let the caller see the interrupt.
+					Thread.currentThread().interrupt();
+					msg.release();
+					++droppedCount;
+					return false;
+				}
+				
+				laneIndex = routes.get( msg.getClass() ).lane;
+				lane      = lanes[laneIndex];
+			}
 		}
 		
-		return;
+		lane.offer(msg);
 		
-	}   // end of put()
+		++laneEnqueued[laneIndex];
+		
+		return true;
+		
+	}   // end of offerFifo()
 	
 
 	
@@ -136,14 +604,15 @@ public abstract class Pipeline
 	 */
 	public MsgCapsule  getNextCommand()
 	{
-		MsgCapsule next = oobQueue.poll();
-		
-		if ( next == null )
+		lock.lock();
+		try
 		{
-			next = fifoQueue.poll();
+			return takeNext();
+		}
+		finally
+		{
+			lock.unlock();
 		}
-		
-		return next;
 		
 	}   // end of getNextCommand()
 	
@@ -153,60 +622,761 @@ public abstract class Pipeline
 	 * If no commands are available, this method will 
 	 * wait until one is available.
 	 * 
-	 * @return Returns the next Command to be processed.
+	 * @return Returns the next Command to be processed.  Returns @b null
+	 *         only if the waiting thread was interrupted.
 	 */
 	public MsgCapsule waitForNextCommand()
 	{
-		MsgCapsule next = null;
-		
-		while ( next == null )
+		lock.lock();
+		try
 		{
-			next = getNextCommand();
+			MsgCapsule next = takeNext();
 			
-			if ( next == null )
+			// The queues are checked while holding the lock, so a message
+			// sent between the check and the wait cannot be missed.
+			while ( next == null )
 			{
-				try
-				{
-					synchronized (lock)
-					{
-						lock.wait();
-					}
-				}
-				catch ( Exception exc )
-				{
-					System.out.println("Waiting for next Command Message");
-					System.out.println(exc.getMessage());
-					exc.printStackTrace(System.out);
-				}
+				notEmpty.await();
+				
+				next = takeNext();
 			}
+			
+			return next;
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+			
+			return null;
+		}
+		finally
+		{
+			lock.unlock();
 		}
-		
-		return next;
 		
 	}   // end of waitForNextCommand()
 	
+	/**
+	 * Retrieves the next message to be processed, waiting no longer than
+	 * the given amount of time for one to arrive.
+	 * 
+	 * @param timeout How long to wait.
+	 * @param unit    The time unit of the timeout argument.
+	 * 
+	 * @return Returns the next message to be processed.  Returns @b null
+	 *         if the time ran out or the waiting thread was interrupted.
+	 */
+	public MsgCapsule waitForNextCommand( long timeout, TimeUnit unit )
+	{
+		return pollUntil( System.nanoTime() + unit.toNanos(timeout) );
+	}
 	
 	/**
-	 * Flushes all messages in the fifo Queue without processing them.
+	 * Retrieves the next message to be processed, waiting until the
+	 * deadline for one to arrive.  A deadline, rather than a timeout, lets
+	 * a periodic consumer keep a fixed schedule no matter how many messages
+	 * arrive between its periodic tasks.
+	 * 
+	 * @param deadline The time, as given by System.nanoTime(), at which to
+	 *                 give up waiting.
+	 * 
+	 * @return Returns the next message to be processed.  Returns @b null
+	 *         if the deadline passed or the waiting thread was interrupted.
 	 */
-	public void flush()
+	public MsgCapsule pollUntil( long deadline )
 	{
-		fifoQueue.clear();
-		
-		synchronized (lock)
+		lock.lock();
+		try
 		{
-			lock.notifyAll();
+			MsgCapsule next = takeNext();
+			
+			while ( next == null )
+			{
+				long remaining = deadline - System.nanoTime();
+				
+				if ( remaining <= 0 )
+				{
+					break;
+				}
+				
+				notEmpty.awaitNanos(remaining);
+				
+				next = takeNext();
+			}
+			
+			return next;
 		}
-	}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+			
+			return null;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+	}   // end of pollUntil()
 	
-	public boolean isEmpty()
+	/**
+	 * Moves up to max waiting messages into the batch list without blocking.
+	 * 
+	 * Out of Band messages keep their priority: if any are waiting, only
+	 * the Out of Band messages are moved.  The fifo messages are left in
+	 * the Pipeline so that an Out of Band message that flushes the Pipeline
+	 * can still do so before they are processed.
+	 * 
+	 * @param batch The list that the messages are added to, in the order
+	 *              they should be processed.  The list is not cleared.
+	 * @param max   The maximum number of messages to move.
+	 * 
+	 * @return Returns the number of messages added to the batch list.
+	 */
+	public int drainTo( List<MsgCapsule> batch, int max )
 	{
-		if ( fifoQueue.isEmpty() && oobQueue.isEmpty() )
+		lock.lock();
+		try
 		{
-			return true;
+			return takeBatch(batch, max);
+		}
+		finally
+		{
+			lock.unlock();
 		}
 		
-		return false;
+	}   // end of drainTo()
+	
+	/**
+	 * Moves up to max waiting Out of Band messages into the batch list
+	 * without blocking.  Fifo messages are left in the Pipeline.
+	 * 
+	 * This lets a consumer that is holding back the fifo messages, for
+	 * example because its receiver is busy, still pass on urgent messages.
+	 * 
+	 * @param batch The list that the messages are added to.  The list is
+	 *              not cleared.
+	 * @param max   The maximum number of messages to move.
+	 * 
+	 * @return Returns the number of messages added to the batch list.
+	 */
+	public int drainOutOfBand( List<MsgCapsule> batch, int max )
+	{
+		lock.lock();
+		try
+		{
+			long now   = System.nanoTime();
+			int  count = 0;
+			
+			MsgCapsule next = null;
+			
+			while ( count < max && (next = takeOutOfBand(now)) != null )
+			{
+				batch.add(next);
+				++count;
+			}
+			
+			return count;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+	}   // end of drainOutOfBand()
+	
+	/**
+	 * Moves up to max waiting messages into the batch list, waiting until
+	 * at least one message is available.  The same Out of Band ordering
+	 * rules as drainTo() apply.
+	 * 
+	 * This lets a consumer handle every message that piled up while it was
+	 * busy in one pass, for example to send them all in a single write.
+	 * 
+	 * @param batch The list that the messages are added to.
+	 * @param max   The maximum number of messages to move.
+	 * 
+	 * @return Returns the number of messages added to the batch list.
+	 *         Returns zero only if the waiting thread was interrupted.
+	 */
+	public int waitForNextBatch( List<MsgCapsule> batch, int max )
+	{
+		lock.lock();
+		try
+		{
+			int count = takeBatch(batch, max);
+			
+			while ( count == 0 )
+			{
+				notEmpty.await();
+				
+				count = takeBatch(batch, max);
+			}
+			
+			return count;
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+			
+			return 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+	}   // end of waitForNextBatch()
+	
+	/**
+	 * Moves up to max waiting messages into the batch list, waiting until
+	 * the deadline for at least one message to arrive.  The same Out of
+	 * Band ordering rules as drainTo() apply.
+	 * 
+	 * @param batch    The list that the messages are added to.
+	 * @param max      The maximum number of messages to move.
+	 * @param deadline The time, as given by System.nanoTime(), at which to
+	 *                 give up waiting.
+	 * 
+	 * @return Returns the number of messages added to the batch list.
+	 *         Returns zero if the deadline passed or the waiting thread was
+	 *         interrupted.
+	 */
+	public int waitForNextBatch( List<MsgCapsule> batch, int max, long deadline )
+	{
+		lock.lock();
+		try
+		{
+			int count = takeBatch(batch, max);
+			
+			while ( count == 0 )
+			{
+				long remaining = deadline - System.nanoTime();
+				
+				if ( remaining <= 0 )
+				{
+					break;
+				}
+				
+				notEmpty.awaitNanos(remaining);
+				
+				count = takeBatch(batch, max);
+			}
+			
+			return count;
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+			
+			return 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+	}   // end of waitForNextBatch()
+	
+	/**
+	 * Moves waiting messages into the batch list.  Out of Band messages are
+	 * taken first and, if there are any, the fifo messages are left alone.
+	 * 
+	 * @pre The caller must hold the Pipeline lock.
+	 */
+	private int takeBatch( List<MsgCapsule> batch, int max )
+	{
+		int        count   = 0;
+		long       now     = System.nanoTime();
+		long       expired = expiredCount;
+		MsgCapsule next    = null;
+		
+		while ( count < max && (next = takeOutOfBand(now)) != null )
+		{
+			batch.add( next );
+			++count;
+		}
+		
+		if ( count > 0 )
+		{
+			return count;
+		}
+		
+		while ( count < max && (next = takeFifo(now)) != null )
+		{
+			batch.add( next );
+			++count;
+		}
+		
+		if ( (count > 0 || expired != expiredCount) &&
+				policy == PipelineOverflowPolicy.BLOCK )
+		{
+			// Blocked senders may be waiting for room.
+			notFull.signalAll();
+		}
+		
+		return count;
+		
+	}   // end of takeBatch()
+	
+	/**
+	 * Removes the next message, Out of Band messages first.
+	 * 
+	 * @pre The caller must hold the Pipeline lock.
+	 * 
+	 * @return Returns the next message or @b null if both queues are empty.
+	 */
+	private MsgCapsule takeNext()
+	{
+		long       now     = System.nanoTime();
+		long       expired = expiredCount;
+		MsgCapsule next    = takeOutOfBand(now);
+		
+		if ( next == null )
+		{
+			next = takeFifo(now);
+			
+			if ( (next != null || expired != expiredCount) &&
+					policy == PipelineOverflowPolicy.BLOCK )
+			{
+				// A blocked sender may be waiting for room.  Senders for
+				// every lane wait on the same condition, so wake them all.
+				notFull.signalAll();
+			}
+		}
+		
+		return next;
+		
+	}   // end of takeNext()
+	
+	/**
+	 * Removes the next Out of Band message that has not expired.
+	 * 
+	 * @pre The caller must hold the Pipeline lock.
+	 * 
+	 * @param now The current time as given by System.nanoTime().
+	 * 
+	 * @return Returns the next Out of Band message or @b null if there
+	 *         are none.
+	 */
+	private MsgCapsule takeOutOfBand( long now )
+	{
+		MsgCapsule next = oobQueue.poll();
+		
+		while ( next != null && next.hasExpired(now) )
+		{
+			next.release();
+			++expiredCount;
+			
+			next = oobQueue.poll();
+		}
+		
+		if ( next != null )
+		{
+			dequeued(next, now);
+		}
+		
+		return next;
+		
+	}   // end of takeOutOfBand()
+	
+	/**
+	 * Removes the next fifo message that has not expired, choosing the lane
+	 * according to the lane scheduling.
+	 * 
+	 * @pre The caller must hold the Pipeline lock.
+	 * 
+	 * @param now The current time as given by System.nanoTime().
+	 * 
+	 * @return Returns the next fifo message or @b null if every lane is
+	 *         empty.
+	 */
+	private MsgCapsule takeFifo( long now )
+	{
+		for ( ; ; )
+		{
+			MsgCapsule next = null;
+			
+			if ( lanes.length == 1 )
+			{
+				next = lanes[0].poll();
+			}
+			else
+			{
+				int lane = ( scheduling == LaneScheduling.WEIGHTED_ROUND_ROBIN ) ?
+						nextWeightedLane() : nextPriorityLane() ;
+				
+				next = ( lane < 0 ) ? null : lanes[lane].poll() ;
+			}
+			
+			if ( next == null )
+			{
+				return null;
+			}
+			
+			if ( !next.hasExpired(now) )
+			{
+				dequeued(next, now);
+				
+				return next;
+			}
+			
+			next.release();
+			++expiredCount;
+		}
+		
+	}   // end of takeFifo()
+	
+	/**
+	 * Records a message being handed to the consumer.
+	 * 
+	 * @pre The caller must hold the Pipeline lock.
+	 */
+	private void dequeued( MsgCapsule msg, long now )
+	{
+		++dequeuedCount;
+		
+		msg.setDequeueTime(now);
+		
+		queueWait.record( now - msg.getEnqueueTime() );
+	}
+	
+	/**
+	 * @pre The caller must hold the Pipeline lock.
+	 * 
+	 * @return Returns the number of messages waiting in all the queues.
+	 */
+	private int currentDepth()
+	{
+		int depth = oobQueue.size();
+		
+		for ( MsgRing lane : lanes )
+		{
+			depth += lane.size();
+		}
+		
+		return depth;
+	}
+	
+	/**
+	 * Picks the highest priority lane holding messages, unless a lower
+	 * priority lane has been passed over too many times in a row.
+	 * 
+	 * @return Returns the lane to serve or -1 if every lane is empty.
+	 */
+	private int nextPriorityLane()
+	{
+		int chosen = -1;
+		
+		for ( int i = 0 ; i < lanes.length ; ++i )
+		{
+			if ( lanes[i].isEmpty() )
+			{
+				continue;
+			}
+			
+			if ( chosen < 0 )
+			{
+				chosen = i;
+			}
+			else if ( passedOver[i] >= starvationLimit )
+			{
+				// Starving lane gets its turn.
+				chosen = i;
+				break;
+			}
+		}
+		
+		for ( int i = 0 ; i < lanes.length ; ++i )
+		{
+			if ( i == chosen || lanes[i].isEmpty() )
+			{
+				passedOver[i] = 0;
+			}
+			else
+			{
+				++passedOver[i];
+			}
+		}
+		
+		return chosen;
+		
+	}   // end of nextPriorityLane()
+	
+	/**
+	 * Picks the lane whose turn it is.  A lane that is empty or has used up
+	 * its weight passes the turn to the next lane.
+	 * 
+	 * @return Returns the lane to serve or -1 if every lane is empty.
+	 */
+	private int nextWeightedLane()
+	{
+		// At most one full pass over the lanes is needed, plus one in case
+		// the current lane has used up its credits.
+		for ( int i = 0 ; i <= lanes.length ; ++i )
+		{
+			if ( credits > 0 && !lanes[turn].isEmpty() )
+			{
+				--credits;
+				
+				return turn;
+			}
+			
+			turn    = (turn + 1) % lanes.length;
+			credits = weights[turn];
+		}
+		
+		return -1;
+		
+	}   // end of nextWeightedLane()
+	
+	
+	/**
+	 * Flushes all messages in the fifo Queue without processing them.
+	 * The flushed messages are released.
+	 */
+	public void flush()
+	{
+		lock.lock();
+		try
+		{
+			++flushCount;
+			
+			for ( MsgRing lane : lanes )
+			{
+				MsgCapsule msg;
+				
+				while ( (msg = lane.poll()) != null )
+				{
+					msg.release();
+					++flushedMessages;
+				}
+			}
+			
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	public boolean isEmpty()
+	{
+		lock.lock();
+		try
+		{
+			if ( !oobQueue.isEmpty() )
+			{
+				return false;
+			}
+			
+			for ( MsgRing lane : lanes )
+			{
+				if ( !lane.isEmpty() )
+				{
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the Pipeline counters.
+	 * 
+	 * @return Returns the counters as they are at this moment.
+	 */
+	public PipelineStats getStats()
+	{
+		lock.lock();
+		try
+		{
+			return new PipelineStats( oobEnqueued + fifoEnqueued, dequeuedCount,
+					oobEnqueued, fifoEnqueued, currentDepth(), highWaterDepth,
+					droppedCount, rejectedCount, unsupportedCount,
+					conflatedCount, expiredCount,
+					flushCount, flushedMessages, queueWait.copy() );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return Returns the number of messages thrown away because their time
+	 *         to live passed while they were waiting in the Pipeline.
+	 */
+	public long getExpiredCount()
+	{
+		lock.lock();
+		try
+		{
+			return expiredCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	public int getLaneCount()
+	{
+		lock.lock();
+		try
+		{
+			return lanes.length;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @param lane The lane in question.
+	 * 
+	 * @return Returns the number of messages waiting in the lane.
+	 */
+	public int getLaneDepth( int lane )
+	{
+		lock.lock();
+		try
+		{
+			return lanes[lane].size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @param lane The lane in question.
+	 * 
+	 * @return Returns the number of messages that have been added to the
+	 *         lane.  Conflated messages that replaced a waiting message are
+	 *         not counted.
+	 */
+	public long getLaneEnqueued( int lane )
+	{
+		lock.lock();
+		try
+		{
+			return laneEnqueued[lane];
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return Returns the maximum number of messages that can wait in each
+	 *         fifo lane or UNBOUNDED if there is no limit.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	public PipelineOverflowPolicy getOverflowPolicy()
+	{
+		return policy;
+	}
+	
+	/**
+	 * Turns conflation of ConflatingMessages on or off.
+	 * 
+	 * @param enable Set to @b true so that a new conflating message replaces
+	 *               a waiting one with the same class and key.  Set to
+	 *               @b false to queue every message.
+	 */
+	public void setConflation( boolean enable )
+	{
+		lock.lock();
+		try
+		{
+			conflation = enable;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return Returns the number of waiting messages that were replaced by
+	 *         newer conflating messages.
+	 */
+	public long getConflatedCount()
+	{
+		lock.lock();
+		try
+		{
+			return conflatedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return Returns the number of messages thrown away because the
+	 *         Pipeline was full.
+	 */
+	public long getDroppedCount()
+	{
+		lock.lock();
+		try
+		{
+			return droppedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return Returns the number of messages refused because the Pipeline
+	 *         was full.
+	 */
+	public long getRejectedCount()
+	{
+		lock.lock();
+		try
+		{
+			return rejectedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return Returns the number of messages refused because this Pipeline
+	 *         does not support their class.
+	 */
+	public long getUnsupportedCount()
+	{
+		lock.lock();
+		try
+		{
+			return unsupportedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 
@@ -0,0 +1,33 @@
+/**
+ * @file PipelineFullException.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * Thrown by a bounded Pipeline using the REJECT overflow policy when a
+ * message is sent while the Pipeline is full.
+ */
+public class PipelineFullException extends PipelineIllegalParameterException
+{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2276410538717945523L;
+
+	/**
+	 * @param message
+	 */
+	public PipelineFullException(String message)
+	{
+		super(message);
+	}
+
+}   // end of class PipelineFullException
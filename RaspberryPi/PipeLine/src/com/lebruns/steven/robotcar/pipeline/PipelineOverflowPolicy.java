@@ -0,0 +1,31 @@
+/**
+ * @file PipelineOverflowPolicy.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Overflow Policy determines what a bounded Pipeline does when a sender
+ * tries to add a message and the Pipeline is already full.
+ *
+ *   BLOCK        -- The sender waits until the consumer makes room.
+ *   DROP_OLDEST  -- The oldest waiting message is thrown away to make room.
+ *   DROP_NEWEST  -- The new message is thrown away.
+ *   REJECT       -- The new message is refused and the sender is told by
+ *                   a PipelineFullException.
+ *
+ * Every dropped or rejected message is counted by the Pipeline.
+ */
+public enum PipelineOverflowPolicy
+{
+	BLOCK,
+	DROP_OLDEST,
+	DROP_NEWEST,
+	REJECT;
+}
@@ -0,0 +1,174 @@
+/**
+ * @file PipelineStats.java
+ *
+ *
+ */
+/**
+ * @copyright Statement goes here.
+ */
+package com.lebruns.steven.robotcar.pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A PipelineStats is a snapshot of the counters kept by a Pipeline.  The
+ * values do not change after the snapshot is taken, so they can be shown
+ * or compared at leisure while the Pipeline keeps running.
+ */
+public class PipelineStats
+{
+	private final long enqueued;
+	private final long dequeued;
+	private final long oobEnqueued;
+	private final long fifoEnqueued;
+	private final int  depth;
+	private final int  highWaterDepth;
+	private final long dropped;
+	private final long rejected;
+	private final long unsupported;
+	private final long conflated;
+	private final long expired;
+	private final long flushes;
+	private final long flushedMessages;
+
+	private final LatencyHistogram queueWait;
+
+	/**
+	 * Constructor used by Pipeline to record the snapshot.
+	 */
+	PipelineStats( long enqueued,     long dequeued,
+	               long oobEnqueued,  long fifoEnqueued,
+	               int  depth,        int  highWaterDepth,
+	               long dropped,      long rejected,
+	               long unsupported,
+	               long conflated,    long expired,
+	               long flushes,      long flushedMessages,
+	               LatencyHistogram queueWait )
+	{
+		this.enqueued        = enqueued;
+		this.dequeued        = dequeued;
+		this.oobEnqueued     = oobEnqueued;
+		this.fifoEnqueued    = fifoEnqueued;
+		this.depth           = depth;
+		this.highWaterDepth  = highWaterDepth;
+		this.dropped         = dropped;
+		this.rejected        = rejected;
+		this.unsupported     = unsupported;
+		this.conflated       = conflated;
+		this.expired         = expired;
+		this.flushes         = flushes;
+		this.flushedMessages = flushedMessages;
+		this.queueWait       = queueWait;
+	}
+
+	/**
+	 * @return Returns the number of messages added to the Pipeline.
+	 */
+	public long getEnqueued()
+	{
+		return enqueued;
+	}
+
+	/**
+	 * @return Returns the number of messages handed to the consumer.
+	 */
+	public long getDequeued()
+	{
+		return dequeued;
+	}
+
+	public long getOutOfBandEnqueued()
+	{
+		return oobEnqueued;
+	}
+
+	public long getFifoEnqueued()
+	{
+		return fifoEnqueued;
+	}
+
+	/**
+	 * @return Returns the number of messages waiting when the snapshot
+	 *         was taken.
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return Returns the largest number of messages that have been
+	 *         waiting at the same time.
+	 */
+	public int getHighWaterDepth()
+	{
+		return highWaterDepth;
+	}
+
+	public long getDropped()
+	{
+		return dropped;
+	}
+
+	public long getRejected()
+	{
+		return rejected;
+	}
+
+	/**
+	 * @return Returns the number of messages refused because the Pipeline
+	 *         does not support their class.
+	 */
+	public long getUnsupported()
+	{
+		return unsupported;
+	}
+
+	public long getConflated()
+	{
+		return conflated;
+	}
+
+	public long getExpired()
+	{
+		return expired;
+	}
+
+	/**
+	 * @return Returns the number of times the Pipeline was flushed.
+	 */
+	public long getFlushes()
+	{
+		return flushes;
+	}
+
+	/**
+	 * @return Returns the number of messages thrown away by flushes.
+	 */
+	public long getFlushedMessages()
+	{
+		return flushedMessages;
+	}
+
+	/**
+	 * @return Returns the histogram of the time, in nanoseconds, that
+	 *         messages waited between being sent and being handed to the
+	 *         consumer.
+	 */
+	public LatencyHistogram getQueueWait()
+	{
+		return queueWait;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("in=%d (oob=%d fifo=%d) out=%d depth=%d high=%d " +
+				"dropped=%d rejected=%d unsupported=%d conflated=%d expired=%d " +
+				"flushes=%d flushed=%d wait: %s",
+				enqueued, oobEnqueued, fifoEnqueued, dequeued, depth,
+				highWaterDepth, dropped, rejected, unsupported, conflated, expired,
+				flushes, flushedMessages, queueWait);
+	}
+
+}   // end of class PipelineStats
@@ -22,11 +22,51 @@ public enum ArduinoCmdType
 	
 	String cmdType;
 	
+	static private final ArduinoCmdType[] values = values();
+	
 	ArduinoCmdType( String value )
 	{
 		this.cmdType = value;
 	}
 	
+	/**
+	 * Finds the command type for an Arduino code, such as "FR", held in a
+	 * byte buffer, without creating a String.
+	 * 
+	 * @param data   The buffer holding the code.
+	 * @param start  Where the code starts in the buffer.
+	 * @param length The length of the code.
+	 * 
+	 * @return Returns the matching command type or UNKNOWN if the code is
+	 *         not recognized.
+	 */
+	static public ArduinoCmdType fromCode( byte[] data, int start, int length )
+	{
+		for ( ArduinoCmdType type : values )
+		{
+			String code = type.cmdType;
+			
+			if ( type == UNKNOWN || code.length() != length )
+			{
+				continue;
+			}
+			
+			int i = 0;
+			
+			while ( i < length && code.charAt(i) == data[start + i] )
+			{
+				++i;
+			}
+			
+			if ( i == length )
+			{
+				return type;
+			}
+		}
+		
+		return UNKNOWN;
+	}
+	
 	public String toString()
 	{
 		return this.cmdType;
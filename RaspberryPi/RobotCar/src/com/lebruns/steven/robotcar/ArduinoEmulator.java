@@ -0,0 +1,1141 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Arduino Emulator plays the part of the Arduino running the CmdCenter
+ * sketch, so the Arduino Controllers can be run and load tested without
+ * the car.  It is a SerialTransport and is used where USBDevice would be.
+ *
+ * The emulator follows the sketch:
+ *   -- open() boots the emulated Arduino and waits for its Ready banner,
+ *      as USBDevice does when it finds the Arduino.
+ *   -- Commands are read one byte at a time and handled one at a time.
+ *      Messages that are not commands, and commands the sketch does not
+ *      know, are ignored without an answer.
+ *   -- TW, SW and FR are answered as the sketch answers them, including
+ *      the error responses for bad Turn Wheels arguments.  The sketch
+ *      does not handle SR yet; the emulator answers it with the four wheel
+ *      speeds.
+ *
+ * Timing is modelled as well as the protocol:
+ *   -- Every byte takes ten bit times to cross the wire, in each
+ *      direction, at the configured baud rate.
+ *   -- Each command keeps the emulated Arduino busy for its processing
+ *      delay.  Find Range also waits for the sonar servo and for each
+ *      ping, as the Sonar class and the NewPing library do.
+ *   -- The Arduino's receive buffer holds RX_BUFFER bytes.  Bytes arriving
+ *      while it is full are lost, as they are on the car.
+ *
+ * The sonar readings come from a RangeProfile, and faults can be injected:
+ * lost, corrupted and error responses, stalls, and a lost link.
+ *
+ * The emulated Arduino runs on its own daemon thread.  Instances are
+ * thread-safe.
+ */
+public class ArduinoEmulator implements SerialTransport
+{
+	/**
+	 * Gives the distance the sonar would measure.
+	 */
+	@FunctionalInterface
+	public interface RangeProfile
+	{
+		/**
+		 * @param angle   Where the sonar points, -90 to 90 degrees, zero
+		 *                being straight ahead.
+		 * @param elapsed Nanoseconds since the link was opened.
+		 *
+		 * @return Returns the distance to the nearest obstacle in
+		 *         centimeters.
+		 */
+		int rangeAt( int angle, long elapsed );
+	}
+
+	static public final int DEFAULT_BAUD = 9600;
+
+	/**
+	 * Size of the Arduino's serial receive buffer.
+	 */
+	static public final int RX_BUFFER = 64;
+
+	/**
+	 * Error code sent for an injected error response.
+	 */
+	static public final int INJECTED_ERROR = 0x01FF;
+
+	/**
+	 * A start bit, eight data bits and a stop bit.
+	 */
+	static private final int  BITS_PER_BYTE = 10;
+
+	/**
+	 * Time each command keeps the Arduino busy unless set otherwise.
+	 */
+	static private final long DEFAULT_PROCESSING = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * The Sonar class waits SERVO_SETTLE after turning the sonar, NewPing
+	 * waits PING_INTERVAL between the pings of a median reading, and an
+	 * echo takes ECHO_PER_CM for each centimeter of range.
+	 */
+	static private final long SERVO_SETTLE  = TimeUnit.MILLISECONDS.toNanos(50);
+	static private final long PING_INTERVAL = TimeUnit.MILLISECONDS.toNanos(29);
+	static private final long ECHO_PER_CM   = TimeUnit.MICROSECONDS.toNanos(58);
+
+	/**
+	 * Sonar defaults of the Find Range command.
+	 */
+	static private final int  MAX_RANGE     = 400;
+
+	static private final String BANNER = "\nReady\n";
+
+	/**
+	 * Sizes of the emulated wire in each direction, of a command and of a
+	 * response.  A command longer than MAX_COMMAND is thrown away.
+	 */
+	static private final int  LINE_CAPACITY = 4096;
+	static private final int  MAX_COMMAND   = 64;
+	static private final int  MAX_TOKENS    = 10;
+	static private final int  MAX_REPLY     = 96;
+
+	/**
+	 * Bytes on their way across the wire in one direction, with the time
+	 * each one arrives at the far end.
+	 */
+	static private final class Line
+	{
+		final byte[] data = new byte[LINE_CAPACITY];
+		final long[] time = new long[LINE_CAPACITY];
+
+		/**
+		 * data[start..end) holds the bytes not yet taken by the far end.
+		 */
+		int  start = 0;
+		int  end   = 0;
+
+		/**
+		 * The time the last byte sent arrives.
+		 */
+		long clock = 0;
+
+		/**
+		 * Queues a byte behind those already on the wire.
+		 *
+		 * @return Returns false if there was no room for the byte.
+		 */
+		boolean send( byte b, long now, long byteTime )
+		{
+			if ( end == data.length && start > 0 )
+			{
+				System.arraycopy(data, start, data, 0, end - start);
+				System.arraycopy(time, start, time, 0, end - start);
+
+				end  -= start;
+				start = 0;
+			}
+
+			if ( end == data.length )
+			{
+				return false;
+			}
+
+			clock = Math.max(clock, now) + byteTime;
+
+			data[end] = b;
+			time[end] = clock;
+			++end;
+
+			return true;
+		}
+
+		/**
+		 * @return Returns the number of bytes that have arrived by now.
+		 */
+		int arrived( long now )
+		{
+			int i = start;
+
+			while ( i < end && time[i] - now <= 0 )
+			{
+				++i;
+			}
+
+			return i - start;
+		}
+
+		/**
+		 * Removes count bytes, starting offset bytes after the first one.
+		 */
+		void remove( int offset, int count )
+		{
+			int from = start + offset + count;
+
+			System.arraycopy(data, from, data, from - count, end - from);
+			System.arraycopy(time, from, time, from - count, end - from);
+
+			end -= count;
+		}
+
+		boolean isEmpty()
+		{
+			return start == end;
+		}
+
+		void clear()
+		{
+			start = 0;
+			end   = 0;
+			clock = 0;
+		}
+
+	}   // end of class Line
+
+	private final ReentrantLock lock        = new ReentrantLock();
+	private final Condition     hostSide    = lock.newCondition();
+	private final Condition     arduinoSide = lock.newCondition();
+
+	/**
+	 * Bytes from the Raspberry Pi to the Arduino and back.
+	 */
+	private final Line toArduino   = new Line();
+	private final Line fromArduino = new Line();
+
+	private volatile boolean open       = false;
+	private Thread           cmdCenter  = null;
+
+	/**
+	 * Counts the times the emulated Arduino was booted, so it can drop a
+	 * command it was part way through reading when the link was lost.
+	 */
+	private int              generation = 0;
+	private int              served     = 0;
+
+	private long             openedAt   = 0;
+	private volatile long    stallUntil = 0;
+
+	/*
+	 * Configuration.
+	 */
+	private volatile long         byteTime  = byteTime(DEFAULT_BAUD);
+	private volatile long         bootDelay = 0;
+	private volatile RangeProfile profile   = constant(200);
+
+	private final Map<ArduinoCmdType, Long> processing =
+			new EnumMap<ArduinoCmdType, Long>(ArduinoCmdType.class);
+
+	private volatile double responseLoss = 0.0;
+	private volatile double corruption   = 0.0;
+	private volatile double errorRate    = 0.0;
+
+	private final Random    random       = new Random();
+
+	/*
+	 * State of the emulated Arduino, only used by its thread.
+	 */
+	private final byte[]     command     = new byte[MAX_COMMAND];
+	private int              cmdLength   = 0;
+	private boolean          skipping    = false;
+
+	private final int[]      tokenStart  = new int[MAX_TOKENS];
+	private final int[]      tokenLength = new int[MAX_TOKENS];
+	private int              tokens      = 0;
+
+	private final ByteBuffer reply       = ByteBuffer.allocate(MAX_REPLY);
+
+	private final int[]      speeds      = new int[Wheels.values().length];
+
+	/*
+	 * Counters.
+	 */
+	private volatile long commands   = 0;
+	private volatile long responses  = 0;
+	private volatile long overruns   = 0;
+	private volatile long lost       = 0;
+	private volatile long corrupted  = 0;
+	private volatile long errors     = 0;
+	private volatile long stalls     = 0;
+	private volatile long disconnects = 0;
+
+	/**
+	 * Constructor for an emulator at DEFAULT_BAUD with no faults, that
+	 * sees an obstacle 200 cm away in every direction.
+	 */
+	public ArduinoEmulator()
+	{
+		for ( ArduinoCmdType type : ArduinoCmdType.values() )
+		{
+			processing.put(type, DEFAULT_PROCESSING);
+		}
+	}
+
+	/**
+	 * @return Returns a profile with an obstacle at the same distance in
+	 *         every direction.
+	 */
+	static public RangeProfile constant( int range )
+	{
+		return (angle, elapsed) -> range;
+	}
+
+	/**
+	 * @return Returns a profile with an obstacle that starts out start
+	 *         centimeters away and comes closer by speed centimeters a
+	 *         second, until it is right in front of the sonar.
+	 */
+	static public RangeProfile approaching( int start, int speed )
+	{
+		return (angle, elapsed) ->
+			Math.max( 2, start - (int) (speed * elapsed / TimeUnit.SECONDS.toNanos(1)) );
+	}
+
+	/*
+	 * Configuration.  May be changed while the emulator runs.
+	 */
+
+	public void setBaudRate( int baud )
+	{
+		byteTime = byteTime(baud);
+	}
+
+	/**
+	 * Sets how long the Arduino takes to boot before it sends its Ready
+	 * banner.  The Arduino resets when the port is opened.
+	 */
+	public void setBootDelay( long delay, TimeUnit unit )
+	{
+		bootDelay = unit.toNanos(delay);
+	}
+
+	/**
+	 * Sets how long a type of command keeps the Arduino busy.  For Find
+	 * Range, the sonar time is added to it.
+	 */
+	public void setProcessingDelay( ArduinoCmdType type, long delay, TimeUnit unit )
+	{
+		synchronized ( processing )
+		{
+			processing.put(type, unit.toNanos(delay));
+		}
+	}
+
+	public void setRangeProfile( RangeProfile ranges )
+	{
+		profile = ranges;
+	}
+
+	/**
+	 * Sets the fraction of commands that are carried out but not answered.
+	 */
+	public void setResponseLoss( double probability )
+	{
+		responseLoss = probability;
+	}
+
+	/**
+	 * Sets the fraction of responses that have one byte damaged.
+	 */
+	public void setCorruption( double probability )
+	{
+		corruption = probability;
+	}
+
+	/**
+	 * Sets the fraction of commands that are answered with an
+	 * INJECTED_ERROR error response instead of being carried out.
+	 */
+	public void setErrorRate( double probability )
+	{
+		errorRate = probability;
+	}
+
+	/**
+	 * Seeds the choice of the commands that faults are injected into, so a
+	 * run can be repeated.
+	 */
+	public void setSeed( long seed )
+	{
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Makes the emulated Arduino stop reading and answering for a while.
+	 * Commands that arrive meanwhile pile up in its receive buffer.
+	 */
+	public void stall( long time, TimeUnit unit )
+	{
+		++stalls;
+
+		stallUntil = System.nanoTime() + unit.toNanos(time);
+	}
+
+	/**
+	 * Boots the emulated Arduino and waits for its Ready banner.  Anything
+	 * left on the wire from an earlier connection is lost.
+	 */
+	public void open()
+	{
+		lock.lock();
+		try
+		{
+			if ( cmdCenter == null )
+			{
+				cmdCenter = new Thread(this::serve, "CmdCenter");
+				cmdCenter.setDaemon(true);
+				cmdCenter.start();
+			}
+
+			toArduino.clear();
+			fromArduino.clear();
+
+			++generation;
+			open       = false;
+			openedAt   = System.nanoTime();
+			stallUntil = 0;
+
+			Arrays.fill(speeds, 0);
+
+			long boot = openedAt + bootDelay;
+
+			for ( int i = 0 ; i < BANNER.length() ; ++i )
+			{
+				fromArduino.send( (byte) BANNER.charAt(i), boot, byteTime );
+			}
+
+			// Read the banner, as USBDevice does while looking for the
+			// Arduino.
+			long remaining;
+
+			while ( (remaining = fromArduino.clock - System.nanoTime()) > 0 )
+			{
+				hostSide.awaitNanos(remaining);
+			}
+
+			fromArduino.clear();
+
+			open = true;
+
+			hostSide.signalAll();
+			arduinoSide.signalAll();
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+	}   // end of open()
+
+	/**
+	 * Drops the link, as when the USB cable is pulled.  Bytes on the wire
+	 * are lost.  open() connects again, which reboots the Arduino.
+	 */
+	public void disconnect()
+	{
+		lock.lock();
+		try
+		{
+			if ( open )
+			{
+				++disconnects;
+			}
+
+			open = false;
+
+			toArduino.clear();
+			fromArduino.clear();
+
+			hostSide.signalAll();
+			arduinoSide.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the link, as disconnect() does.
+	 *
+	 * @see com.lebruns.steven.robotcar.SerialTransport#linkLost()
+	 */
+	@Override
+	public void linkLost()
+	{
+		disconnect();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.lebruns.steven.robotcar.SerialTransport#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read( ByteBuffer dst )
+		throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if ( !open )
+			{
+				throw new IOException("Emulated Arduino link is not open");
+			}
+
+			for ( ; ; )
+			{
+				long now   = System.nanoTime();
+				int  ready = fromArduino.arrived(now);
+
+				if ( ready > 0 || dst.remaining() == 0 )
+				{
+					int count = Math.min(ready, dst.remaining());
+
+					dst.put(fromArduino.data, fromArduino.start, count);
+					fromArduino.start += count;
+
+					return count;
+				}
+
+				if ( fromArduino.isEmpty() )
+				{
+					hostSide.await();
+				}
+				else
+				{
+					hostSide.awaitNanos(fromArduino.time[fromArduino.start] - now);
+				}
+
+				if ( !open )
+				{
+					return -1;
+				}
+			}
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("Interrupted while reading");
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+	}   // end of read()
+
+	/* (non-Javadoc)
+	 * @see com.lebruns.steven.robotcar.SerialTransport#write(byte[])
+	 */
+	@Override
+	public void write( byte[] buffer )
+		throws IOException
+	{
+		send(buffer, 0, buffer.length);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.lebruns.steven.robotcar.SerialTransport#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void write( ByteBuffer src )
+		throws IOException
+	{
+		send(src.array(), src.arrayOffset() + src.position(), src.remaining());
+
+		src.position(src.limit());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.lebruns.steven.robotcar.SerialTransport#write(java.lang.String)
+	 */
+	@Override
+	public void write( String data )
+		throws IOException
+	{
+		write( data.getBytes(StandardCharsets.US_ASCII) );
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * @return Returns TEXT.  The sketch only speaks the text protocol.
+	 */
+	@Override
+	public Framing getFraming()
+	{
+		return Framing.TEXT;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.lebruns.steven.robotcar.SerialTransport#awaitOpen(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public boolean awaitOpen( long timeout, TimeUnit unit )
+	{
+		long remaining = unit.toNanos(timeout);
+
+		lock.lock();
+		try
+		{
+			while ( !open && remaining > 0 )
+			{
+				remaining = hostSide.awaitNanos(remaining);
+			}
+
+			return open;
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+
+			return open;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Returns the number of commands the emulated Arduino read.
+	 */
+	public long getCommandCount()
+	{
+		return commands;
+	}
+
+	public long getResponseCount()
+	{
+		return responses;
+	}
+
+	/**
+	 * @return Returns the number of bytes lost because the Arduino's
+	 *         receive buffer was full.
+	 */
+	public long getOverrunCount()
+	{
+		return overruns;
+	}
+
+	/**
+	 * @return Returns the number of responses dropped on purpose.
+	 */
+	public long getLostCount()
+	{
+		return lost;
+	}
+
+	public long getCorruptedCount()
+	{
+		return corrupted;
+	}
+
+	/**
+	 * @return Returns the number of injected error responses.
+	 */
+	public long getErrorCount()
+	{
+		return errors;
+	}
+
+	public long getStallCount()
+	{
+		return stalls;
+	}
+
+	public long getDisconnectCount()
+	{
+		return disconnects;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("commands=%d responses=%d overrunBytes=%d lost=%d corrupted=%d errors=%d stalls=%d disconnects=%d",
+				commands, responses, overruns, lost, corrupted, errors, stalls, disconnects);
+	}
+
+	static private long byteTime( int baud )
+	{
+		return TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / baud;
+	}
+
+	/**
+	 * Puts bytes from the Raspberry Pi on the wire to the Arduino.
+	 */
+	private void send( byte[] data, int offset, int length )
+		throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if ( !open )
+			{
+				throw new IOException("Emulated Arduino link is not open");
+			}
+
+			long now = System.nanoTime();
+
+			for ( int i = offset ; i < offset + length ; ++i )
+			{
+				if ( !toArduino.send(data[i], now, byteTime) )
+				{
+					++overruns;
+				}
+			}
+
+			arduinoSide.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The loop() of the sketch.  Reads commands one byte at a time and
+	 * handles each one when its terminator arrives.
+	 */
+	private void serve()
+	{
+		for ( ; ; )
+		{
+			int data = nextByte();
+
+			if ( data < 0 )
+			{
+				// Rebooted.
+				cmdLength = 0;
+				skipping  = false;
+				continue;
+			}
+
+			if ( data == ';' )
+			{
+				if ( !skipping )
+				{
+					handle();
+				}
+
+				cmdLength = 0;
+				skipping  = false;
+			}
+			else if ( cmdLength < MAX_COMMAND )
+			{
+				command[cmdLength++] = (byte) data;
+			}
+			else
+			{
+				skipping = true;
+			}
+		}
+
+	}   // end of serve()
+
+	/**
+	 * Waits for the next byte to arrive in the Arduino's receive buffer.
+	 * Bytes that arrived while the buffer was full are thrown away first.
+	 *
+	 * @return Returns the byte, or -1 if the Arduino was rebooted since the
+	 *         last byte.
+	 */
+	private int nextByte()
+	{
+		lock.lock();
+		try
+		{
+			for ( ; ; )
+			{
+				if ( served != generation )
+				{
+					served = generation;
+					return -1;
+				}
+
+				if ( !open || toArduino.isEmpty() )
+				{
+					arduinoSide.awaitUninterruptibly();
+					continue;
+				}
+
+				long now  = System.nanoTime();
+				long wait = Math.max(toArduino.time[toArduino.start] - now, stallUntil - now);
+
+				if ( wait > 0 )
+				{
+					arduinoSide.awaitNanos(wait);
+					continue;
+				}
+
+				int arrived = toArduino.arrived(now);
+
+				if ( arrived > RX_BUFFER )
+				{
+					toArduino.remove(RX_BUFFER, arrived - RX_BUFFER);
+					overruns += arrived - RX_BUFFER;
+				}
+
+				return toArduino.data[toArduino.start++] & 0xFF;
+			}
+		}
+		catch ( InterruptedException exc )
+		{
+			// The emulator thread is never interrupted.
+			return -1;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+	}   // end of nextByte()
+
+	/**
+	 * Handles a command, as processCmd() and the command classes of the
+	 * sketch do, and sends the response once the Arduino is done with it.
+	 */
+	private void handle()
+	{
+		split();
+
+		if ( tokens < 3 || tokenLength[0] != 1 || command[tokenStart[0]] != 'C' )
+		{
+			return;
+		}
+
+		int            id   = toInt(1);
+		ArduinoCmdType type = ArduinoCmdType.fromCode(command, tokenStart[2], tokenLength[2]);
+
+		if ( type == ArduinoCmdType.UNKNOWN )
+		{
+			return;
+		}
+
+		++commands;
+
+		long busy;
+
+		synchronized ( processing )
+		{
+			busy = processing.get(type);
+		}
+
+		reply.clear();
+
+		if ( random.nextDouble() < errorRate )
+		{
+			++errors;
+
+			startError(id, type, INJECTED_ERROR);
+			addText("Injected Fault");
+		}
+		else
+		{
+			switch ( type )
+			{
+			case StopWheels:
+				Arrays.fill(speeds, 0);
+				startResponse(id, type);
+				break;
+
+			case TurnWheels:
+				turnWheels(id, type);
+				break;
+
+			case FindRange:
+				busy += findRange(id, type);
+				break;
+
+			case StatusReport:
+			default:
+				startResponse(id, type);
+				addSpeeds();
+				break;
+			}
+		}
+
+		CommandMsg.putText(reply, CommandMsg.TERMINATOR);
+
+		pause( System.nanoTime() + busy );
+
+		if ( random.nextDouble() < responseLoss )
+		{
+			++lost;
+			return;
+		}
+
+		if ( random.nextDouble() < corruption )
+		{
+			++corrupted;
+
+			int at = random.nextInt(reply.position());
+
+			reply.put(at, (byte) (reply.get(at) ^ (1 + random.nextInt(255))));
+		}
+
+		respond();
+
+	}   // end of handle()
+
+	/**
+	 * Turn Wheels, as TurnCommand.  The arguments are an op code followed
+	 * by one speed for all wheels, one per side or one per wheel.
+	 */
+	private void turnWheels( int id, ArduinoCmdType type )
+	{
+		int nargs = tokens - 3;
+
+		if ( nargs < 2 )
+		{
+			startError(id, type, 0x0101);
+			addText("Syntax Error - Number of Arguments = ");
+			CommandMsg.putInt(reply, nargs);
+			return;
+		}
+
+		int opCode = toInt(3);
+
+		switch ( opCode )
+		{
+		case 1:
+			setWheels( toInt(4), toInt(4), toInt(4), toInt(4) );
+			break;
+
+		case 2:
+			if ( nargs < 3 )
+			{
+				startError(id, type, 0x0103);
+				addText("OpCode 2, # Arguments = ");
+				CommandMsg.putInt(reply, nargs);
+				addText(" instead of 3");
+				return;
+			}
+
+			setWheels( toInt(4), toInt(5), toInt(4), toInt(5) );
+			break;
+
+		case 4:
+			if ( nargs < 5 )
+			{
+				startError(id, type, 0x0104);
+				addText("OpCode 4, # Arguments = ");
+				CommandMsg.putInt(reply, nargs);
+				addText(" instead of 5");
+				return;
+			}
+
+			setWheels( toInt(4), toInt(5), toInt(6), toInt(7) );
+			break;
+
+		default:
+			startError(id, type, 0x0102);
+			addText("Unknown OpCode[");
+			CommandMsg.putInt(reply, opCode);
+			CommandMsg.putText(reply, "]");
+			return;
+		}
+
+		startResponse(id, type);
+		addSpeeds();
+
+	}   // end of turnWheels()
+
+	/**
+	 * Find Range, as SonarCommand.  The arguments are the angle, the
+	 * number of pings and the maximum range, all optional.
+	 *
+	 * @return Returns the time the sonar takes.
+	 */
+	private long findRange( int id, ArduinoCmdType type )
+	{
+		int angle    = ( tokens > 3 ) ? toInt(3) : 0 ;
+		int repeat   = ( tokens > 4 ) ? toInt(4) : 1 ;
+		int maxRange = ( tokens > 5 ) ? toInt(5) : MAX_RANGE ;
+
+		int range = profile.rangeAt(angle, System.nanoTime() - openedAt);
+
+		if ( range <= 0 || range > maxRange )
+		{
+			// No echo.
+			range = 0;
+		}
+
+		startResponse(id, type);
+		addNumber(range);
+		addNumber(angle);
+
+		return SERVO_SETTLE + ( (repeat > 1) ? repeat * PING_INTERVAL :
+				ECHO_PER_CM * ((range == 0) ? maxRange : range) );
+
+	}   // end of findRange()
+
+	private void setWheels( int leftFront, int rightFront, int leftRear, int rightRear )
+	{
+		speeds[Wheels.LEFT_FRONT.ordinal()]  = Math.min( Math.abs(leftFront),  255 );
+		speeds[Wheels.RIGHT_FRONT.ordinal()] = Math.min( Math.abs(rightFront), 255 );
+		speeds[Wheels.LEFT_REAR.ordinal()]   = Math.min( Math.abs(leftRear),   255 );
+		speeds[Wheels.RIGHT_REAR.ordinal()]  = Math.min( Math.abs(rightRear),  255 );
+	}
+
+	private void startResponse( int id, ArduinoCmdType type )
+	{
+		reply.clear();
+
+		CommandMsg.putText(reply, CommandMsg.RESPONSE);
+		addNumber(id);
+		addText(type.toString());
+	}
+
+	private void startError( int id, ArduinoCmdType type, int code )
+	{
+		reply.clear();
+
+		CommandMsg.putText(reply, CommandMsg.ERROR);
+		addNumber(id);
+		addText(type.toString());
+		addNumber(code);
+		CommandMsg.putText(reply, CommandMsg.SEPARATOR);
+	}
+
+	private void addSpeeds()
+	{
+		for ( int speed : speeds )
+		{
+			addNumber(speed);
+		}
+	}
+
+	private void addNumber( int value )
+	{
+		CommandMsg.putText(reply, CommandMsg.SEPARATOR);
+		CommandMsg.putInt(reply, value);
+	}
+
+	private void addText( String text )
+	{
+		if ( reply.position() > 0 && reply.get(reply.position() - 1) != ':' )
+		{
+			CommandMsg.putText(reply, CommandMsg.SEPARATOR);
+		}
+
+		CommandMsg.putText(reply, text);
+	}
+
+	/**
+	 * Puts the reply on the wire to the Raspberry Pi.
+	 */
+	private void respond()
+	{
+		lock.lock();
+		try
+		{
+			if ( !open || served != generation )
+			{
+				// The link was lost while the command was handled.
+				return;
+			}
+
+			long now = System.nanoTime();
+
+			for ( int i = 0 ; i < reply.position() ; ++i )
+			{
+				fromArduino.send(reply.get(i), now, byteTime);
+			}
+
+			++responses;
+
+			hostSide.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Keeps the emulated Arduino busy until the deadline, or longer if it
+	 * was told to stall.
+	 */
+	private void pause( long deadline )
+	{
+		long remaining;
+
+		while ( (remaining = Math.max(deadline, stallUntil) - System.nanoTime()) > 0 )
+		{
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+
+	/**
+	 * Splits the command into its colon separated tokens.
+	 */
+	private void split()
+	{
+		tokens = 0;
+
+		int start = 0;
+
+		for ( int i = 0 ; i <= cmdLength && tokens < MAX_TOKENS ; ++i )
+		{
+			if ( i == cmdLength || command[i] == ':' )
+			{
+				tokenStart[tokens]  = start;
+				tokenLength[tokens] = i - start;
+				++tokens;
+
+				start = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return Returns the number a token starts with, or 0 if it does not
+	 *         start with one, as String.toInt() does on the Arduino.
+	 */
+	private int toInt( int token )
+	{
+		int     i        = tokenStart[token];
+		int     end      = i + tokenLength[token];
+		boolean negative = false;
+		int     value    = 0;
+
+		if ( i < end && command[i] == '-' )
+		{
+			negative = true;
+			++i;
+		}
+
+		while ( i < end && command[i] >= '0' && command[i] <= '9' )
+		{
+			value = value * 10 + (command[i] - '0');
+			++i;
+		}
+
+		return negative ? -value : value;
+	}
+
+}   // end of class ArduinoEmulator
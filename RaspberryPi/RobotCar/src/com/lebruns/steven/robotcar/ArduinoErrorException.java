@@ -0,0 +1,37 @@
+/**
+ * 
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * Completes the reply of a submitted command when the Arduino answers the
+ * command with an error.
+ */
+public class ArduinoErrorException extends Exception
+{
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4127794581349275140L;
+	
+	private final ArduinoResponse response;
+
+	/**
+	 * @param response The error response sent by the Arduino.
+	 */
+	public ArduinoErrorException(ArduinoResponse response)
+	{
+		super("Arduino error " + response.getErrorCode() + ": " + response.getErrorMessage());
+		
+		this.response = response;
+	}
+	
+	public ArduinoResponse getResponse()
+	{
+		return response;
+	}
+
+}   // end of class ArduinoErrorException
@@ -19,11 +19,33 @@ public enum ArduinoMsgType
 	
 	String msgType;
 	
+	static private final ArduinoMsgType[] values = values();
+	
 	ArduinoMsgType(String type)
 	{
 		msgType = type;
 	}
 	
+	/**
+	 * Finds the message type for an Arduino code, such as 'R', held in a
+	 * byte, without creating a String.
+	 * 
+	 * @return Returns the matching message type or @b null if the code is
+	 *         not recognized.
+	 */
+	static public ArduinoMsgType fromCode( byte code )
+	{
+		for ( ArduinoMsgType type : values )
+		{
+			if ( type.msgType.charAt(0) == code )
+			{
+				return type;
+			}
+		}
+		
+		return null;
+	}
+	
 	public String toString()
 	{
 		return msgType;
@@ -0,0 +1,135 @@
+/**
+ * 
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.Arrays;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * An Arduino Response is the answer the Arduino sent for a command, handed
+ * to whoever submitted the command through CommandController.submit().
+ * 
+ * Syntax of the responses:
+ *    R:<MsgID>:<CmdType>[:<Arg>...];
+ *    E:<MsgID>:<CmdType>:<ErrorCode>:<ErrorMessage>;
+ * 
+ * The arguments are the fields that follow the command type.
+ */
+public class ArduinoResponse
+{
+	// Find Range arguments
+	static private final int DISTANCE = 0;
+	static private final int ANGLE    = 1;
+	
+	// Error arguments
+	static private final int ERROR_CODE    = 0;
+	static private final int ERROR_MESSAGE = 1;
+	
+	private final ArduinoMsgType msgType;
+	private final int            msgId;
+	private final ArduinoCmdType cmdType;
+	private final String[]       args;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param msgType Response or Error.
+	 * @param msgId   The message ID of the command being answered.
+	 * @param cmdType The type of command being answered.
+	 * @param args    The fields that follow the command type.  The array
+	 *                becomes part of the response and must not be changed.
+	 */
+	ArduinoResponse( ArduinoMsgType msgType, int msgId, 
+	                        ArduinoCmdType cmdType, String[] args )
+	{
+		this.msgType = msgType;
+		this.msgId   = msgId;
+		this.cmdType = cmdType;
+		this.args    = args;
+	}
+	
+	/**
+	 * Constructor that copies a message decoded by the ResponseParser.
+	 */
+	ArduinoResponse( ParsedResponse parsed )
+	{
+		this( parsed.getMsgType(), parsed.getMsgId(), parsed.getCmdType(), parsed.getArgTexts() );
+	}
+	
+	public ArduinoMsgType getMsgType()
+	{
+		return msgType;
+	}
+	
+	public int getMsgId()
+	{
+		return msgId;
+	}
+	
+	public ArduinoCmdType getCmdType()
+	{
+		return cmdType;
+	}
+	
+	public boolean isError()
+	{
+		return msgType == ArduinoMsgType.ERROR;
+	}
+	
+	public int getArgCount()
+	{
+		return args.length;
+	}
+	
+	public String getArg( int index )
+	{
+		return args[index];
+	}
+	
+	/**
+	 * @return Returns an argument as a number.
+	 * 
+	 * @exception Throws a NumberFormatException if the argument is not a
+	 *            number.
+	 */
+	public int getIntArg( int index )
+	{
+		return Integer.parseInt( args[index] );
+	}
+	
+	/**
+	 * @return Returns the distance, in centimeters, found by a Find Range
+	 *         command.
+	 */
+	public int getDistance()
+	{
+		return getIntArg( DISTANCE );
+	}
+	
+	/**
+	 * @return Returns the direction, in degrees, of a Find Range command.
+	 */
+	public int getAngle()
+	{
+		return getIntArg( ANGLE );
+	}
+	
+	public String getErrorCode()
+	{
+		return ( isError() && args.length > ERROR_CODE ) ? args[ERROR_CODE] : null ;
+	}
+	
+	public String getErrorMessage()
+	{
+		return ( isError() && args.length > ERROR_MESSAGE ) ? args[ERROR_MESSAGE] : null ;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return msgType + ":" + msgId + ":" + cmdType + " " + Arrays.toString(args);
+	}
+
+}   // end of class ArduinoResponse
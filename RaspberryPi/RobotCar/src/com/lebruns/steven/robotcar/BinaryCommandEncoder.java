@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Binary Command Encoder writes Command Messages as binary frames,
+ * laid out as described in BinaryFrame.  It is the binary counterpart of
+ * CommandMsg.encodeTo() and is used instead when binary framing has been
+ * agreed with the Arduino.
+ *
+ * With a two byte message ID, a Turn Wheels command takes 12 bytes against
+ * about 28 for its text form, and a Stop Wheels command 7 bytes against 10.
+ */
+final class BinaryCommandEncoder
+{
+	static private final Wheels[] WHEELS = Wheels.values();
+
+	private BinaryCommandEncoder()
+	{
+	}
+
+	/**
+	 * Writes a command as a binary frame, starting at the buffer's
+	 * position, which is advanced past it.  Nothing is allocated.
+	 *
+	 * @param command The command.
+	 * @param dst     The buffer.  It must have at least
+	 *                CommandMsg.MAX_ENCODED_LENGTH bytes remaining.
+	 */
+	static void encode( CommandMsg command, ByteBuffer dst )
+	{
+		ArduinoCmdType type  = command.getArduinoCmdType();
+		int            start = dst.position();
+
+		dst.put(BinaryFrame.SYNC);
+		dst.put( (byte) 0 );            // Length, filled in below.
+		dst.put( (byte) 'C' );
+		dst.put(BinaryFrame.codeOf(type));
+
+		BinaryFrame.putVarint(dst, command.getMsgId());
+
+		switch ( type )
+		{
+		case TurnWheels:
+			putWheels( (MotorMsg) command, dst );
+			break;
+
+		case FindRange:
+			RangeMsg range = (RangeMsg) command;
+
+			BinaryFrame.putSignedVarint(dst, range.getAngle());
+			dst.put( (byte) range.getAttempts() );
+			BinaryFrame.putVarint(dst, range.getRange());
+			break;
+
+		default:
+			// No payload.
+		}
+
+		int length = dst.position() - start - 2;
+
+		dst.put(start + 1, (byte) length);
+		dst.put(BinaryFrame.crc(dst, start + 1, length + 1));
+
+	}   // end of encode()
+
+	/**
+	 * Writes the sign byte and the four wheel speeds.
+	 */
+	static private void putWheels( MotorMsg motor, ByteBuffer dst )
+	{
+		int signs = dst.position();
+		int mask  = 0;
+
+		dst.put( (byte) 0 );
+
+		for ( Wheels wheel : WHEELS )
+		{
+			int speed = motor.getWheelSpeed(wheel);
+
+			if ( speed < 0 )
+			{
+				mask |= 1 << wheel.ordinal();
+				speed = -speed;
+			}
+
+			dst.put( (byte) Math.min(speed, 255) );
+		}
+
+		dst.put(signs, (byte) mask);
+	}
+
+}   // end of class BinaryCommandEncoder
@@ -0,0 +1,176 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The layout of the compact binary frames that can be used on the link
+ * with the Arduino instead of the text protocol, and the helpers shared by
+ * the BinaryCommandEncoder and the BinaryResponseDecoder.
+ *
+ * Every frame is:
+ *
+ *    SYNC <Length> <MsgType> <CmdType> <MsgID> <Payload...> <CRC>
+ *
+ *   SYNC     -- 0xA5, marks the start of a frame.
+ *   Length   -- Number of bytes from MsgType to the end of the payload.
+ *   MsgType  -- 'C', 'R' or 'E', as in the text protocol.
+ *   CmdType  -- 1 Stop Wheels, 2 Turn Wheels, 3 Find Range,
+ *               4 Status Report.
+ *   MsgID    -- Unsigned varint, 7 bits per byte, low bits first.
+ *   CRC      -- CRC-8 (polynomial 0x07) of Length through the payload.
+ *
+ * Command payloads:
+ *   Stop Wheels  -- None.
+ *   Turn Wheels  -- A sign byte, one bit per wheel that turns backwards
+ *                   (LeftFront, RightFront, LeftRear, RightRear from bit 0),
+ *                   then the four speeds, 0 to 255, in the same order.
+ *   Find Range   -- Angle as a signed varint, attempts as a byte and the
+ *                   maximum range as an unsigned varint.
+ *
+ * Response payloads are the arguments of the text response, each as a
+ * signed varint.  An error payload is the error code as a signed varint
+ * followed by the error message in ASCII.
+ *
+ * Signed varints are zigzag encoded, so small negative numbers stay short.
+ */
+final class BinaryFrame
+{
+	static final byte SYNC = (byte) 0xA5;
+
+	/**
+	 * SYNC, Length and CRC.
+	 */
+	static final int  OVERHEAD   = 3;
+
+	/**
+	 * The longest frame, which is long enough for any error message the
+	 * Arduino sends.
+	 */
+	static final int  MAX_LENGTH = 64;
+
+	static final byte STOP_WHEELS   = 1;
+	static final byte TURN_WHEELS   = 2;
+	static final byte FIND_RANGE    = 3;
+	static final byte STATUS_REPORT = 4;
+
+	/**
+	 * CRC-8 of every byte value, polynomial 0x07.
+	 */
+	static private final byte[] CRC_TABLE = new byte[256];
+
+	static
+	{
+		for ( int i = 0 ; i < 256 ; ++i )
+		{
+			int crc = i;
+
+			for ( int bit = 0 ; bit < 8 ; ++bit )
+			{
+				crc = ( (crc & 0x80) != 0 ) ? (crc << 1) ^ 0x07 : (crc << 1) ;
+			}
+
+			CRC_TABLE[i] = (byte) crc;
+		}
+	}
+
+	private BinaryFrame()
+	{
+	}
+
+	/**
+	 * @return Returns the CRC-8 of data[start..start+length).
+	 */
+	static byte crc( byte[] data, int start, int length )
+	{
+		int crc = 0;
+
+		for ( int i = start ; i < start + length ; ++i )
+		{
+			crc = CRC_TABLE[ (crc ^ data[i]) & 0xFF ];
+		}
+
+		return (byte) crc;
+	}
+
+	/**
+	 * @return Returns the CRC-8 of the bytes of a buffer from start to
+	 *         start+length, without moving its position.
+	 */
+	static byte crc( ByteBuffer buffer, int start, int length )
+	{
+		int crc = 0;
+
+		for ( int i = start ; i < start + length ; ++i )
+		{
+			crc = CRC_TABLE[ (crc ^ buffer.get(i)) & 0xFF ];
+		}
+
+		return (byte) crc;
+	}
+
+	/**
+	 * @return Returns the binary code of a command type, or 0 for UNKNOWN.
+	 */
+	static byte codeOf( ArduinoCmdType type )
+	{
+		switch ( type )
+		{
+		case StopWheels:   return STOP_WHEELS;
+		case TurnWheels:   return TURN_WHEELS;
+		case FindRange:    return FIND_RANGE;
+		case StatusReport: return STATUS_REPORT;
+		default:           return 0;
+		}
+	}
+
+	/**
+	 * @return Returns the command type of a binary code.
+	 */
+	static ArduinoCmdType typeOf( byte code )
+	{
+		switch ( code )
+		{
+		case STOP_WHEELS:   return ArduinoCmdType.StopWheels;
+		case TURN_WHEELS:   return ArduinoCmdType.TurnWheels;
+		case FIND_RANGE:    return ArduinoCmdType.FindRange;
+		case STATUS_REPORT: return ArduinoCmdType.StatusReport;
+		default:            return ArduinoCmdType.UNKNOWN;
+		}
+	}
+
+	/**
+	 * Writes a number that is not negative as a varint.
+	 */
+	static void putVarint( ByteBuffer dst, int value )
+	{
+		while ( (value & ~0x7F) != 0 )
+		{
+			dst.put( (byte) ((value & 0x7F) | 0x80) );
+			value >>>= 7;
+		}
+
+		dst.put( (byte) value );
+	}
+
+	/**
+	 * Writes a number that may be negative as a zigzag varint.
+	 */
+	static void putSignedVarint( ByteBuffer dst, int value )
+	{
+		putVarint( dst, (value << 1) ^ (value >> 31) );
+	}
+
+	/**
+	 * @return Returns the zigzag decoded value of a varint.
+	 */
+	static int unzigzag( int value )
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}   // end of class BinaryFrame
@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Binary Response Decoder reads binary frames, laid out as described
+ * in BinaryFrame, from a SerialTransport and decodes them into a
+ * ParsedResponse.  It is the binary counterpart of the FrameExtractor and
+ * the ResponseParser, used when binary framing has been agreed with the
+ * Arduino.
+ *
+ * Bytes are read in bulk into a single reusable buffer and frames are
+ * decoded in place, so nothing is allocated.  A frame whose CRC does not
+ * match is skipped by looking for the next SYNC byte after its start.
+ *
+ * This class is @b not thread-safe.  It is meant to be used by a single
+ * thread, the Response Controller.
+ */
+class BinaryResponseDecoder
+{
+	static final int DEFAULT_CAPACITY = 256;
+
+	private final byte[]     data;
+	private final ByteBuffer buffer;
+
+	/**
+	 * data[start..end) holds the bytes read and not yet decoded.
+	 */
+	private int  start  = 0;
+	private int  end    = 0;
+
+	/**
+	 * Position of the next byte while a frame is decoded, and whether a
+	 * varint ran past the end of the frame.
+	 */
+	private int     cursor  = 0;
+	private boolean overrun = false;
+
+	private long decoded   = 0;
+	private long crcErrors = 0;
+	private long malformed = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The size of the buffer.  Must be longer than
+	 *                 BinaryFrame.MAX_LENGTH.
+	 */
+	BinaryResponseDecoder( int capacity )
+	{
+		data   = new byte[capacity];
+		buffer = ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Reads whatever the transport has available into the buffer, waiting
+	 * for at least one byte.
+	 *
+	 * @return Returns the number of bytes read, or -1 if the link was
+	 *         closed.
+	 *
+	 * @throws IOException Thrown by the transport.
+	 */
+	int fill( SerialTransport transport )
+		throws IOException
+	{
+		if ( start == end )
+		{
+			start = 0;
+			end   = 0;
+		}
+		else if ( end == data.length )
+		{
+			System.arraycopy(data, start, data, 0, end - start);
+
+			end  -= start;
+			start = 0;
+		}
+
+		buffer.limit(data.length);
+		buffer.position(end);
+
+		int count = transport.read(buffer);
+
+		if ( count > 0 )
+		{
+			end = buffer.position();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Decodes the next complete, well formed frame in the bytes already
+	 * read.  Frames that are damaged or malformed are counted and skipped.
+	 *
+	 * @param response Filled in with the fields of the frame.
+	 *
+	 * @return Returns true if a frame was decoded.  Returns false if more
+	 *         bytes are needed.
+	 */
+	boolean nextFrame( ParsedResponse response )
+	{
+		for ( ; ; )
+		{
+			while ( start < end && data[start] != BinaryFrame.SYNC )
+			{
+				++start;
+			}
+
+			if ( end - start < 2 )
+			{
+				return false;
+			}
+
+			int length = data[start + 1] & 0xFF;
+
+			if ( length < 3 || length > BinaryFrame.MAX_LENGTH - BinaryFrame.OVERHEAD )
+			{
+				// Not the start of a frame.
+				++malformed;
+				++start;
+				continue;
+			}
+
+			int total = length + BinaryFrame.OVERHEAD;
+
+			if ( end - start < total )
+			{
+				return false;
+			}
+
+			if ( BinaryFrame.crc(data, start + 1, length + 1) != data[start + total - 1] )
+			{
+				++crcErrors;
+				++start;
+				continue;
+			}
+
+			boolean ok = decode(start + 2, length, response);
+
+			start += total;
+
+			if ( ok )
+			{
+				++decoded;
+				return true;
+			}
+
+			++malformed;
+		}
+
+	}   // end of nextFrame()
+
+	/**
+	 * Throws away every byte read, such as a partial frame left when the
+	 * link was lost.
+	 */
+	void clear()
+	{
+		start = 0;
+		end   = 0;
+	}
+
+	long getDecodedCount()
+	{
+		return decoded;
+	}
+
+	/**
+	 * @return Returns the number of frames skipped because their CRC did
+	 *         not match.
+	 */
+	long getCrcErrorCount()
+	{
+		return crcErrors;
+	}
+
+	long getMalformedCount()
+	{
+		return malformed;
+	}
+
+	/**
+	 * Decodes the body of a frame, from MsgType to the end of the payload.
+	 */
+	private boolean decode( int first, int length, ParsedResponse response )
+	{
+		int last = first + length;
+
+		response.clear(data);
+
+		response.msgType = ArduinoMsgType.fromCode(data[first]);
+		response.cmdType = BinaryFrame.typeOf(data[first + 1]);
+
+		if ( response.msgType != ArduinoMsgType.RESPONSE &&
+				response.msgType != ArduinoMsgType.ERROR )
+		{
+			return false;
+		}
+
+		cursor  = first + 2;
+		overrun = false;
+
+		response.msgId = readVarint(last);
+
+		if ( response.msgType == ArduinoMsgType.ERROR )
+		{
+			if ( cursor < last )
+			{
+				addNumber(response, BinaryFrame.unzigzag(readVarint(last)));
+			}
+
+			if ( cursor < last )
+			{
+				// The rest of the frame is the error message.
+				int arg = response.argCount++;
+
+				response.argStart[arg]  = cursor;
+				response.argLength[arg] = last - cursor;
+				response.numeric[arg]   = false;
+				response.args[arg]      = 0;
+
+				cursor = last;
+			}
+		}
+		else
+		{
+			while ( cursor < last && !overrun )
+			{
+				if ( response.argCount == ParsedResponse.MAX_ARGS )
+				{
+					return false;
+				}
+
+				addNumber(response, BinaryFrame.unzigzag(readVarint(last)));
+			}
+		}
+
+		return !overrun && response.msgId >= 0;
+
+	}   // end of decode()
+
+	static private void addNumber( ParsedResponse response, int value )
+	{
+		int arg = response.argCount++;
+
+		response.argStart[arg]  = 0;
+		response.argLength[arg] = 0;
+		response.numeric[arg]   = true;
+		response.args[arg]      = value;
+	}
+
+	/**
+	 * Reads a varint at the cursor, which is advanced past it.  Sets
+	 * overrun if the varint runs past the end of the frame or is too long.
+	 */
+	private int readVarint( int last )
+	{
+		int value = 0;
+
+		for ( int shift = 0 ; shift < 35 ; shift += 7 )
+		{
+			if ( cursor >= last )
+			{
+				break;
+			}
+
+			byte b = data[cursor++];
+
+			value |= (b & 0x7F) << shift;
+
+			if ( (b & 0x80) == 0 )
+			{
+				return value;
+			}
+		}
+
+		overrun = true;
+
+		return 0;
+	}
+
+}   // end of class BinaryResponseDecoder
@@ -15,9 +15,6 @@ import javax.microedition.io.Connector;
 import javax.microedition.io.StreamConnection;
 import javax.microedition.io.StreamConnectionNotifier;
 
-import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
-import com.lebruns.steven.robotcar.pipeline.PipelineIllegalParameterException;
-
 /**
  * @author Steven F. LeBrun
  * 
@@ -59,6 +56,14 @@ public class BlueDotNavigatorController extends Controller
 	private static final int  BLUEDOT_RELEASE    = 0;
 	private static final int  BLUEDOT_PRESS      = 1;
 	private static final int  BLUEDOT_MOVE       = 2;
+	
+	/**
+	 * Trace ID and arrival time of the line being processed.  Every
+	 * command sent for a line carries them so its latency is measured from
+	 * the moment the line was read.
+	 */
+	private int  lineCount = 0;
+	private long lineTime  = 0;
 
 	/**
 	 * @param type
@@ -289,6 +294,9 @@ public class BlueDotNavigatorController extends Controller
 			}
 		}   // end of inner loop
 		
+		// Show where the time went while this client was driving.
+		LatencyTracer.getInstance().dump(System.out);
+		
 		return;
 		
 	}   // end of processClient()
@@ -309,6 +317,9 @@ public class BlueDotNavigatorController extends Controller
 		final int  Y_POS     = 2;
 		final int  MAX_PARTS = 3;
 		
+		lineTime = System.nanoTime();
+		++lineCount;
+		
 		// Split up line into its three components
 		String[]  parts = line.split(",");
 		
@@ -339,19 +350,13 @@ public class BlueDotNavigatorController extends Controller
 		return true;
 	}   // end of processLine()
 
+	/**
+	 * The Drive Ticker sends the stop right away.
+	 */
 	private void stopCar()
 	{
-		MsgCapsule message = new MotorMsg(0);
+		DriveTicker.getInstance().stop(lineCount, lineTime);
 		
-		try
-		{
-			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(message);
-			
-		} catch (PipelineIllegalParameterException exc)
-		{
-			// TODO Auto-generated catch block
-			
-		}
 	}   // end of stopCar()
 	
 	private void moveCar( double xpos, double ypos )
@@ -387,7 +392,8 @@ public class BlueDotNavigatorController extends Controller
 		
 		System.out.println(String.format("Speed = %d", speed));
 		
-		MsgCapsule message = null;
+		// The Drive Ticker sends the latest of these at a steady rate.
+		DriveTicker drive = DriveTicker.getInstance();
 
 		
 		double pXPos = Math.abs(xpos);
@@ -403,7 +409,7 @@ public class BlueDotNavigatorController extends Controller
 		if ( pXPos < delta )
 		{
 			// Go Straight (forward or backwards)
-			message = new MotorMsg( speed );
+			drive.setSpeed( speed, lineCount, lineTime );
 		}
 		else
 		{
@@ -429,17 +435,7 @@ public class BlueDotNavigatorController extends Controller
 			
 			System.out.println(String.format("Turn Radius = %f", turnRate));
 			
-			message = new MotorMsg( turnRight, speed, (int) turnRate );
-		}
-		
-		try
-		{
-			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(message);
-			
-		} catch (PipelineIllegalParameterException exc)
-		{
-			// TODO Auto-generated catch block
-			
+			drive.setTurn( turnRight, speed, (int) turnRate, lineCount, lineTime );
 		}
 
 	}   // end of moveCar()
@@ -4,10 +4,20 @@
 package com.lebruns.steven.robotcar;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
+import com.lebruns.steven.robotcar.pipeline.MsgDispatcher;
 import com.lebruns.steven.robotcar.pipeline.OutOfBandMessage;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
+import com.lebruns.steven.robotcar.pipeline.PipelineIllegalParameterException;
 
 /**
  * @author Steven F. LeBrun
@@ -15,8 +25,34 @@ import com.lebruns.steven.robotcar.pipeline.Pipeline;
  */
 public class CommandController extends Controller
 {
+	/**
+	 * The maximum number of commands sent to the Arduino in one write.
+	 */
+	static private final int MAX_BATCH = 16;
+	
+	/**
+	 * Pending commands are checked for timeouts every ACK_TICK.  The timer
+	 * wheel covers WHEEL_SIZE ticks per trip.
+	 */
+	static private final long ACK_TICK   = TimeUnit.MILLISECONDS.toNanos(10);
+	static private final int  WHEEL_SIZE = 256;
+	
+	/**
+	 * The number of times a command using the RETRANSMIT action is sent
+	 * again before it is dropped.
+	 */
+	static private final int  MAX_RETRIES = 2;
+	
+	/**
+	 * Default time the Arduino has to answer each type of command, in
+	 * milliseconds.  Moving the wheels is quick; finding a range averages
+	 * several sonar readings and may turn the sonar first.
+	 */
+	static private final long WHEELS_TIMEOUT = 250;
+	static private final long RANGE_TIMEOUT  = 1000;
+	
 	private MailBag   bag     = null;
-	private USBDevice arduino = null;
+	private SerialTransport arduino = null;
 	
 	private boolean   keepRunning = true;
 	
@@ -25,11 +61,96 @@ public class CommandController extends Controller
 	
 	private boolean   movingState = false;
 	
+	/**
+	 * Caps the number of commands waiting for an answer.  Null means there
+	 * is no cap.
+	 */
+	private CreditWindow window   = null;
+	
+	/**
+	 * What the wheels were last told to do, used to skip Motor Messages
+	 * that would barely change it.
+	 */
+	private WheelState   wheels   = new WheelState();
+	
+	/**
+	 * Keeps motor commands from waiting behind range findings and reports
+	 * how busy each class of traffic keeps the link.  Null means commands
+	 * are written as they come.
+	 */
+	private LinkScheduler scheduler = null;
+	
+	/**
+	 * Commands the Link Scheduler is holding back, oldest first.
+	 */
+	private List<MsgCapsule> held   = new ArrayList<MsgCapsule>(LinkScheduler.MAX_HELD + MAX_BATCH);
+	
+	/**
+	 * Reusable holders for a batch of commands and the bytes sent for them.
+	 * The buffer only grows if more than MAX_BATCH commands are sent at
+	 * once, which can happen when many are retransmitted.
+	 */
+	private List<MsgCapsule> batch  = new ArrayList<MsgCapsule>(MAX_BATCH);
+	private ByteBuffer       buffer = ByteBuffer.allocate(MAX_BATCH * CommandMsg.MAX_ENCODED_LENGTH);
+	
+	/**
+	 * The message IDs and deadlines of the commands in the write under way,
+	 * kept so they can be taken back if the write fails.
+	 */
+	private int[]            sentIds       = new int[MAX_BATCH];
+	private long[]           sentDeadlines = new long[MAX_BATCH];
+	
+	private LatencyTracer    tracer = LatencyTracer.getInstance();
+	
+	/**
+	 * Set to print every write to the Arduino on standard out.  Off by
+	 * default, since printing each write costs more than the write itself;
+	 * the Latency Tracer times the writes either way.
+	 */
+	private volatile boolean echo   = false;
+	
+	/**
+	 * Handlers for the commands that need looking at before they are sent.
+	 * Commands without a handler are sent as they are.
+	 */
+	private MsgDispatcher    handlers = new MsgDispatcher();
+	
+	/**
+	 * Deadlines of the commands waiting for an answer, and what to do
+	 * when the deadline passes, by command type.
+	 */
+	private TimerWheel       pending   = new TimerWheel(ACK_TICK, WHEEL_SIZE,
+			MailBag.DEFAULT_IN_FLIGHT, System.nanoTime());
+	
+	private Map<ArduinoCmdType, Long>          ackTimeout =
+			new EnumMap<ArduinoCmdType, Long>(ArduinoCmdType.class);
+	private Map<ArduinoCmdType, TimeoutAction> onTimeout  =
+			new EnumMap<ArduinoCmdType, TimeoutAction>(ArduinoCmdType.class);
+	
+	private final TimerWheel.Expiry onExpired = this::commandTimedOut;
+	
+	/**
+	 * Commands to send again and whether the car must be stopped, filled
+	 * in while checking for timeouts.  Commands to send again wait here
+	 * until the Credit Window has credits for them.
+	 */
+	private List<MsgCapsule> resend    = new ArrayList<MsgCapsule>(MAX_BATCH);
+	private boolean          stopCar   = false;
+	
+	/**
+	 * Timeout counters.  Only changed by the Command Controller thread.
+	 */
+	private volatile long    timeouts       = 0;
+	private volatile long    retransmits    = 0;
+	private volatile long    dropped        = 0;
+	private volatile long    emergencyStops = 0;
+	private volatile long    unsent         = 0;
+	
 
 	/**
 	 * @param type
 	 */
-	public CommandController(USBDevice device, MailBag mailBag)
+	public CommandController(SerialTransport device, MailBag mailBag)
 	{
 		super(PipeSink.COMMAND_SINK);
 		
@@ -40,7 +161,7 @@ public class CommandController extends Controller
 	 * @param type
 	 * @param arg0
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, Runnable arg0)
+	public CommandController(SerialTransport device, MailBag mailBag, Runnable arg0)
 	{
 		super(PipeSink.COMMAND_SINK, arg0);
 		
@@ -51,7 +172,7 @@ public class CommandController extends Controller
 	 * @param type
 	 * @param arg0
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, String arg0)
+	public CommandController(SerialTransport device, MailBag mailBag, String arg0)
 	{
 		super(PipeSink.COMMAND_SINK, arg0);
 		
@@ -63,7 +184,7 @@ public class CommandController extends Controller
 	 * @param arg0
 	 * @param arg1
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, ThreadGroup arg0, Runnable arg1)
+	public CommandController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, Runnable arg1)
 	{
 		super(PipeSink.COMMAND_SINK, arg0, arg1);
 		
@@ -75,7 +196,7 @@ public class CommandController extends Controller
 	 * @param arg0
 	 * @param arg1
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, ThreadGroup arg0, String arg1)
+	public CommandController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, String arg1)
 	{
 		super(PipeSink.COMMAND_SINK, arg0, arg1);
 		
@@ -87,7 +208,7 @@ public class CommandController extends Controller
 	 * @param arg0
 	 * @param arg1
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, Runnable arg0, String arg1)
+	public CommandController(SerialTransport device, MailBag mailBag, Runnable arg0, String arg1)
 	{
 		super(PipeSink.COMMAND_SINK, arg0, arg1);
 		
@@ -100,7 +221,7 @@ public class CommandController extends Controller
 	 * @param arg1
 	 * @param arg2
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2)
+	public CommandController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2)
 	{
 		super(PipeSink.COMMAND_SINK, arg0, arg1, arg2);
 		
@@ -114,7 +235,7 @@ public class CommandController extends Controller
 	 * @param arg2
 	 * @param arg3
 	 */
-	public CommandController(USBDevice device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2, long arg3)
+	public CommandController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2, long arg3)
 	{
 		super(PipeSink.COMMAND_SINK, arg0, arg1, arg2, arg3);
 		
@@ -136,7 +257,7 @@ public class CommandController extends Controller
 	 *
 	 * Used by the constructors.
 	 */
-	private void setup(USBDevice device, MailBag mailBag)
+	private void setup(SerialTransport device, MailBag mailBag)
 	{
 		arduino  = device;
 		bag      = mailBag;
@@ -146,93 +267,730 @@ public class CommandController extends Controller
 		commands = pipes.getPipeline(PipeSink.COMMAND_SINK);
 		watchDog = pipes.getPipeline(PipeSink.WATCHDOG_SINK);
 		
+		handlers.register(MotorMsg.class, this::processMessage);
+		
+		setTimeout(ArduinoCmdType.StopWheels,   WHEELS_TIMEOUT, TimeUnit.MILLISECONDS, TimeoutAction.RETRANSMIT);
+		setTimeout(ArduinoCmdType.TurnWheels,   WHEELS_TIMEOUT, TimeUnit.MILLISECONDS, TimeoutAction.EMERGENCY_STOP);
+		setTimeout(ArduinoCmdType.FindRange,    RANGE_TIMEOUT,  TimeUnit.MILLISECONDS, TimeoutAction.DROP);
+		setTimeout(ArduinoCmdType.StatusReport, RANGE_TIMEOUT,  TimeUnit.MILLISECONDS, TimeoutAction.DROP);
+		setTimeout(ArduinoCmdType.UNKNOWN,      RANGE_TIMEOUT,  TimeUnit.MILLISECONDS, TimeoutAction.DROP);
+		
 		return;
 	}   // end of setup()
 	
 	
 	/**
 	 * Main Thread executable.  This is an infinite loop that waits
-	 * for a new incoming command message and sends it to the Arduino
+	 * for new incoming command messages and sends them to the Arduino.
+	 * 
+	 * All the commands waiting in the Pipeline are taken at once and sent
+	 * to the Arduino in a single write.  At 9600 baud, one write per batch
+	 * instead of one per command noticeably cuts the time commands wait
+	 * when they arrive in bursts.
+	 * 
+	 * With a Credit Window set, no more commands are sent than the window
+	 * has credits for; the rest wait in the Pipeline until answers come
+	 * back.  Out of Band commands, such as an emergency stop, are sent even
+	 * when the window is full.
+	 * 
+	 * Motor Messages that would change no wheel by more than the Wheel
+	 * State's deadband are not sent.
+	 * 
+	 * With a Link Scheduler set, motor commands are written first and
+	 * other commands are held back until the Arduino has time for them.
+	 * 
+	 * A batch taken while the link was being lost is kept, not written,
+	 * until the link is back.
 	 */
 	public void loop()
 	{
-		MsgCapsule message = null;
-		
 		while ( keepRunning )
 		{
-			message = commands.waitForNextCommand();
+			if ( !arduino.isOpen() )
+			{
+				// Hold the commands in the Pipeline, where motor commands
+				// are conflated, until the Link Supervisor restores the link.
+				arduino.awaitOpen(ACK_TICK, TimeUnit.NANOSECONDS);
+				checkTimeouts();
+				continue;
+			}
 			
-			if ( message != null )
+			if ( !batch.isEmpty() )
 			{
-				if ( message instanceof MotorMsg )
+				// A batch taken just before the link was lost goes first,
+				// less the commands that grew too old while waiting.
+				dropExpired(batch);
+				sendBatch();
+				checkTimeouts();
+				continue;
+			}
+			
+			int credits = ( window == null ) ? MAX_BATCH :
+					Math.min( MAX_BATCH, window.available() ) ;
+			int count   = 0;
+			
+			if ( credits == 0 )
+			{
+				count = commands.drainOutOfBand(batch, MAX_BATCH);
+				
+				if ( count == 0 )
 				{
-					processMessage( message );
+					window.awaitCredit( System.nanoTime() + ACK_TICK );
+					checkTimeouts();
+					continue;
 				}
-				sendCommand(message);
 			}
+			else
+			{
+				// Only wake up to check for timeouts while commands are
+				// waiting for an answer.
+				count = ( pending.size() == 0 && held.isEmpty() && resend.isEmpty() ) ?
+						commands.waitForNextBatch(batch, credits) :
+						commands.waitForNextBatch(batch, credits, System.nanoTime() + ACK_TICK) ;
+			}
+			
+			if ( count > 0 )
+			{
+				for ( MsgCapsule message : batch )
+				{
+					handlers.dispatch( message );
+				}
+				
+				skipRedundant(batch);
+			}
+			
+			if ( scheduler != null )
+			{
+				scheduler.arrange(batch, held, Math.max(credits, count), System.nanoTime());
+			}
+			
+			// The link may have been lost while waiting for the batch.
+			// Then the batch is kept until the link is back.
+			if ( arduino.isOpen() )
+			{
+				sendBatch();
+			}
+			
+			checkTimeouts();
+		}
+		
+		for ( MsgCapsule message : batch )
+		{
+			message.release();
+		}
+		
+		batch.clear();
+		
+		for ( MsgCapsule message : held )
+		{
+			message.release();
 		}
 		
+		held.clear();
+		
+		for ( MsgCapsule message : resend )
+		{
+			message.release();
+		}
+		
+		resend.clear();
+		
 		return;
 	}
 	
 	/** 
 	 * Set the termination flag to false so that on the next iteration
 	 * of the run loop, the thread will stop executing.
+	 * 
+	 * The thread is interrupted so that it stops waiting on the Command
+	 * Pipeline.
 	 */
 	public void terminate()
 	{
 		keepRunning = false;
 		
-		PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).notifyAll();
-		this.notifyAll();
+		this.interrupt();
+	}
+	
+	/**
+	 * Sends a command to the Arduino and returns the Arduino's answer when
+	 * it arrives.  The caller does not wait; work can be chained on the
+	 * returned future and runs on the thread that completes it, normally
+	 * the Response Controller, so it should be short.
+	 * 
+	 * The future is completed exceptionally with:
+	 *   ArduinoErrorException    -- The Arduino answered with an error.
+	 *   TimeoutException         -- The Arduino did not answer in time and
+	 *                               the command was given up on.
+	 *   CancellationException    -- The command was thrown away before it
+	 *                               was sent, for example by a flush.
+	 *   PipelineIllegalParameterException
+	 *                            -- The Command Pipeline refused it.
+	 *   IllegalStateException    -- The MailBag had no room to match the
+	 *                               answer, so the command was not sent.
+	 *   IOException              -- The write that carried the command
+	 *                               failed.
+	 * 
+	 * @param command The command.  It belongs to the Command Pipeline from
+	 *                then on and must not be touched by the caller.
+	 * 
+	 * @return Returns the future completed with the Arduino's answer.
+	 */
+	static public CompletableFuture<ArduinoResponse> submit(CommandMsg command)
+	{
+		CompletableFuture<ArduinoResponse> reply = command.expectReply();
+		
+		try
+		{
+			// A command that is not queued has been released, which
+			// cancels the reply.
+			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(command);
+		}
+		catch ( PipelineIllegalParameterException exc )
+		{
+			command.fail(exc);
+		}
+		
+		return reply;
+		
+	}   // end of submit()
+	
+	/**
+	 * Sets how long the Arduino has to answer a type of command and what
+	 * to do if it does not.  Should be called before the controller is
+	 * started.  With a Link Scheduler, the time starts once the Arduino
+	 * is expected to be done with the commands written before, so a
+	 * command sent behind a slow range finding is not timed out for it.
+	 * 
+	 * @param type    The command type.
+	 * @param timeout How long to wait for the answer.
+	 * @param unit    The time unit of the timeout argument.
+	 * @param action  What to do when the answer is late.
+	 */
+	public void setTimeout(ArduinoCmdType type, long timeout, TimeUnit unit, TimeoutAction action)
+	{
+		ackTimeout.put(type, unit.toNanos(timeout));
+		onTimeout.put(type, action);
+	}
+	
+	/**
+	 * Sets the Credit Window that caps the number of commands waiting for
+	 * an answer.  Should be called before the controller is started.
+	 * 
+	 * @param credits The window, or null to send without a cap.
+	 */
+	public void setCreditWindow(CreditWindow credits)
+	{
+		window = credits;
+	}
+	
+	public CreditWindow getCreditWindow()
+	{
+		return window;
+	}
+	
+	/**
+	 * Sets the Link Scheduler that decides when commands other than motor
+	 * commands are written.  Should be called before the controller is
+	 * started.
+	 * 
+	 * @param link The scheduler, or null to write commands as they come.
+	 */
+	public void setLinkScheduler(LinkScheduler link)
+	{
+		scheduler = link;
+	}
+	
+	public LinkScheduler getLinkScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * Turns the printing of every write to the Arduino on or off.  Meant
+	 * for debugging; leave it off when driving the car.
+	 * 
+	 * @param on True to print each write on standard out.
+	 */
+	public void setEchoCommands(boolean on)
+	{
+		echo = on;
+	}
+	
+	public boolean isEchoCommands()
+	{
+		return echo;
+	}
+	
+	/**
+	 * @return Returns the model of what the wheels were last told to do,
+	 *         which holds the deadband and the skip counts.
+	 */
+	public WheelState getWheelState()
+	{
+		return wheels;
+	}
+	
+	public long getTimeoutCount()
+	{
+		return timeouts;
+	}
+	
+	public long getRetransmitCount()
+	{
+		return retransmits;
+	}
+	
+	/**
+	 * @return Returns the number of timed out commands that were given up
+	 *         on, including those that ran out of retransmissions.
+	 */
+	public long getDroppedCount()
+	{
+		return dropped;
+	}
+	
+	/**
+	 * @return Returns the number of times the car was stopped because a
+	 *         command timed out.
+	 */
+	public long getEmergencyStopCount()
+	{
+		return emergencyStops;
+	}
+	
+	/**
+	 * @return Returns the number of commands given up on because the write
+	 *         that carried them failed or the MailBag had no room for them.
+	 */
+	public long getUnsentCount()
+	{
+		return unsent;
+	}
+	
+	/**
+	 * Handles the commands whose deadline has passed, then sends the ones
+	 * being retransmitted and stops the car if needed.
+	 */
+	private void checkTimeouts()
+	{
+		if ( pending.size() == 0 && resend.isEmpty() )
+		{
+			return;
+		}
+		
+		pending.advance(System.nanoTime(), onExpired);
+		
+		if ( !resend.isEmpty() )
+		{
+			sendRetransmits();
+		}
+		
+		if ( stopCar )
+		{
+			stopCar = false;
+			++emergencyStops;
+			
+			try
+			{
+				// Out of Band, so it is sent ahead of anything waiting.
+				commands.put(MessageFactory.emergencyStop());
+
+				// Otherwise the Drive Ticker would see the wheels stopped
+				// and send the move that timed out again.
+				DriveTicker.getInstance().stop();
+			}
+			catch ( Exception exc )
+			{
+				/** @todo Error Handling goes here. */
+			}
+		}
+		
+	}   // end of checkTimeouts()
+	
+	/**
+	 * Sends the batch, if there is one, and empties it.
+	 */
+	private void sendBatch()
+	{
+		if ( !batch.isEmpty() )
+		{
+			sendCommands(batch);
+			batch.clear();
+		}
 	}
 	
 	/**
-	 * Send a Command Message to the Arduino.
+	 * Releases the commands that outlived their time to live while held
+	 * by the Command Controller.
+	 * 
+	 * @param cmds The commands, from which the expired ones are removed.
+	 */
+	private void dropExpired(List<MsgCapsule> cmds)
+	{
+		long now = System.nanoTime();
+		int  i   = 0;
+		
+		while ( i < cmds.size() )
+		{
+			CommandMsg command = (CommandMsg) cmds.get(i);
+			
+			if ( !command.hasExpired(now) )
+			{
+				++i;
+				continue;
+			}
+			
+			cmds.remove(i);
+			
+			if ( isWheelCommand(command) )
+			{
+				// Already counted as sent by the Wheel State.
+				wheels.failed();
+			}
+			
+			command.release();
+		}
+		
+	}   // end of dropExpired()
+	
+	/**
+	 * Sends as many of the commands waiting to be sent again as the Credit
+	 * Window has credits for.  The rest keep waiting, oldest first.  None
+	 * are sent while the link is down.
+	 */
+	private void sendRetransmits()
+	{
+		int credits = ( window == null ) ? resend.size() :
+				Math.min( resend.size(), window.available() ) ;
+		
+		if ( credits == 0 || !arduino.isOpen() )
+		{
+			return;
+		}
+		
+		List<MsgCapsule> retries = resend.subList(0, credits);
+		
+		for ( MsgCapsule cmd : retries )
+		{
+			wheels.sent( (CommandMsg) cmd );
+		}
+		
+		sendCommands(retries);
+		retries.clear();
+		
+	}   // end of sendRetransmits()
+	
+	/**
+	 * Called for each command whose deadline has passed.  If the command is
+	 * still in the MailBag it has not been answered; taking it out of the
+	 * MailBag claims it, so a response arriving now is simply ignored.
 	 * 
-	 * @param command The Command object to be sent.
+	 * @param id The message ID of the command.
 	 */
-	private void sendCommand(MsgCapsule cmd)
+	private void commandTimedOut( int id )
 	{
-		CommandMsg command = (CommandMsg) cmd;
+		CommandMsg command = (CommandMsg) bag.fetch(id);
 		
-		String message = command.getMessage();
+		if ( command == null )
+		{
+			// Answered in time.
+			return;
+		}
+		
+		TimeoutAction action = onTimeout.get(command.getArduinoCmdType());
 		
-		System.out.println(String.format("Command Msg: %s", message));
+		++timeouts;
+		
+		if ( isWheelCommand(command) )
+		{
+			wheels.failed();
+		}
+		
+		if ( window != null )
+		{
+			window.timedOut();
+		}
+		
+		System.out.println("Command " + id + " timed out: " + action);
+		
+		if ( action != TimeoutAction.RETRANSMIT || command.getRetries() >= MAX_RETRIES )
+		{
+			command.fail( new TimeoutException("Command " + id + " was not answered") );
+		}
+		
+		switch ( action )
+		{
+		case RETRANSMIT:
+			if ( command.retried() <= MAX_RETRIES )
+			{
+				++retransmits;
+				resend.add(command);
+			}
+			else
+			{
+				++dropped;
+				command.release();
+			}
+			break;
+			
+		case EMERGENCY_STOP:
+			stopCar = true;
+			command.release();
+			break;
+			
+		case DROP:
+		default:
+			++dropped;
+			command.release();
+		}
+		
+	}   // end of commandTimedOut()
+	
+	/**
+	 * Takes the Motor Messages that are not worth sending out of a batch
+	 * and releases them.  Commands whose answer is waited for are always
+	 * sent.
+	 * 
+	 * @param cmds The Command objects about to be sent.
+	 */
+	private void skipRedundant(List<MsgCapsule> cmds)
+	{
+		int i = 0;
+		
+		while ( i < cmds.size() )
+		{
+			CommandMsg command = (CommandMsg) cmds.get(i);
+			
+			if ( command.expectsReply() )
+			{
+				wheels.sent(command);
+				++i;
+			}
+			else if ( wheels.offer(command) )
+			{
+				++i;
+			}
+			else
+			{
+				cmds.remove(i);
+				command.release();
+			}
+		}
+		
+	}   // end of skipRedundant()
+	
+	static private boolean isWheelCommand(CommandMsg command)
+	{
+		ArduinoCmdType type = command.getArduinoCmdType();
+		
+		return type == ArduinoCmdType.TurnWheels || type == ArduinoCmdType.StopWheels;
+	}
+	
+	/**
+	 * Send a batch of Command Messages to the Arduino in a single write.
+	 * 
+	 * @param cmds The Command objects to be sent, in order.
+	 */
+	private void sendCommands(List<MsgCapsule> cmds)
+	{
+		boolean flush = false;
+		
+		if ( buffer.capacity() < cmds.size() * CommandMsg.MAX_ENCODED_LENGTH )
+		{
+			buffer        = ByteBuffer.allocate(cmds.size() * CommandMsg.MAX_ENCODED_LENGTH);
+			sentIds       = new int[cmds.size()];
+			sentDeadlines = new long[cmds.size()];
+		}
+		
+		buffer.clear();
+		
+		boolean binary   = ( arduino.getFraming() == Framing.BINARY );
+		long    sentTime = System.nanoTime();
+		int     count    = 0;
+		int     i        = 0;
+		
+		while ( i < cmds.size() )
+		{
+			CommandMsg     command  = (CommandMsg) cmds.get(i);
+			ArduinoCmdType type     = command.getArduinoCmdType();
+			TrafficClass   traffic  = TrafficClass.of(command);
+			int            id       = command.getMsgId();
+			long           deadline = sentTime + ackTimeout.get(type);
+			long           busy     = 0;
+			
+			if ( scheduler != null )
+			{
+				// The Arduino answers once it is done with what came before.
+				deadline += scheduler.getBacklog(sentTime);
+				busy      = scheduler.serviceTime(command);
+			}
+			
+			int start = buffer.position();
+			
+			if ( binary )
+			{
+				BinaryCommandEncoder.encode(command, buffer);
+			}
+			else
+			{
+				command.encodeTo(buffer);
+			}
+			
+			// If this is an out of band message, check to see if we need
+			// to flush the pipeline.
+			boolean flushes = ( command instanceof OutOfBandMessage ) &&
+					((OutOfBandMessage) command).flushPipeline();
+			
+			// Mark Command as having been sent and pass it along to
+			// the Arduino Reader.  This is done before the write so that
+			// the response cannot arrive before the command is in the bag.
+			// The command belongs to the Arduino Reader once it is in the
+			// bag and must not be touched after this.
+			command.setSentTime(sentTime);
+			command.hasBeenProcessed();
+			
+			if ( !bag.insert(command) )
+			{
+				// Its answer could never be matched, so it is not sent.
+				buffer.position(start);
+				cmds.remove(i);
+				noRoom(command);
+				continue;
+			}
+			
+			pending.schedule(id, deadline);
+			
+			if ( scheduler != null )
+			{
+				scheduler.sent(traffic, busy, buffer.position() - start, sentTime);
+			}
+			
+			flush |= flushes;
+			
+			sentIds[count]       = id;
+			sentDeadlines[count] = deadline;
+			++count;
+			++i;
+		}
+		
+		if ( count == 0 )
+		{
+			return;
+		}
+		
+		buffer.flip();
+		
+		if ( echo )
+		{
+			echoWrite(count, binary);
+		}
 		
 		try
 		{
-			arduino.write(message);
+			arduino.write(buffer);
 		} 
-		catch (IOException e)
+		catch (IOException exc)
+		{
+			writeFailed(count, exc);
+		}
+		
+		tracer.recordWrite( System.nanoTime() - sentTime );
+		
+		if ( flush )
+		{
+			commands.flush();
+		}
+		
+		return;
+		
+	}   // end of sendCommands()
+
+	/**
+	 * Prints the write in the buffer on standard out.  Text commands are
+	 * printed as they are; binary frames only as a count.
+	 *
+	 * @param count  The number of commands in the write.
+	 * @param binary True if the commands were encoded as binary frames.
+	 */
+	private void echoWrite(int count, boolean binary)
+	{
+		if ( binary )
+		{
+			System.out.println(String.format("Command Msg: %d binary frames, %d bytes",
+					count, buffer.limit()));
+		}
+		else
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			System.out.print("Command Msg: ");
+			System.out.write(buffer.array(), 0, buffer.limit());
+			System.out.println();
 		}
+	}
+
+	/**
+	 * Takes back the commands of a write that failed.  They never reached
+	 * the Arduino, so waiting for their answers would only end in a burst
+	 * of timeouts and retransmissions.  The link is marked as lost, and the
+	 * commands are failed and released.
+	 * 
+	 * @param count The number of commands in the write.
+	 * @param cause Why the write failed.
+	 */
+	private void writeFailed(int count, IOException cause)
+	{
+		arduino.linkLost();
+		
+		System.out.println("Write to Arduino failed: " + cause.getMessage());
 		
-		// If this is an out of band message, check to see if we need
-		// to flush the pipeline.
-		if ( command instanceof OutOfBandMessage )
+		for ( int i = 0 ; i < count ; ++i )
 		{
-			if ( ((OutOfBandMessage) command).flushPipeline() )
+			pending.cancel(sentIds[i], sentDeadlines[i]);
+			
+			// Taking the command out of the MailBag claims it back from
+			// the Arduino Reader.
+			CommandMsg command = (CommandMsg) bag.fetch(sentIds[i]);
+			
+			if ( command == null )
 			{
-				PipeWork pipes = PipeWork.getInstance();
-				
-				Pipeline commands = pipes.getPipeline(PipeSink.COMMAND_SINK);
-				
-				commands.flush();
+				continue;
+			}
+			
+			if ( isWheelCommand(command) )
+			{
+				wheels.failed();
 			}
+			
+			++unsent;
+			
+			command.fail(cause);
+			command.release();
 		}
 		
-		// Mark Command as having been sent and pass it along to
-		// the Arduino Reader.
-		command.hasBeenProcessed();;
+	}   // end of writeFailed()
+	
+	/**
+	 * Gives up on a command the MailBag has no room for.  A full MailBag
+	 * means there is no credit to send it with, and its answer could not
+	 * be matched anyway.
+	 * 
+	 * @param command The command, which is failed and released.
+	 */
+	private void noRoom(CommandMsg command)
+	{
+		System.out.println("MailBag full, command not sent: " + command.getMsgId());
+		
+		if ( isWheelCommand(command) )
+		{
+			wheels.failed();
+		}
 		
-		bag.insert(command);
+		++unsent;
 		
-		return;
+		command.fail( new IllegalStateException("No room in the MailBag for command " + command.getMsgId()) );
+		command.release();
 		
-	}   // end of sendCommand()
+	}   // end of noRoom()
 	
 	
 	/**
@@ -240,42 +998,30 @@ public class CommandController extends Controller
 	 * to move or to stop.  If there is a state change, a message is sent to 
 	 * the WatchDog Controller to start or stop checking ranges so the car
 	 * does not bump into anything while moving.
-	 * @param msg
+	 * @param message
 	 */
-	private void processMessage( MsgCapsule msg )
+	private void processMessage( MotorMsg message )
 	{
-		boolean  stopFlag = false;
-		boolean  moveFlag = false;
-		
-		if ( msg instanceof MotorMsg )
-		{
-			MotorMsg message = (MotorMsg) msg;
-			
-			stopFlag = message.isStopped();
-			moveFlag = true;
-		}
+		boolean  stopFlag = message.isStopped();
 		
 		// Only need to send a message when there is a state change.
-		if ( moveFlag )
+		if ( (stopFlag && movingState) || (!stopFlag && !movingState))
 		{
-			if ( (stopFlag && movingState) || (!stopFlag && !movingState))
+			WatchDogMsg  monitorMsg = MessageFactory.watchDog(!stopFlag);
+			
+			movingState = !stopFlag;
+			
+			System.out.println("Moving State: " + (movingState ? "moving" : "stopped"));
+			
+			try
 			{
-				WatchDogMsg  monitorMsg = new WatchDogMsg(!stopFlag);
-				
-				movingState = !stopFlag;
-				
-				System.out.println("Moving State: " + (movingState ? "moving" : "stopped"));
-				
-				try
-				{
-					watchDog.put(monitorMsg);
-				}
-				catch ( Exception exc )
-				{
-					System.out.println("Attempt to signal WatchDog failed.");
-					System.out.println(exc.getMessage());
-					exc.printStackTrace(System.out);
-				}
+				watchDog.put(monitorMsg);
+			}
+			catch ( Exception exc )
+			{
+				System.out.println("Attempt to signal WatchDog failed.");
+				System.out.println(exc.getMessage());
+				exc.printStackTrace(System.out);
 			}
 		}
 		
@@ -3,6 +3,11 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
 import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 
 /**
@@ -13,17 +18,47 @@ import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
  */
 public abstract class CommandMsg extends MsgCapsule
 {
-	protected final String COMMAND  = "C";
-	protected final String RESPONSE = "R";
-	protected final String ERROR    = "E";
+	/**
+	 * Pieces of the Arduino command syntax.  These are shared by every
+	 * Command Message instead of being stored in each one.
+	 */
+	static protected final String COMMAND  = "C";
+	static protected final String RESPONSE = "R";
+	static protected final String ERROR    = "E";
 
-	protected final String STOP     = "SW";
-	protected final String MOVE     = "TW";
-	protected final String RANGE    = "FR";
-	protected final String STATUS   = "SR";
+	static protected final String STOP     = "SW";
+	static protected final String MOVE     = "TW";
+	static protected final String RANGE    = "FR";
+	static protected final String STATUS   = "SR";
+	
+	static protected final String SEPARATOR  = ":";
+	static protected final String TERMINATOR = ";";
+	
+	/**
+	 * The longest a single encoded command can be:
+	 *   C:<MsgID>:TW:4:<LeftFront>:<RightFront>:<LeftRear>:<RightRear>;
+	 * with every number at its longest.
+	 */
+	static public final int MAX_ENCODED_LENGTH = 48;
+	
+	/**
+	 * The time, as given by System.nanoTime(), at which the command was
+	 * handed to the Arduino link.
+	 */
+	private long sentTime = 0;
+	
+	/**
+	 * Number of times the command has been sent again because the Arduino
+	 * did not answer in time.
+	 */
+	private int  retries  = 0;
+	
+	/**
+	 * Completed with the Arduino's answer when the command was submitted
+	 * by CommandController.submit().  @b null if nobody is waiting.
+	 */
+	private CompletableFuture<ArduinoResponse> reply = null;
 	
-	protected final String SEPARATOR  = ":";
-	protected final String TERMINATOR = ";";
 	/**
 	 * 
 	 */
@@ -32,6 +67,189 @@ public abstract class CommandMsg extends MsgCapsule
 		
 	}
 	
-	public abstract String getMessage();
+	public long getSentTime()
+	{
+		return sentTime;
+	}
+	
+	/**
+	 * Used by the Command Controller to record when the command was sent.
+	 */
+	void setSentTime( long now )
+	{
+		sentTime = now;
+	}
+	
+	public int getRetries()
+	{
+		return retries;
+	}
+	
+	/**
+	 * Used by the Command Controller to count a retransmission.
+	 * 
+	 * @return Returns the number of retransmissions, including this one.
+	 */
+	int retried()
+	{
+		return ++retries;
+	}
+	
+	/**
+	 * Used by CommandController.submit() to ask for the Arduino's answer.
+	 * 
+	 * @return Returns the future completed with the answer.
+	 */
+	CompletableFuture<ArduinoResponse> expectReply()
+	{
+		reply = new CompletableFuture<ArduinoResponse>();
+		
+		return reply;
+	}
+	
+	/**
+	 * @return Returns @b true if someone is waiting for the answer.
+	 */
+	boolean expectsReply()
+	{
+		return reply != null;
+	}
+	
+	/**
+	 * Hands the Arduino's answer to whoever submitted the command.
+	 */
+	void answer( ArduinoResponse response )
+	{
+		if ( reply != null )
+		{
+			reply.complete(response);
+			reply = null;
+		}
+	}
+	
+	/**
+	 * Tells whoever submitted the command that there will be no answer.
+	 */
+	void fail( Throwable cause )
+	{
+		if ( reply != null )
+		{
+			reply.completeExceptionally(cause);
+			reply = null;
+		}
+	}
+	
+	/**
+	 * A command released before it was answered, for example one dropped
+	 * or flushed by the Command Pipeline, cancels its reply so the
+	 * submitter is not left waiting.  Only done once per life, so a late
+	 * release cannot cancel the reply of the command's next life.
+	 * 
+	 * @see com.lebruns.steven.robotcar.pipeline.MsgCapsule#ended()
+	 */
+	@Override
+	protected void ended()
+	{
+		if ( reply != null )
+		{
+			fail( new CancellationException("Command " + getMsgId() + " discarded before it was answered") );
+		}
+	}
+	
+	/**
+	 * @see com.lebruns.steven.robotcar.pipeline.MsgCapsule#reset()
+	 */
+	@Override
+	protected void reset()
+	{
+		sentTime = 0;
+		retries  = 0;
+		reply    = null;
+	}
+	
+	/**
+	 * Writes the Arduino command for this message into a buffer as ASCII,
+	 * starting at the buffer's position, which is advanced past it.
+	 * Nothing is allocated, so commands can be encoded straight into the
+	 * buffer that is written to the Arduino.
+	 * 
+	 * @param dst The buffer.  It must have at least MAX_ENCODED_LENGTH
+	 *            bytes remaining.
+	 * 
+	 * @throws java.nio.BufferOverflowException Thrown if the buffer does
+	 *         not have room for the command.
+	 */
+	public abstract void encodeTo( ByteBuffer dst );
+	
+	/**
+	 * @return Returns the Arduino command for this message as a String.
+	 *         Used for logging; commands are sent with encodeTo().
+	 */
+	public String getMessage()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_ENCODED_LENGTH);
+		
+		encodeTo(buffer);
+		
+		return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Writes the start of every command, "C:<MsgID>:".
+	 */
+	protected void putHeader( ByteBuffer dst )
+	{
+		putText(dst, COMMAND);
+		putText(dst, SEPARATOR);
+		putInt(dst, getMsgId());
+		putText(dst, SEPARATOR);
+	}
+	
+	/**
+	 * Writes a piece of the command syntax, which is plain ASCII.
+	 */
+	static protected void putText( ByteBuffer dst, String text )
+	{
+		for ( int i = 0 ; i < text.length() ; ++i )
+		{
+			dst.put( (byte) text.charAt(i) );
+		}
+	}
+	
+	/**
+	 * Writes a number as ASCII digits, with a leading minus sign if it is
+	 * negative.
+	 */
+	static protected void putInt( ByteBuffer dst, int value )
+	{
+		if ( value == Integer.MIN_VALUE )
+		{
+			putText(dst, Integer.toString(value));
+			return;
+		}
+		
+		if ( value < 0 )
+		{
+			dst.put( (byte) '-' );
+			value = -value;
+		}
+		
+		int divisor = 1;
+		
+		while ( value / divisor >= 10 )
+		{
+			divisor *= 10;
+		}
+		
+		for ( ; divisor > 0 ; divisor /= 10 )
+		{
+			dst.put( (byte) ('0' + (value / divisor) % 10) );
+		}
+	}
+	
+	/**
+	 * @return Returns the Arduino command this message is sent as.
+	 */
+	public abstract ArduinoCmdType getArduinoCmdType();
 
 }
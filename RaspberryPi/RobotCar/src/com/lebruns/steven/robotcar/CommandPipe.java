@@ -3,8 +3,8 @@
  */
 package com.lebruns.steven.robotcar;
 
-import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
+import com.lebruns.steven.robotcar.pipeline.PipelineOverflowPolicy;
 
 /**
  * @author Steven F. LeBrun
@@ -18,22 +18,20 @@ public class CommandPipe extends Pipeline
 	 */
 	public CommandPipe()
 	{
-		
+		supportMessages(CommandMsg.class);
 	}
 
-	/* (non-Javadoc)
-	 * @see com.lebruns.steven.robotcar.pipeline.Pipeline#is_supported(com.lebruns.steven.robotcar.pipeline.MsgCapsule)
+	/**
+	 * Constructor for a bounded Command Pipe.
+	 * 
+	 * @param capacity The maximum number of messages waiting in the pipe.
+	 * @param overflow What to do when the pipe is full.
 	 */
-	@Override
-	public boolean is_supported(MsgCapsule msg)
+	public CommandPipe(int capacity, PipelineOverflowPolicy overflow)
 	{
-		boolean supported = false;
+		super(capacity, overflow);
 		
-		if ( msg instanceof CommandMsg )
-		{
-			supported = true;
-		}
-		return supported;
+		supportMessages(CommandMsg.class);
 	}
 
 }   // end of class CommandPipe
@@ -23,6 +23,7 @@ public class ControlPanel
 	static private Object        lock         = new Object();
 	
 	private Map<ControllerType, Controller>  controllers = null;
+	private LinkSupervisor                   supervisor  = null;
 	
 	/**
 	 * The default and only constructor for this class is private
@@ -138,11 +139,32 @@ public class ControlPanel
 			/** @todo Error Handling goes here. */
 		}
 		
-		Controller arduino_sender =   new CommandController( arduino, bag, "ArduinoWriter");
-		Controller arduino_receiver = new ResponseController( arduino, bag, "ArduinoReader" );
+		// Keeps looking for the Arduino if it was not found and finds it
+		// again whenever the link is lost.
+		supervisor = new LinkSupervisor( arduino );
+		supervisor.start();
+		
+		CommandController  arduino_sender   = new CommandController( arduino, bag, "ArduinoWriter");
+		ResponseController arduino_receiver = new ResponseController( arduino, bag, "ArduinoReader" );
 		
 		// Initialize and Setup of Arduino Controllers goes here.
 		
+		// Keeps the Arduino's receive buffer from overrunning.
+		CreditWindow credits = new CreditWindow( bag );
+		
+		arduino_sender.setCreditWindow( credits );
+		arduino_receiver.setCreditWindow( credits );
+		
+		// Lets the sender skip motor commands that barely change the wheels.
+		arduino_receiver.setWheelState( arduino_sender.getWheelState() );
+		
+		// Lets the Drive Ticker notice motor commands lost after they
+		// were sent.
+		DriveTicker.getInstance().setWheelState( arduino_sender.getWheelState() );
+		
+		// Keeps motor commands from waiting behind the WatchDog's pings.
+		arduino_sender.setLinkScheduler( new LinkScheduler() );
+		
 		// Store reference to controllers for future use.
 		controllers.put(ControllerType.COMMAND, arduino_sender);
 		controllers.put(ControllerType.RESPONSE, arduino_receiver);
@@ -180,6 +202,10 @@ public class ControlPanel
 		
 		controllers.put(ControllerType.BLUEDOT_NAVIGATOR, bluedot_navigator);
 		
+		// The navigators set the desired drive state; the Drive Ticker
+		// turns it into motor commands at a steady rate.
+		DriveTicker.getInstance().start();
+		
 		return;
 		
 	}   // end of initNavigatorControllers()
@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.Arrays;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Credit Window limits how many commands can be waiting for an answer
+ * from the Arduino at the same time.  The Arduino reads commands from a
+ * small receive buffer; if commands are written faster than it handles
+ * them, the buffer overruns and commands are lost.
+ *
+ * Every command in the MailBag has been sent and not yet answered, so the
+ * MailBag size is the number of credits in use.  A credit comes back when
+ * the response arrives or the command times out, and both take the
+ * command out of the MailBag.
+ *
+ * The window adapts to the round trip times.  Each round trip is compared
+ * with the fastest seen for its command type, since a Find Range takes far
+ * longer than a Turn Wheels, and the ratio is smoothed:
+ *   -- While the ratio stays close to one, the Arduino is keeping up, and
+ *      the window grows by one after the sender had to wait for a credit.
+ *   -- When the ratio grows past QUEUE_FACTOR, commands are queueing in
+ *      the Arduino, and the window shrinks by one.
+ *   -- A timeout halves the window.
+ *
+ * The sender is the Command Controller; acks come from the Response
+ * Controller.  Instances are thread-safe.
+ */
+public class CreditWindow
+{
+	static public final int DEFAULT_INITIAL = 2;
+	static public final int DEFAULT_MIN     = 1;
+	static public final int DEFAULT_MAX     = 8;
+
+	/**
+	 * Round trips longer than this many times the fastest round trip mean
+	 * the Arduino is falling behind.
+	 */
+	static private final int QUEUE_FACTOR = 2;
+
+	/**
+	 * Weight, as a shift, of a new round trip in the smoothed values.
+	 */
+	static private final int SMOOTHING = 3;
+
+	/**
+	 * Ratios are kept as fixed point numbers, with ONE standing for 1.0.
+	 */
+	static private final long ONE = 256;
+
+	private final MailBag bag;
+
+	private int  minWindow;
+	private int  maxWindow;
+
+	private volatile int window;
+
+	/**
+	 * Fastest round trip by ArduinoCmdType ordinal.
+	 */
+	private final long[] fastestRtt = new long[ ArduinoCmdType.values().length ];
+
+	private long smoothedRtt   = 0;
+	private long smoothedRatio = ONE;
+
+	/**
+	 * Set when the sender waited for a credit since the window last grew.
+	 */
+	private volatile boolean stalled = false;
+
+	/**
+	 * Set from the time the sender finds the window full until it finds a
+	 * credit again, so each such time is counted as one stall.
+	 */
+	private volatile boolean waiting = false;
+
+	private volatile long stalls    = 0;
+	private volatile long stallTime = 0;
+	private volatile long timeouts  = 0;
+
+	/**
+	 * Constructor for a window with the default limits.
+	 *
+	 * @param mailBag The MailBag the sent commands are placed in.
+	 */
+	public CreditWindow( MailBag mailBag )
+	{
+		this( mailBag, DEFAULT_INITIAL, DEFAULT_MIN, DEFAULT_MAX );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param mailBag The MailBag the sent commands are placed in.
+	 * @param initial The window to start with.
+	 * @param min     The smallest the window can shrink to.  At least one.
+	 * @param max     The largest the window can grow to.
+	 */
+	public CreditWindow( MailBag mailBag, int initial, int min, int max )
+	{
+		bag = mailBag;
+
+		Arrays.fill( fastestRtt, Long.MAX_VALUE );
+
+		setLimits( min, max );
+
+		window = clamp( initial );
+	}
+
+	/**
+	 * Sets the range the window adapts within.
+	 */
+	public synchronized void setLimits( int min, int max )
+	{
+		minWindow = Math.max( 1, min );
+		maxWindow = Math.max( minWindow, max );
+		window    = clamp( window );
+	}
+
+	/**
+	 * @return Returns the number of commands that can be sent now.
+	 */
+	public int available()
+	{
+		int credits = Math.max( 0, window - bag.size() );
+
+		if ( credits > 0 )
+		{
+			waiting = false;
+		}
+
+		return credits;
+	}
+
+	/**
+	 * Waits for a credit to come back.  The time spent waiting is counted
+	 * as window-full time.  The sender may wait several times while the
+	 * window stays full; that counts as a single stall.
+	 *
+	 * @param deadline The time, as given by System.nanoTime(), at which to
+	 *                 give up waiting.
+	 *
+	 * @return Returns true if a credit is available.
+	 */
+	public boolean awaitCredit( long deadline )
+	{
+		if ( available() > 0 )
+		{
+			return true;
+		}
+
+		if ( !waiting )
+		{
+			waiting = true;
+			stalled = true;
+			++stalls;
+		}
+
+		long start = System.nanoTime();
+
+		boolean ready = bag.awaitSizeBelow( window, deadline );
+
+		stallTime += System.nanoTime() - start;
+
+		if ( ready )
+		{
+			waiting = false;
+		}
+
+		return ready;
+	}
+
+	/**
+	 * Adapts the window to the round trip of an answered command.
+	 *
+	 * @param type      The type of the command.
+	 * @param roundTrip Nanoseconds from sending the command to parsing its
+	 *                  answer.
+	 */
+	public synchronized void acked( ArduinoCmdType type, long roundTrip )
+	{
+		if ( roundTrip <= 0 )
+		{
+			return;
+		}
+
+		int  kind    = type.ordinal();
+
+		fastestRtt[kind] = Math.min( fastestRtt[kind], roundTrip );
+
+		long ratio   = roundTrip * ONE / fastestRtt[kind];
+
+		smoothedRatio += (ratio - smoothedRatio) >> SMOOTHING;
+		smoothedRtt    = ( smoothedRtt == 0 ) ? roundTrip :
+				smoothedRtt + ((roundTrip - smoothedRtt) >> SMOOTHING) ;
+
+		if ( smoothedRatio > ONE * QUEUE_FACTOR )
+		{
+			window = clamp( window - 1 );
+		}
+		else if ( stalled )
+		{
+			stalled = false;
+			window  = clamp( window + 1 );
+		}
+	}
+
+	/**
+	 * Shrinks the window after a command was not answered in time.
+	 */
+	public synchronized void timedOut()
+	{
+		++timeouts;
+
+		window = clamp( window / 2 );
+	}
+
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * @return Returns the number of times the sender found the window full
+	 *         and had to wait for a credit, however long it waited.
+	 */
+	public long getStallCount()
+	{
+		return stalls;
+	}
+
+	/**
+	 * @return Returns the nanoseconds the sender spent waiting for credits.
+	 */
+	public long getStallTime()
+	{
+		return stallTime;
+	}
+
+	public long getTimeoutCount()
+	{
+		return timeouts;
+	}
+
+	public synchronized long getSmoothedRtt()
+	{
+		return smoothedRtt;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("window=%d inFlight=%d srtt=%dus stalls=%d stalled=%dms timeouts=%d",
+				window, bag.size(), smoothedRtt / 1000, stalls, stallTime / 1000000, timeouts);
+	}
+
+	private int clamp( int size )
+	{
+		return Math.min( maxWindow, Math.max( minWindow, size ) );
+	}
+
+}   // end of class CreditWindow
@@ -3,6 +3,8 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.util.concurrent.TimeUnit;
+
 import com.lebruns.steven.robotcar.menu.MenuItem;
 import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
@@ -16,6 +18,12 @@ public class DisplayController extends Controller
 	final private int  LCD_BUS     = 1;
 	final private int  LCD_ADDRESS = 0x20;
 	
+	/**
+	 * How often, in milliseconds, the buttons are checked when there are
+	 * no incoming messages.
+	 */
+	final private int  BUTTON_WAIT = 100;
+	
 	private LCDModule  lcd  = null;
 	
 	private MenuItem   topMenuItem     = null;
@@ -206,24 +214,14 @@ public class DisplayController extends Controller
 			// No Buttons were pushed.
 			
 			// -- Second, Check for incoming messages --
-			message = logPipe.getNextCommand();
+			// Wait up to 0.1 second for a message so that the buttons
+			// are still checked regularly.  A message that arrives during
+			// the wait is handled right away.
+			message = logPipe.waitForNextCommand(BUTTON_WAIT, TimeUnit.MILLISECONDS);
 			
 			if ( message != null )
 			{
 				processLogMessage(message);
-				continue;
-			}
-			
-			// Nothing to do this loop, so wait 0.1 second
-			// and try again.
-			try
-			{
-				Thread.sleep(100);
-			}
-			catch ( Exception exc )
-			{
-				// Ignore this exception and start next iteration
-				// of the infinite loop.
 			}
 			
 		}   // end of infinite loop
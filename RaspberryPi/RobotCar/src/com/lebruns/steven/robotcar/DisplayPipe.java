@@ -3,8 +3,8 @@
  */
 package com.lebruns.steven.robotcar;
 
-import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
+import com.lebruns.steven.robotcar.pipeline.PipelineOverflowPolicy;
 
 /**
  * @author Steven F. LeBrun
@@ -18,24 +18,20 @@ public class DisplayPipe extends Pipeline
 	 */
 	public DisplayPipe()
 	{
-		// TODO Auto-generated constructor stub
+		supportMessages(DisplayMsg.class);
 	}
 
-	/* (non-Javadoc)
-	 * @see com.lebruns.steven.robotcar.pipeline.Pipeline#is_supported(com.lebruns.steven.robotcar.pipeline.MsgCapsule)
+	/**
+	 * Constructor for a bounded Display Pipe.
+	 * 
+	 * @param capacity The maximum number of messages waiting in the pipe.
+	 * @param overflow What to do when the pipe is full.
 	 */
-	@Override
-	public boolean is_supported(MsgCapsule msg)
+	public DisplayPipe(int capacity, PipelineOverflowPolicy overflow)
 	{
-		boolean supported = false;
-		
-		if ( msg instanceof DisplayMsg )
-		{
-			supported = true;
-		}
+		super(capacity, overflow);
 		
-		return supported;
-		
-	}   // is_supported()
+		supportMessages(DisplayMsg.class);
+	}
 
 }
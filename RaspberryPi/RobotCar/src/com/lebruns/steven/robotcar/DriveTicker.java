@@ -0,0 +1,526 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.lebruns.steven.robotcar.pipeline.LatencyHistogram;
+import com.lebruns.steven.robotcar.pipeline.PipelineIllegalParameterException;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Drive Ticker turns the driver's input into motor commands at a
+ * steady rate.  Navigators do not send Motor Messages themselves; they set
+ * the desired drive state, as often as their input arrives, and the Drive
+ * Ticker samples it once per tick and sends at most one Motor Message per
+ * tick to the Command Pipeline, and only when the desired state changed.
+ *
+ * This keeps the load on the serial link to the Arduino predictable and
+ * the wheels from being jerked around by bursts of input, whichever
+ * navigator is driving.
+ *
+ * A stop is urgent, so it is sent as soon as it is set, unless a command
+ * was already sent during the current tick.  Then it waits for the next
+ * one.
+ *
+ * A command can be lost after it was sent: it can expire in the Command
+ * Pipeline, be thrown away by an emergency stop's flush, or fail.  With a
+ * Wheel State set, the desired state is also compared, whenever no command
+ * has been sent for RESEND_AFTER, with the wheel speeds the Arduino last
+ * acknowledged, and sent again if they differ.  An unchanged input then
+ * cannot leave the wheels doing something else.
+ *
+ * Ticks are scheduled against fixed deadlines, so a late tick does not
+ * delay the ones after it.  How late each tick wakes up is recorded, and
+ * ticks missed altogether are counted as overruns.
+ *
+ * This is a singleton class.  Instances are thread-safe.
+ */
+public class DriveTicker implements Runnable
+{
+	static public final int  DEFAULT_RATE = 20;   // Hz
+
+	/**
+	 * The slowest and fastest tick rates, in ticks per second.
+	 */
+	static public final int  MIN_RATE     = 1;
+	static public final int  MAX_RATE     = 100;
+
+	/**
+	 * How long, in milliseconds, a move command is worth sending.  A move
+	 * command that waited longer than this reflects an old finger position
+	 * and is thrown away.  Stop commands never expire.
+	 */
+	static private final int MOVE_TIME_TO_LIVE = 250;
+
+	/**
+	 * How long after a command was sent the wheels are expected to be
+	 * doing what it asked for.  Longer than a move command lives, so a
+	 * command still on its way is not sent twice.
+	 */
+	static private final long RESEND_AFTER = TimeUnit.MILLISECONDS.toNanos(2 * MOVE_TIME_TO_LIVE);
+
+	static private final DriveTicker ticker = new DriveTicker();
+
+	/**
+	 * The desired drive state, guarded by itself.
+	 */
+	private final Object  desired     = new Object();
+	private MotorCmd      desiredCmd  = MotorCmd.STOP;
+	private int           speed       = 0;
+	private int           rate        = 0;
+	private int           traceId     = 0;
+	private long          traceTime   = 0;
+
+	/**
+	 * Changed every time the desired state is set, and the value it had
+	 * when the last command was sent.
+	 */
+	private long          version     = 0;
+	private long          sentVersion = 0;
+
+	private volatile boolean stopPending = false;
+
+	private volatile long    period      = TimeUnit.SECONDS.toNanos(1) / DEFAULT_RATE;
+	/**
+	 * The thread that ticks.  A thread that is no longer this one stops.
+	 */
+	private volatile Thread  thread      = null;
+
+	/**
+	 * What the Arduino acknowledged, used to notice lost commands.  May be
+	 * null.
+	 */
+	private volatile WheelState wheels   = null;
+
+	/**
+	 * When the desired state is next compared with the wheels.  Only used
+	 * by the ticking thread.
+	 */
+	private long             checkTime   = 0;
+
+	/**
+	 * How late each tick woke up, in nanoseconds.
+	 */
+	private final LatencyHistogram jitter = new LatencyHistogram();
+
+	private volatile long ticks      = 0;
+	private volatile long sent       = 0;
+	private volatile long overruns   = 0;
+	private volatile long superseded = 0;
+	private volatile long resent     = 0;
+	private volatile long failed     = 0;
+
+	/**
+	 * Private Constructor.  Required for the Singleton Pattern.
+	 */
+	private DriveTicker()
+	{
+	}
+
+	/**
+	 * Provides access to the singleton Drive Ticker.
+	 */
+	static public DriveTicker getInstance()
+	{
+		return ticker;
+	}
+
+	/**
+	 * Starts ticking on a daemon thread.  Does nothing if already started.
+	 */
+	public synchronized void start()
+	{
+		if ( thread == null )
+		{
+			thread = new Thread(this, "DriveTick");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops ticking.  The desired state is kept.
+	 */
+	public synchronized void terminate()
+	{
+		Thread old = thread;
+
+		thread = null;
+
+		if ( old != null )
+		{
+			LockSupport.unpark(old);
+		}
+	}
+
+	/**
+	 * Sets how many times a second the desired state is sampled.
+	 *
+	 * @param ticksPerSecond Clamped to [MIN_RATE..MAX_RATE].
+	 */
+	public void setRate( int ticksPerSecond )
+	{
+		int hz = Math.min( MAX_RATE, Math.max( MIN_RATE, ticksPerSecond ) );
+
+		period = TimeUnit.SECONDS.toNanos(1) / hz;
+	}
+
+	public int getRate()
+	{
+		return (int) (TimeUnit.SECONDS.toNanos(1) / period);
+	}
+
+	/**
+	 * Sets the Wheel State the desired state is compared with, so lost
+	 * commands are sent again.
+	 *
+	 * @param state The Command Controller's Wheel State, or null to only
+	 *              send when the desired state changes.
+	 */
+	public void setWheelState( WheelState state )
+	{
+		wheels = state;
+	}
+
+	/**
+	 * Sets the car to go straight, or to stop if the speed is zero.
+	 *
+	 * @see MotorMsg#MotorMsg(int)
+	 */
+	public void setSpeed( int newSpeed )
+	{
+		setSpeed( newSpeed, 0, 0 );
+	}
+
+	/**
+	 * Sets the car to go straight, or to stop if the speed is zero.  The
+	 * command sent for it carries the trace of the input that asked for it.
+	 *
+	 * @param newSpeed  The speed, [-255..255].
+	 * @param id        The trace ID of the input, or 0 if not traced.
+	 * @param inputTime When the input arrived, as given by
+	 *                  System.nanoTime().
+	 */
+	public void setSpeed( int newSpeed, int id, long inputTime )
+	{
+		MotorCmd cmd = ( newSpeed == 0 ) ? MotorCmd.STOP :
+			( newSpeed > 0 ) ? MotorCmd.FORWARD : MotorCmd.BACKWARD ;
+
+		set( cmd, newSpeed, 0, id, inputTime );
+	}
+
+	/**
+	 * Sets the car to turn.
+	 *
+	 * @see MotorMsg#MotorMsg(boolean, int, int)
+	 */
+	public void setTurn( boolean rightTurn, int newSpeed, int newRate )
+	{
+		setTurn( rightTurn, newSpeed, newRate, 0, 0 );
+	}
+
+	/**
+	 * Sets the car to turn.  The command sent for it carries the trace of
+	 * the input that asked for it.
+	 *
+	 * @see MotorMsg#MotorMsg(boolean, int, int)
+	 * @see #setSpeed(int, int, long)
+	 */
+	public void setTurn( boolean rightTurn, int newSpeed, int newRate, int id, long inputTime )
+	{
+		set( rightTurn ? MotorCmd.TURN_RIGHT : MotorCmd.TURN_LEFT, newSpeed, newRate, id, inputTime );
+	}
+
+	/**
+	 * Sets the car to stop.
+	 */
+	public void stop()
+	{
+		setSpeed( 0, 0, 0 );
+	}
+
+	/**
+	 * Sets the car to stop.  The command sent for it carries the trace of
+	 * the input that asked for it.
+	 */
+	public void stop( int id, long inputTime )
+	{
+		setSpeed( 0, id, inputTime );
+	}
+
+	public long getTickCount()
+	{
+		return ticks;
+	}
+
+	/**
+	 * @return Returns the number of Motor Messages sent.
+	 */
+	public long getSentCount()
+	{
+		return sent;
+	}
+
+	/**
+	 * @return Returns the number of ticks missed because a tick woke up
+	 *         more than a whole period late.
+	 */
+	public long getOverrunCount()
+	{
+		return overruns;
+	}
+
+	/**
+	 * @return Returns the number of desired states replaced by a newer one
+	 *         before they could be sent.
+	 */
+	public long getSupersededCount()
+	{
+		return superseded;
+	}
+
+	/**
+	 * @return Returns the number of commands sent again because the wheels
+	 *         were not doing what the unchanged desired state asked for.
+	 */
+	public long getResentCount()
+	{
+		return resent;
+	}
+
+	/**
+	 * @return Returns the number of Motor Messages the Command Pipeline
+	 *         dropped or refused.  The desired state is sent again on the
+	 *         next tick.
+	 */
+	public long getFailedCount()
+	{
+		return failed;
+	}
+
+	/**
+	 * @return Returns a copy of the histogram of how late, in nanoseconds,
+	 *         each tick woke up.
+	 */
+	public LatencyHistogram getJitter()
+	{
+		return jitter.copy();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("rate=%dHz ticks=%d sent=%d resent=%d failed=%d superseded=%d overruns=%d jitter p50=%dus p99=%dus max=%dus",
+				getRate(), ticks, sent, resent, failed, superseded, overruns,
+				jitter.getPercentile(50) / 1000, jitter.getPercentile(99) / 1000, jitter.getMax() / 1000);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		long    nextTick   = System.nanoTime() + period;
+		boolean sentInTick = false;
+
+		while ( thread == Thread.currentThread() )
+		{
+			long now  = System.nanoTime();
+			long wait = nextTick - now;
+
+			if ( wait > 0 )
+			{
+				if ( stopPending && !sentInTick )
+				{
+					sentInTick = send(now);
+					continue;
+				}
+
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+
+			long step = period;
+			long late = -wait;
+
+			jitter.record(late);
+			++ticks;
+
+			if ( late >= step )
+			{
+				// Skip the ticks that were missed rather than sending a
+				// burst of them.
+				long missed = late / step;
+
+				overruns += missed;
+				nextTick += missed * step;
+			}
+
+			nextTick  += step;
+			sentInTick = send(now);
+		}
+
+	}   // end of run()
+
+	/**
+	 * Records a new desired state.
+	 */
+	private void set( MotorCmd cmd, int newSpeed, int newRate, int id, long inputTime )
+	{
+		Thread wake = null;
+
+		synchronized ( desired )
+		{
+			if ( version != sentVersion )
+			{
+				++superseded;
+			}
+
+			desiredCmd = cmd;
+			speed      = newSpeed;
+			rate       = newRate;
+			traceId    = id;
+			traceTime  = inputTime;
+
+			++version;
+
+			if ( cmd == MotorCmd.STOP )
+			{
+				stopPending = true;
+				wake        = thread;
+			}
+			else
+			{
+				// A move replacing a stop that was not sent yet is not
+				// urgent.
+				stopPending = false;
+			}
+		}
+
+		if ( wake != null )
+		{
+			LockSupport.unpark(wake);
+		}
+
+	}   // end of set()
+
+	/**
+	 * Sends a Motor Message for the desired state if it changed since the
+	 * last one was sent, or if the wheels are not doing what it asks for
+	 * well after it was sent.
+	 *
+	 * @param now The current time, as given by System.nanoTime().
+	 *
+	 * @return Returns true if a message was sent.
+	 */
+	private boolean send( long now )
+	{
+		MotorCmd   cmd;
+		int        cmdSpeed;
+		int        cmdRate;
+		int        id;
+		long       inputTime;
+		long       sending;
+		boolean    changed;
+		WheelState state = wheels;
+
+		synchronized ( desired )
+		{
+			changed = ( version != sentVersion );
+
+			if ( !changed && (state == null || now - checkTime < 0) )
+			{
+				return false;
+			}
+
+			cmd         = desiredCmd;
+			cmdSpeed    = speed;
+			cmdRate     = rate;
+			id          = traceId;
+			inputTime   = traceTime;
+			sending     = version;
+			sentVersion = version;
+			stopPending = false;
+		}
+
+		MotorMsg message = null;
+
+		switch ( cmd )
+		{
+		case TURN_LEFT:
+		case TURN_RIGHT:
+			message = MessageFactory.turn( cmd == MotorCmd.TURN_RIGHT, cmdSpeed, cmdRate );
+			break;
+
+		default:
+			message = MessageFactory.motor( cmdSpeed );
+		}
+
+		if ( cmd != MotorCmd.STOP )
+		{
+			message.setTimeToLive(MOVE_TIME_TO_LIVE, TimeUnit.MILLISECONDS);
+		}
+
+		checkTime = now + RESEND_AFTER;
+
+		if ( !changed )
+		{
+			if ( state.settled(message) )
+			{
+				message.release();
+				return false;
+			}
+		}
+
+		if ( id != 0 )
+		{
+			message.startTrace(id, inputTime);
+		}
+
+		boolean queued = false;
+
+		try
+		{
+			// A message the Pipeline drops is released by it.
+			queued = PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(message);
+		}
+		catch ( PipelineIllegalParameterException exc )
+		{
+			// A refused message still belongs to the sender.
+			message.release();
+		}
+
+		if ( !queued )
+		{
+			++failed;
+
+			synchronized ( desired )
+			{
+				// Unless it has been replaced meanwhile, the desired state
+				// is tried again on the next tick.
+				if ( sentVersion == sending )
+				{
+					sentVersion = sending - 1;
+				}
+			}
+
+			return false;
+		}
+
+		if ( !changed )
+		{
+			++resent;
+		}
+
+		++sent;
+
+		return true;
+
+	}   // end of send()
+
+}   // end of class DriveTicker
@@ -3,6 +3,8 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.nio.ByteBuffer;
+
 import com.lebruns.steven.robotcar.pipeline.OutOfBandMessage;
 
 /**
@@ -44,17 +46,23 @@ public class EmergencyStopMsg extends CommandMsg implements OutOfBandMessage
 	 * Build a command message that tells the Arduino to stop the wheels from
 	 * turning.
 	 * 
-	 * @see com.lebruns.steven.robotcar.CommandMsg#getMessage()
+	 * @see com.lebruns.steven.robotcar.CommandMsg#encodeTo(ByteBuffer)
+	 */
+	@Override
+	public void encodeTo( ByteBuffer dst )
+	{
+		putHeader(dst);
+		putText(dst, STOP);
+		putText(dst, TERMINATOR);
+	}
+
+	/**
+	 * @see com.lebruns.steven.robotcar.CommandMsg#getArduinoCmdType()
 	 */
 	@Override
-	public String getMessage()
+	public ArduinoCmdType getArduinoCmdType()
 	{
-		String args = 
-				COMMAND                         + SEPARATOR +
-				Integer.toString(getMsgId())    + SEPARATOR +
-				STOP                            + TERMINATOR;
-		
-		return args;
+		return ArduinoCmdType.StopWheels;
 	}
 
 }
@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.concurrent.TimeUnit;
+
+import com.lebruns.steven.robotcar.pipeline.Pipeline;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * Runs the Command, Response and WatchDog Controllers against an
+ * ArduinoEmulator instead of the car, drives them with a steady stream of
+ * motor commands and prints how they coped.  This lets the controllers be
+ * benchmarked and load tested on any computer.
+ *
+ * Usage:
+ *
+ *    EmulatedCar [seconds [commandsPerSecond [baud [faultRate]]]]
+ *
+ * The fault rate is the fraction of commands whose response is lost and,
+ * separately, the fraction answered with an error.
+ */
+public class EmulatedCar
+{
+	static private final int  DEFAULT_SECONDS = 10;
+	static private final int  DEFAULT_RATE    = 20;
+
+	/**
+	 * Time given to the answers still on their way at the end of a run.
+	 */
+	static private final long DRAIN_TIME = 1000;
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		int    seconds = ( args.length > 0 ) ? Integer.parseInt(args[0]) : DEFAULT_SECONDS ;
+		int    rate    = ( args.length > 1 ) ? Integer.parseInt(args[1]) : DEFAULT_RATE ;
+		int    baud    = ( args.length > 2 ) ? Integer.parseInt(args[2]) : ArduinoEmulator.DEFAULT_BAUD ;
+		double faults  = ( args.length > 3 ) ? Double.parseDouble(args[3]) : 0.0 ;
+
+		ArduinoEmulator arduino = new ArduinoEmulator();
+
+		arduino.setBaudRate(baud);
+		arduino.setResponseLoss(faults);
+		arduino.setErrorRate(faults);
+		arduino.setRangeProfile( ArduinoEmulator.approaching(300, 20) );
+		arduino.setSeed(seconds);
+
+		arduino.open();
+
+		// The same wiring as ControlPanel.initArduinoControllers().
+		PipeWork.getInstance();
+
+		MailBag            bag      = new MailBag();
+		CreditWindow       credits  = new CreditWindow(bag);
+		LinkScheduler      link     = new LinkScheduler(baud);
+		CommandController  sender   = new CommandController(arduino, bag, "ArduinoWriter");
+		ResponseController receiver = new ResponseController(arduino, bag, "ArduinoReader");
+		WatchDogController watchdog = new WatchDogController("WatchDog");
+
+		sender.setCreditWindow(credits);
+		receiver.setCreditWindow(credits);
+		receiver.setWheelState(sender.getWheelState());
+		sender.setLinkScheduler(link);
+
+		sender.setDaemon(true);
+		receiver.setDaemon(true);
+		watchdog.setDaemon(true);
+
+		sender.start();
+		receiver.start();
+		watchdog.start();
+
+		drive(seconds, rate);
+
+		sleep(DRAIN_TIME);
+
+		System.out.println();
+		RoundTripMonitor.getInstance().dump(System.out);
+		System.out.println("Credit Window: " + credits);
+		System.out.println(String.format("Command Controller: timeouts=%d retransmits=%d dropped=%d emergencyStops=%d unsent=%d",
+				sender.getTimeoutCount(), sender.getRetransmitCount(),
+				sender.getDroppedCount(), sender.getEmergencyStopCount(), sender.getUnsentCount()));
+		System.out.println("Wheel State: " + sender.getWheelState());
+		System.out.println("Link Scheduler: " + link);
+		System.out.println("Emulated Arduino: " + arduino);
+		System.out.println(MessageFactory.getStats());
+
+		System.exit(0);
+
+	}   // end of main()
+
+	/**
+	 * Sends motor commands at a steady rate for a number of seconds, then
+	 * stops the car.  The speed changes with every command so none of them
+	 * are conflated away.
+	 */
+	static private void drive( int seconds, int rate )
+	{
+		Pipeline commands = PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK);
+
+		long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+		long end    = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		long next   = System.nanoTime();
+		int  count  = 0;
+
+		try
+		{
+			while ( System.nanoTime() - end < 0 )
+			{
+				int speed = 100 + (count % 100);
+
+				commands.put( ( count % 4 == 3 ) ?
+						MessageFactory.turn( (count & 4) != 0, speed, 50 ) :
+						MessageFactory.motor( speed ) );
+				++count;
+
+				next += period;
+
+				sleep( TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - System.nanoTime())) );
+			}
+
+			commands.put( MessageFactory.motor(0) );
+		}
+		catch ( Exception exc )
+		{
+			System.out.println("Driving the emulated car failed.");
+			System.out.println(exc.getMessage());
+			exc.printStackTrace(System.out);
+		}
+
+		System.out.println("Sent " + count + " motor commands in " + seconds + " seconds.");
+
+	}   // end of drive()
+
+	static private void sleep( long millis )
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch ( InterruptedException exc )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}   // end of class EmulatedCar
@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A FrameExtractor splits the bytes read from a SerialTransport into the
+ * frames of the Arduino protocol, each ending with a terminator byte.  The
+ * bytes are read in bulk into a single buffer that is reused, and frames
+ * are found in place; nothing is copied or allocated until the caller asks
+ * for a frame as a String.
+ *
+ * The terminator is not part of a frame.  Line breaks and spaces before a
+ * frame, which the Arduino may send between frames, are skipped.  A frame
+ * that does not fit in the buffer is thrown away, up to its terminator, and
+ * counted as an overrun.
+ *
+ * This class is @b not thread-safe.  It is meant to be used by a single
+ * thread, the Response Controller.
+ */
+class FrameExtractor
+{
+	/**
+	 * The default buffer size, which is far longer than any frame.
+	 */
+	static final int DEFAULT_CAPACITY = 256;
+
+	private final byte       terminator;
+	private final byte[]     data;
+	private final ByteBuffer buffer;
+
+	/**
+	 * data[start..end) holds the bytes read and not yet consumed.  The
+	 * bytes before scan hold no terminator.
+	 */
+	private int start = 0;
+	private int scan  = 0;
+	private int end   = 0;
+
+	/**
+	 * The frame found by the last call to nextFrame().
+	 */
+	private int frameStart  = 0;
+	private int frameLength = 0;
+
+	/**
+	 * Set while the rest of a frame that overran the buffer is being
+	 * thrown away.
+	 */
+	private boolean discarding = false;
+	private long    overruns   = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity   The size of the buffer.  Must be longer than the
+	 *                   longest frame.
+	 * @param terminator The byte that ends a frame.
+	 */
+	FrameExtractor( int capacity, byte terminator )
+	{
+		this.terminator = terminator;
+		this.data       = new byte[capacity];
+		this.buffer     = ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Reads whatever the transport has available into the buffer, waiting
+	 * for at least one byte.  Consumed frames are dropped first to make
+	 * room.
+	 *
+	 * @return Returns the number of bytes read, or -1 if the link was
+	 *         closed.
+	 *
+	 * @throws IOException Thrown by the transport.
+	 */
+	int fill( SerialTransport transport )
+		throws IOException
+	{
+		if ( start == end )
+		{
+			start = 0;
+			scan  = 0;
+			end   = 0;
+		}
+		else if ( end == data.length )
+		{
+			compact();
+		}
+
+		buffer.limit(data.length);
+		buffer.position(end);
+
+		int count = transport.read(buffer);
+
+		if ( count > 0 )
+		{
+			end = buffer.position();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Looks for the next complete frame in the bytes already read.
+	 *
+	 * @return Returns true if a frame was found; it can then be read with
+	 *         getFrameStart(), getFrameLength() and getArray() or
+	 *         getFrame().  Returns false if more bytes are needed.
+	 */
+	boolean nextFrame()
+	{
+		for ( ; scan < end ; ++scan )
+		{
+			if ( data[scan] != terminator )
+			{
+				continue;
+			}
+
+			int first = start;
+
+			start = ++scan;
+
+			if ( discarding )
+			{
+				discarding = false;
+				continue;
+			}
+
+			while ( first < scan - 1 && data[first] <= ' ' )
+			{
+				++first;
+			}
+
+			frameStart  = first;
+			frameLength = scan - 1 - first;
+
+			return true;
+		}
+
+		if ( start == 0 && end == data.length )
+		{
+			// The frame is longer than the buffer.  Throw away what has
+			// been read and the rest of it, up to its terminator.
+			if ( !discarding )
+			{
+				++overruns;
+				discarding = true;
+			}
+
+			start = 0;
+			scan  = 0;
+			end   = 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return Returns the buffer holding the frame.  It is overwritten by
+	 *         the next call to fill().
+	 */
+	byte[] getArray()
+	{
+		return data;
+	}
+
+	int getFrameStart()
+	{
+		return frameStart;
+	}
+
+	int getFrameLength()
+	{
+		return frameLength;
+	}
+
+	/**
+	 * @return Returns a copy of the frame as a String.
+	 */
+	String getFrame()
+	{
+		return new String(data, frameStart, frameLength, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Throws away every byte read, such as a partial frame left when the
+	 * link was lost.
+	 */
+	void clear()
+	{
+		start      = 0;
+		scan       = 0;
+		end        = 0;
+		discarding = false;
+	}
+
+	/**
+	 * @return Returns the number of frames thrown away because they were
+	 *         longer than the buffer.
+	 */
+	long getOverrunCount()
+	{
+		return overruns;
+	}
+
+	/**
+	 * Moves the bytes not yet consumed to the front of the buffer.
+	 */
+	private void compact()
+	{
+		int remaining = end - start;
+
+		System.arraycopy(data, start, data, 0, remaining);
+
+		scan -= start;
+		end   = remaining;
+		start = 0;
+	}
+
+}   // end of class FrameExtractor
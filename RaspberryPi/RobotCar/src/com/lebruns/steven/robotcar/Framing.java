@@ -0,0 +1,17 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The ways messages can be framed on the link with the Arduino.
+ *   TEXT   -- The text protocol, such as C:<MsgID>:SW;
+ *   BINARY -- The compact binary frames of BinaryFrame.
+ */
+public enum Framing
+{
+	TEXT,
+	BINARY;
+}
@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.lebruns.steven.robotcar.pipeline.LatencyHistogram;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Latency Tracer collects how long commands spend in each stage of
+ * their trip from an input to the Arduino and back.  The histograms are
+ * kept in memory and can be dumped at any time, which shows whether a
+ * sluggish car is caused by queueing, by building and writing the command
+ * or by the serial link and the Arduino.
+ *
+ * The slowest trace seen is also kept, so that its trace ID can be matched
+ * against the console log.
+ *
+ * This is a singleton class.  Instances are thread-safe.
+ */
+public class LatencyTracer
+{
+	static private final TraceStage[] STAGES = TraceStage.values();
+
+	static private final LatencyTracer tracer = new LatencyTracer();
+
+	private final Map<TraceStage, LatencyHistogram> histograms =
+			new EnumMap<TraceStage, LatencyHistogram>(TraceStage.class);
+
+	/**
+	 * Stage times of the slowest trace, indexed by TraceStage ordinal.
+	 */
+	private final long[] slowest = new long[ STAGES.length ];
+	private int          slowestId = 0;
+
+	/**
+	 * Private Constructor.  Required for the Singleton Pattern.
+	 */
+	private LatencyTracer()
+	{
+		for ( TraceStage stage : STAGES )
+		{
+			histograms.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Provides access to the singleton Latency Tracer.
+	 */
+	static public LatencyTracer getInstance()
+	{
+		return tracer;
+	}
+
+	/**
+	 * Records the stages of a command whose response has just been parsed.
+	 * Commands that were never sent are ignored.
+	 *
+	 * @param command      The command matching the response.
+	 * @param responseTime The time, as given by System.nanoTime(), at
+	 *                     which the response was parsed.
+	 */
+	public void record( CommandMsg command, long responseTime )
+	{
+		long sent = command.getSentTime();
+
+		if ( sent == 0 )
+		{
+			return;
+		}
+
+		long start    = command.getTraceStart();
+		long enqueued = command.getEnqueueTime();
+		long dequeued = command.getDequeueTime();
+
+		long input    = enqueued - start;
+		long queue    = dequeued - enqueued;
+		long dispatch = sent - dequeued;
+		long link     = responseTime - sent;
+		long total    = responseTime - start;
+
+		histograms.get(TraceStage.INPUT).record(input);
+		histograms.get(TraceStage.QUEUE).record(queue);
+		histograms.get(TraceStage.DISPATCH).record(dispatch);
+		histograms.get(TraceStage.LINK).record(link);
+		histograms.get(TraceStage.TOTAL).record(total);
+
+		synchronized (slowest)
+		{
+			if ( total > slowest[ TraceStage.TOTAL.ordinal() ] )
+			{
+				slowestId = command.getTraceId();
+
+				slowest[ TraceStage.INPUT.ordinal() ]    = input;
+				slowest[ TraceStage.QUEUE.ordinal() ]    = queue;
+				slowest[ TraceStage.DISPATCH.ordinal() ] = dispatch;
+				slowest[ TraceStage.LINK.ordinal() ]     = link;
+				slowest[ TraceStage.TOTAL.ordinal() ]    = total;
+			}
+		}
+
+	}   // end of record()
+
+	/**
+	 * Records how long one write to the Arduino link took.
+	 *
+	 * @param nanos Duration of the write in nanoseconds.
+	 */
+	public void recordWrite( long nanos )
+	{
+		histograms.get(TraceStage.WRITE).record(nanos);
+	}
+
+	/**
+	 * @return Returns a snapshot of the histogram for a stage.
+	 */
+	public LatencyHistogram getHistogram( TraceStage stage )
+	{
+		return histograms.get(stage).copy();
+	}
+
+	/**
+	 * Clears all the recorded latencies.
+	 */
+	public void reset()
+	{
+		for ( LatencyHistogram histogram : histograms.values() )
+		{
+			histogram.reset();
+		}
+
+		synchronized (slowest)
+		{
+			for ( int i = 0 ; i < slowest.length ; ++i )
+			{
+				slowest[i] = 0;
+			}
+
+			slowestId = 0;
+		}
+	}
+
+	/**
+	 * Prints the latency percentiles of every stage followed by the stage
+	 * times of the slowest trace.
+	 *
+	 * @param out Where to print the latencies, such as System.out.
+	 */
+	public void dump( PrintStream out )
+	{
+		out.println("Command Latency:");
+
+		for ( TraceStage stage : STAGES )
+		{
+			out.println(String.format("  %-8s %s", stage, histograms.get(stage)));
+		}
+
+		synchronized (slowest)
+		{
+			out.println(String.format("  Slowest trace %d: input=%dus queue=%dus " +
+					"dispatch=%dus link=%dus total=%dus",
+					slowestId,
+					slowest[ TraceStage.INPUT.ordinal() ]    / 1000,
+					slowest[ TraceStage.QUEUE.ordinal() ]    / 1000,
+					slowest[ TraceStage.DISPATCH.ordinal() ] / 1000,
+					slowest[ TraceStage.LINK.ordinal() ]     / 1000,
+					slowest[ TraceStage.TOTAL.ordinal() ]    / 1000));
+		}
+
+	}   // end of dump()
+
+}   // end of class LatencyTracer
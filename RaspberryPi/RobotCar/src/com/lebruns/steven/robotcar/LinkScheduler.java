@@ -0,0 +1,541 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Link Scheduler decides which commands the Command Controller writes
+ * to the Arduino, and when, so that motor commands are not stuck behind
+ * range findings.
+ *
+ * At 9600 baud every byte takes about a millisecond on the wire, and a
+ * Find Range command keeps the Arduino busy for 50 ms plus 29 ms per
+ * attempt, during which it reads no other command.  The scheduler
+ * estimates both times for every frame written, from its encoded length
+ * and its command type, and keeps track of when the Arduino should be
+ * idle again.
+ *
+ * Each write is arranged as follows:
+ *   -- Motor commands go first and are never held back.
+ *   -- Other commands are held back while the Arduino is still busy, and
+ *      at most one of them is added to each write, so a motor command
+ *      waits behind at most one range finding.
+ *   -- The SONAR and STATUS classes each get a slice of every period.  A
+ *      class that has used up its slice is held back until the next
+ *      period.  What the slices leave is for motor commands.
+ *   -- SAFETY pings, the WatchDog's pings while an obstacle is close, have
+ *      no slice; they only wait for the Arduino and go ahead of the other
+ *      held commands.  At four pings a second they need more of the link
+ *      than the sonar's share.
+ *   -- Held commands whose time to live runs out are released.  A SAFETY
+ *      ping released without being sent is reported as a fault.
+ *
+ * The time each class keeps the link and the Arduino busy is recorded so
+ * the link utilization of each class can be reported.
+ *
+ * Used by the Command Controller thread; the reports may be read from any
+ * thread.
+ */
+public class LinkScheduler
+{
+	/**
+	 * The baud rate USBDevice opens the Arduino at.
+	 */
+	static public final int  DEFAULT_BAUD = 9600;
+
+	/**
+	 * The length of a scheduling period and the default share of it given
+	 * to each class that can be held back, in percent.
+	 */
+	static public final long PERIOD         = TimeUnit.SECONDS.toNanos(1);
+	static public final int  DEFAULT_SONAR  = 40;
+	static public final int  DEFAULT_STATUS = 5;
+
+	/**
+	 * The most commands held back at once.  The oldest is released when
+	 * there are more.
+	 */
+	static public final int  MAX_HELD = 8;
+
+	/**
+	 * A start bit, eight data bits and a stop bit.
+	 */
+	static private final int  BITS_PER_BYTE = 10;
+
+	/**
+	 * Estimated time the Arduino spends on each type of command.  The
+	 * sonar settles after turning and then pings once per attempt; one
+	 * ping interval also covers the longest echo.
+	 */
+	static private final long WHEELS_SERVICE = TimeUnit.MILLISECONDS.toNanos(1);
+	static private final long STATUS_SERVICE = TimeUnit.MILLISECONDS.toNanos(1);
+	static private final long SERVO_SETTLE   = TimeUnit.MILLISECONDS.toNanos(50);
+	static private final long PING_INTERVAL  = TimeUnit.MILLISECONDS.toNanos(29);
+
+	static private final TrafficClass[] CLASSES = TrafficClass.values();
+
+	private final long nanosPerByte;
+
+	/**
+	 * Slice and time left in the current period for each class, in
+	 * nanoseconds.  The time left goes negative when a long command is
+	 * started near the end of a slice and is paid back in later periods.
+	 */
+	private final long[] slice  = new long[CLASSES.length];
+	private final long[] budget = new long[CLASSES.length];
+	private long         periodStart;
+
+	/**
+	 * When the last byte written should have arrived and when the Arduino
+	 * should be done with the last command.
+	 */
+	private long wireFree;
+	private long busyUntil;
+
+	/**
+	 * Totals for each class since the scheduler was created or reset.
+	 */
+	private final long[] frames  = new long[CLASSES.length];
+	private final long[] bytes   = new long[CLASSES.length];
+	private final long[] wire    = new long[CLASSES.length];
+	private final long[] service = new long[CLASSES.length];
+	private final long[] held    = new long[CLASSES.length];
+	private long         since;
+
+	private long expired      = 0;
+	private long discarded    = 0;
+	private long safetyFaults = 0;
+
+	/**
+	 * The commands arrange() moved from the batch to the held commands.
+	 */
+	private final List<MsgCapsule> incoming = new ArrayList<MsgCapsule>();
+
+	/**
+	 * Constructor for a link running at the rate USBDevice uses.
+	 */
+	public LinkScheduler()
+	{
+		this( DEFAULT_BAUD );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param baud The baud rate of the serial link.
+	 */
+	public LinkScheduler( int baud )
+	{
+		long now = System.nanoTime();
+
+		nanosPerByte = BITS_PER_BYTE * TimeUnit.SECONDS.toNanos(1) / Math.max(1, baud);
+
+		setShare( TrafficClass.SONAR,  DEFAULT_SONAR );
+		setShare( TrafficClass.STATUS, DEFAULT_STATUS );
+
+		System.arraycopy(slice, 0, budget, 0, slice.length);
+
+		periodStart = now;
+		wireFree    = now;
+		busyUntil   = now;
+		since       = now;
+	}
+
+	/**
+	 * Sets the share of each period a class may use.  Motor commands are
+	 * never held back, so their share is only what the other classes
+	 * leave and cannot be set.  SAFETY pings have no share.
+	 *
+	 * @param type    The class, SONAR or STATUS.
+	 * @param percent The share, clamped to [0..100].
+	 */
+	public synchronized void setShare( TrafficClass type, int percent )
+	{
+		if ( !hasShare(type) )
+		{
+			return;
+		}
+
+		int share = Math.min( 100, Math.max( 0, percent ) );
+		int index = type.ordinal();
+
+		slice[index]  = PERIOD * share / 100;
+		budget[index] = Math.min( budget[index], slice[index] );
+	}
+
+	/**
+	 * @return Returns the share of each period, in percent, given to a
+	 *         class.  Zero for SAFETY pings, which are not limited.
+	 */
+	public synchronized int getShare( TrafficClass type )
+	{
+		if ( type == TrafficClass.MOTOR )
+		{
+			long left = PERIOD;
+
+			for ( TrafficClass other : CLASSES )
+			{
+				left -= slice[other.ordinal()];
+			}
+
+			return (int) (Math.max(0, left) * 100 / PERIOD);
+		}
+
+		return (int) (slice[type.ordinal()] * 100 / PERIOD);
+	}
+
+	/**
+	 * @return Returns the estimated time, in nanoseconds, a number of bytes
+	 *         take on the wire.
+	 */
+	public long wireTime( int length )
+	{
+		return length * nanosPerByte;
+	}
+
+	/**
+	 * @return Returns the estimated time, in nanoseconds, the Arduino
+	 *         spends carrying out a command.
+	 */
+	public long serviceTime( CommandMsg command )
+	{
+		switch ( command.getArduinoCmdType() )
+		{
+		case TurnWheels:
+		case StopWheels:
+			return WHEELS_SERVICE;
+
+		case FindRange:
+			int attempts = ( command instanceof RangeMsg ) ?
+					((RangeMsg) command).getAttempts() : RangeMsg.DEFAULT_ATTEMPTS ;
+
+			return SERVO_SETTLE + attempts * PING_INTERVAL;
+
+		default:
+			return STATUS_SERVICE;
+		}
+	}
+
+	/**
+	 * Arranges the commands about to be written.  Motor commands stay in
+	 * the batch, in order.  Other commands join the held commands, SAFETY
+	 * pings ahead of the rest, and the first held command the Arduino has
+	 * time for is moved to the end of the batch.
+	 *
+	 * @param batch The commands about to be written.
+	 * @param hold  The commands held back so far.
+	 * @param limit The most commands the batch may hold.
+	 * @param now   The current time, as given by System.nanoTime().
+	 */
+	public synchronized void arrange( List<MsgCapsule> batch, List<MsgCapsule> hold, int limit, long now )
+	{
+		refill(now);
+
+		int i = 0;
+
+		while ( i < batch.size() )
+		{
+			CommandMsg   command = (CommandMsg) batch.get(i);
+			TrafficClass type    = classOf(command);
+
+			if ( type == TrafficClass.MOTOR )
+			{
+				++i;
+				continue;
+			}
+
+			batch.remove(i);
+			incoming.add(command);
+
+			if ( type == TrafficClass.SAFETY )
+			{
+				hold.add( safetyCount(hold), command );
+			}
+			else
+			{
+				hold.add(command);
+			}
+		}
+
+		while ( hold.size() > MAX_HELD )
+		{
+			// The oldest command that is not a SAFETY ping goes first.
+			int        oldest  = safetyCount(hold);
+			CommandMsg command = (CommandMsg) hold.remove( ( oldest < hold.size() ) ? oldest : 0 );
+
+			++discarded;
+			giveUp(command, "discarded");
+		}
+
+		boolean idle = ( busyUntil - now <= 0 );
+
+		i = 0;
+
+		while ( i < hold.size() )
+		{
+			CommandMsg   command = (CommandMsg) hold.get(i);
+			TrafficClass type    = classOf(command);
+
+			if ( command.hasExpired(now) )
+			{
+				hold.remove(i);
+				++expired;
+				giveUp(command, "expired");
+			}
+			else if ( idle && batch.size() < limit &&
+					( !hasShare(type) || budget[type.ordinal()] > 0 ) )
+			{
+				hold.remove(i);
+				batch.add(command);
+				idle = false;
+			}
+			else
+			{
+				++i;
+			}
+		}
+
+		for ( MsgCapsule command : incoming )
+		{
+			if ( hold.contains(command) )
+			{
+				++held[ classOf( (CommandMsg) command ).ordinal() ];
+			}
+		}
+
+		incoming.clear();
+
+	}   // end of arrange()
+
+	/**
+	 * Records a frame written to the Arduino, charging its wire and service
+	 * time to its class.
+	 *
+	 * @param type   The traffic class of the command written.
+	 * @param busy   Its service time, as given by serviceTime().
+	 * @param length The length of its frame, in bytes.
+	 * @param now    When it was written, as given by System.nanoTime().
+	 */
+	public synchronized void sent( TrafficClass type, long busy, int length, long now )
+	{
+		int  index  = type.ordinal();
+		long onWire = wireTime(length);
+
+		// The Arduino reads the frame once its last byte has arrived and
+		// carries it out once it is done with the ones before.
+		wireFree  = Math.max( now, wireFree ) + onWire;
+		busyUntil = Math.max( wireFree, busyUntil ) + busy;
+
+		if ( hasShare(type) )
+		{
+			budget[index] -= onWire + busy;
+		}
+
+		++frames[index];
+		bytes[index]   += length;
+		wire[index]    += onWire;
+		service[index] += busy;
+	}
+
+	/**
+	 * @return Returns the estimated time, in nanoseconds, until the Arduino
+	 *         is done with everything written to it, or zero if it already
+	 *         is.
+	 */
+	public synchronized long getBacklog( long now )
+	{
+		return Math.max( 0, busyUntil - now );
+	}
+
+	/**
+	 * @return Returns the fraction of the time since the scheduler was
+	 *         created or reset that the class kept the wire busy.
+	 */
+	public synchronized double getLinkUtilization( TrafficClass type )
+	{
+		return fraction( wire[type.ordinal()] );
+	}
+
+	/**
+	 * @return Returns the fraction of the time since the scheduler was
+	 *         created or reset that the class kept the Arduino busy.
+	 */
+	public synchronized double getArduinoUtilization( TrafficClass type )
+	{
+		return fraction( service[type.ordinal()] );
+	}
+
+	public synchronized long getFrameCount( TrafficClass type )
+	{
+		return frames[type.ordinal()];
+	}
+
+	public synchronized long getByteCount( TrafficClass type )
+	{
+		return bytes[type.ordinal()];
+	}
+
+	/**
+	 * @return Returns the number of commands of the class that were held
+	 *         back from the write they arrived for.
+	 */
+	public synchronized long getHeldCount( TrafficClass type )
+	{
+		return held[type.ordinal()];
+	}
+
+	/**
+	 * @return Returns the number of held commands released because their
+	 *         time to live ran out.
+	 */
+	public synchronized long getExpiredCount()
+	{
+		return expired;
+	}
+
+	/**
+	 * @return Returns the number of held commands released because too
+	 *         many were held.
+	 */
+	public synchronized long getDiscardedCount()
+	{
+		return discarded;
+	}
+
+	/**
+	 * @return Returns the number of SAFETY pings released without being
+	 *         sent.
+	 */
+	public synchronized long getSafetyFaultCount()
+	{
+		return safetyFaults;
+	}
+
+	/**
+	 * Starts the totals over.
+	 */
+	public synchronized void reset()
+	{
+		for ( TrafficClass type : CLASSES )
+		{
+			int index = type.ordinal();
+
+			frames[index]  = 0;
+			bytes[index]   = 0;
+			wire[index]    = 0;
+			service[index] = 0;
+			held[index]    = 0;
+		}
+
+		expired      = 0;
+		discarded    = 0;
+		safetyFaults = 0;
+		since        = System.nanoTime();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder text = new StringBuilder();
+
+		for ( TrafficClass type : CLASSES )
+		{
+			text.append(String.format("%s share=%d%% frames=%d bytes=%d link=%.1f%% arduino=%.1f%% held=%d; ",
+					type, getShare(type), getFrameCount(type), getByteCount(type),
+					100.0 * getLinkUtilization(type), 100.0 * getArduinoUtilization(type),
+					getHeldCount(type)));
+		}
+
+		text.append(String.format("expired=%d discarded=%d safetyFaults=%d", expired, discarded, safetyFaults));
+
+		return text.toString();
+	}
+
+	/**
+	 * Gives each class its slice for every period that has begun since the
+	 * last refill.  Unused time is not carried over; time overdrawn is.
+	 */
+	private void refill( long now )
+	{
+		long periods = (now - periodStart) / PERIOD;
+
+		if ( periods <= 0 )
+		{
+			return;
+		}
+
+		periodStart += periods * PERIOD;
+
+		for ( TrafficClass type : CLASSES )
+		{
+			int index = type.ordinal();
+
+			budget[index] = Math.min( slice[index], budget[index] + periods * slice[index] );
+		}
+	}
+
+	private double fraction( long nanos )
+	{
+		long elapsed = System.nanoTime() - since;
+
+		return ( elapsed <= 0 ) ? 0.0 : (double) nanos / elapsed ;
+	}
+
+	/**
+	 * Releases a held command that will not be sent.  A SAFETY ping is a
+	 * fault: its submitter is told it timed out.
+	 */
+	private void giveUp( CommandMsg command, String reason )
+	{
+		if ( classOf(command) == TrafficClass.SAFETY )
+		{
+			++safetyFaults;
+
+			System.out.println("Safety ping " + command.getMsgId() + " " + reason + " before it could be sent");
+
+			command.fail( new TimeoutException("Safety ping " + command.getMsgId() + " was not sent in time") );
+		}
+
+		command.release();
+	}
+
+	/**
+	 * @return Returns the number of SAFETY pings at the front of the held
+	 *         commands.
+	 */
+	static private int safetyCount( List<MsgCapsule> hold )
+	{
+		int count = 0;
+
+		while ( count < hold.size() && classOf( (CommandMsg) hold.get(count) ) == TrafficClass.SAFETY )
+		{
+			++count;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return Returns true for the classes limited to a share of each
+	 *         period.
+	 */
+	static private boolean hasShare( TrafficClass type )
+	{
+		return type == TrafficClass.SONAR || type == TrafficClass.STATUS;
+	}
+
+	static private TrafficClass classOf( CommandMsg command )
+	{
+		return TrafficClass.of(command);
+	}
+
+}   // end of class LinkScheduler
@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Link Supervisor keeps the USB link to the Arduino open.  If the
+ * Arduino resets or the USB cable bounces, reading or writing fails or the
+ * USB device file disappears, and the link is marked as lost.  The
+ * supervisor then searches for the Arduino again, backing off between
+ * attempts, and puts the new Serial device into the shared USBDevice.  The
+ * Command and Response Controllers keep running and pick up the new link
+ * by themselves.
+ *
+ * While the link is down the Command Controller leaves commands in the
+ * Command Pipeline, where motor commands are conflated, so only the latest
+ * one is sent once the link is back.
+ */
+public class LinkSupervisor extends Thread
+{
+	/**
+	 * How often, in milliseconds, the USB device file of an open link is
+	 * checked.
+	 */
+	static private final long CHECK_PERIOD = 100;
+
+	/**
+	 * The first and the longest wait, in milliseconds, between attempts
+	 * to find the Arduino.
+	 */
+	static private final long MIN_BACKOFF  = 50;
+	static private final long MAX_BACKOFF  = 2000;
+
+	private final USBDevice   arduino;
+
+	private volatile boolean  keepRunning = true;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param device The USB device shared by the Command and Response
+	 *               Controllers.
+	 */
+	public LinkSupervisor( USBDevice device )
+	{
+		super("ArduinoLink");
+
+		arduino = device;
+
+		setDaemon(true);
+	}
+
+	@Override
+	public void run()
+	{
+		long backoff = MIN_BACKOFF;
+
+		while ( keepRunning )
+		{
+			if ( arduino.isOpen() )
+			{
+				if ( !arduino.awaitClosed(CHECK_PERIOD, TimeUnit.MILLISECONDS) &&
+						!arduino.isPortPresent() )
+				{
+					arduino.linkLost();
+				}
+
+				continue;
+			}
+
+			if ( arduino.open() )
+			{
+				backoff = MIN_BACKOFF;
+
+				System.out.println(String.format("Arduino link restored on %s after %d ms (%d outages)",
+						arduino.port(),
+						TimeUnit.NANOSECONDS.toMillis(arduino.getLastOutage()),
+						arduino.getOutageCount()));
+			}
+			else
+			{
+				try
+				{
+					Thread.sleep(backoff);
+				}
+				catch ( InterruptedException exc )
+				{
+					// Woken up by terminate().
+				}
+
+				backoff = Math.min(backoff * 2, MAX_BACKOFF);
+			}
+		}
+
+	}   // end of run()
+
+	/**
+	 * Stops the supervisor.  The link is left as it is.
+	 */
+	public void terminate()
+	{
+		keepRunning = false;
+
+		this.interrupt();
+	}
+
+}   // end of class LinkSupervisor
@@ -1,144 +1,298 @@
 /**
- * 
+ *
  */
 package com.lebruns.steven.robotcar;
 
-import java.util.HashMap;
-import java.util.Map;
- 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 
 /**
  * @author Steven F. LeBrun
  *
  * The MailBag is a container of message capsules.  Message capsules that
- * have been processed and whose message was sent to the Arduino are placed 
+ * have been processed and whose message was sent to the Arduino are placed
  * in this container.  The message capsules are removed when a response to
  * the message has been received from the Arduino to finish processing.
+ *
+ * The Command Controller and the Response Controller use the MailBag from
+ * different threads for every command, so it is a lock-free open addressing
+ * table keyed directly by the message ID.  Each slot is updated with a
+ * compare and set, so no boxing and no locking is needed.
+ *
+ * A message starts looking for a slot at (ID & mask) and takes the first
+ * free slot after that.  Message IDs are handed out in sequence, so
+ * commands that are in flight at the same time rarely share a home slot.
+ * The largest distance any message has been placed from its home slot is
+ * remembered, and a lookup checks that many slots.  Lookups do not stop at
+ * an empty slot, so removing a message simply empties its slot and no
+ * deleted markers are needed.
  */
 public class MailBag
 {
 	/**
-	 * Lock is used to make instances of this class thread-safe.  We are
-	 * not making the assumption that the container class used is already
-	 * thread-safe.
+	 * Default number of commands expected to be waiting for a response
+	 * at the same time.
 	 */
-	private Object lock = new Object();
+	static public final int DEFAULT_IN_FLIGHT = 64;
 
-	private Map<Integer, MsgCapsule> bag = null;
 	/**
-	 * 
+	 * The table is kept at least this many times larger than the expected
+	 * number of commands in flight, which keeps the probes short.
+	 */
+	static private final int LOAD_FACTOR = 4;
+
+	private final AtomicReferenceArray<MsgCapsule> slots;
+	private final int                              mask;
+
+	/**
+	 * The largest distance between a message's home slot and the slot it
+	 * was placed in.
+	 */
+	private final AtomicInteger maxProbe = new AtomicInteger(0);
+
+	private final AtomicInteger count    = new AtomicInteger(0);
+
+	/**
+	 * Number of messages that could not be stored because every slot was
+	 * taken.
+	 */
+	private final AtomicInteger overflow = new AtomicInteger(0);
+
+	/**
+	 * The thread waiting in awaitSizeBelow(), woken up when a message is
+	 * removed.  Only the Command Controller waits, so one is enough.
+	 */
+	private volatile Thread waiter = null;
+
+	/**
+	 * Constructor for a MailBag sized for DEFAULT_IN_FLIGHT commands.
 	 */
 	public MailBag()
 	{
-		bag = new HashMap<Integer, MsgCapsule>();
+		this( DEFAULT_IN_FLIGHT );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param expectedInFlight The number of commands expected to be waiting
+	 *                         for a response at the same time.
+	 */
+	public MailBag( int expectedInFlight )
+	{
+		int size = 1;
+
+		while ( size < expectedInFlight * LOAD_FACTOR )
+		{
+			size <<= 1;
+		}
+
+		slots = new AtomicReferenceArray<MsgCapsule>(size);
+		mask  = size - 1;
 	}
-	
+
 	/**
 	 * Adds a message capsule to the container.  The key used to store
-	 * the message is the ID of message.  
-	 * 
+	 * the message is the ID of message.
+	 *
 	 * @param message  The Message Capsule to be stored
-	 * 
+	 *
+	 * @return Returns @b true if the message was stored.  Returns @b false
+	 *         if the container is full.
+	 *
 	 * @pre It is the caller's responsibility to make sure that only message
 	 *      capsules that have been processed are placed in this container.
 	 *      It is also the caller's responsibility to set the message capsule
 	 *      state to 'has been processed'.
 	 */
-	public void insert(MsgCapsule message)
+	public boolean insert(MsgCapsule message)
 	{
-		Integer key = new Integer(message.getMsgId());
-		
-		// Do not assume that container used is thread safe.
-		synchronized (lock)
+		int home = message.getMsgId() & mask;
+
+		for ( int probe = 0 ; probe <= mask ; ++probe )
 		{
-			bag.put(key, message);
+			int slot = (home + probe) & mask;
+
+			if ( slots.get(slot) == null && slots.compareAndSet(slot, null, message) )
+			{
+				maxProbe.accumulateAndGet(probe, Math::max);
+				count.incrementAndGet();
+
+				return true;
+			}
 		}
-	}
+
+		overflow.incrementAndGet();
+
+		return false;
+
+	}   // end of insert()
 
 	/**
 	 * Determines if a message capsule is in the container.
-	 * 
+	 *
 	 * @param id The Unique ID of the message capsule being searched for.
-	 * 
-	 * @return Returns true if the Message Capsule is in the container.  
+	 *
+	 * @return Returns true if the Message Capsule is in the container.
 	 *         Returns false if the Message Capsule is not in the container.
 	 */
 	public boolean contains(int id)
 	{
-		Integer key = new Integer(id);
-				
-		return contains(key);
-	} 
-	
-	private boolean contains(Integer key)
-	{
-		boolean  result = false;
-		
-		synchronized (lock)
-		{
-			result = bag.containsKey(key);
-		}
-		
-		return result;
-	} 
-	
+		return find(id) >= 0;
+	}
+
 	/**
-	 * Gets a Command Message from the container and removes it from 
+	 * Gets a Command Message from the container and removes it from
 	 * the container.
-	 * 
+	 *
 	 * @param uid The Unique ID assigned to the Command Message.
-	 * 
+	 *
 	 * @return Returns the Command Message if it is in the container.
 	 *         Returns null if the Command Message is not in the container.
 	 */
 	public MsgCapsule fetch(int id)
 	{
-		Integer  key = new Integer(id);
-		
-		MsgCapsule message = null;
-		
-		if ( contains( id) )
+		int home  = id & mask;
+		int limit = maxProbe.get();
+
+		for ( int probe = 0 ; probe <= limit ; ++probe )
 		{
-			synchronized(lock)
+			int        slot    = (home + probe) & mask;
+			MsgCapsule message = slots.get(slot);
+
+			if ( message != null && message.getMsgId() == id &&
+					slots.compareAndSet(slot, message, null) )
 			{
-				message = bag.remove(key);
+				count.decrementAndGet();
+
+				if ( message.getMsgId() != id )
+				{
+					// Another thread removed the message and it was reused
+					// and stored again before our compare and set.  Put it
+					// back and keep looking.
+					insert(message);
+					continue;
+				}
+
+				Thread sleeper = waiter;
+
+				if ( sleeper != null )
+				{
+					LockSupport.unpark(sleeper);
+				}
+
+				return message;
 			}
 		}
-		
-		return message;
-	}
-	
+
+		return null;
+
+	}   // end of fetch()
+
 	/**
 	 * Gets a Command Message from the container.  The Command Message
 	 * remains in the container.
-	 * 
+	 *
 	 * @param uid The Unique ID assigned to the Command Message.
-	 * 
+	 *
 	 * @return    Returns the Command Message if it is in the container.
 	 *            Returns null if the Command Message is not in the container.
 	 */
 	public MsgCapsule get(int uid)
 	{
-		Integer key = new Integer(uid);
-		
-		MsgCapsule message = null;
-		
-		if ( contains(key) )
+		int slot = find(uid);
+
+		return ( slot < 0 ) ? null : slots.get(slot) ;
+	}
+
+	public int size()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Waits until fewer than limit messages are in the container.  Only
+	 * one thread may wait at a time.
+	 * 
+	 * @param limit    The number of messages to get below.
+	 * @param deadline The time, as given by System.nanoTime(), at which to
+	 *                 give up waiting.
+	 * 
+	 * @return Returns true if fewer than limit messages are in the
+	 *         container.  Returns false if the deadline passed or the
+	 *         thread was interrupted.
+	 */
+	public boolean awaitSizeBelow(int limit, long deadline)
+	{
+		Thread me = Thread.currentThread();
+
+		waiter = me;
+
+		try
 		{
-			synchronized (lock)
+			while ( count.get() >= limit )
 			{
-				message = bag.get(key);
+				long remaining = deadline - System.nanoTime();
+
+				if ( remaining <= 0 || me.isInterrupted() )
+				{
+					return false;
+				}
+
+				LockSupport.parkNanos(this, remaining);
 			}
+
+			return true;
+		}
+		finally
+		{
+			waiter = null;
 		}
-		
-		return message;
 	}
-	
-	public int size()
+
+	/**
+	 * @return Returns the number of messages that could not be stored
+	 *         because the container was full.
+	 */
+	public int getOverflowCount()
 	{
-		return bag.size();
+		return overflow.get();
 	}
-	
-}   // end of class MailBag
 
+	/**
+	 * @return Returns the longest probe needed to place a message.
+	 */
+	public int getMaxProbe()
+	{
+		return maxProbe.get();
+	}
+
+	/**
+	 * Finds the slot holding a message.
+	 *
+	 * @return Returns the slot index or -1 if the message is not in the
+	 *         container.
+	 */
+	private int find(int id)
+	{
+		int home  = id & mask;
+		int limit = maxProbe.get();
+
+		for ( int probe = 0 ; probe <= limit ; ++probe )
+		{
+			int        slot    = (home + probe) & mask;
+			MsgCapsule message = slots.get(slot);
+
+			if ( message != null && message.getMsgId() == id )
+			{
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+}   // end of class MailBag
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import com.lebruns.steven.robotcar.pipeline.MsgPool;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The MessageFactory hands out the message capsules that are sent over and
+ * over while the car is driving.  Messages are taken from a MsgPool so that
+ * continuous driving does not turn into a steady stream of garbage.
+ *
+ * Life cycle of a pooled message:
+ *   -- A controller gets the message from the factory and puts it in a
+ *      Pipeline.
+ *   -- A Command Message is sent to the Arduino and placed in the MailBag.
+ *      The Response Controller releases it after fetching it from the
+ *      MailBag, which is where the life of a command ends.
+ *   -- A WatchDog Message is released by the WatchDog Controller once it
+ *      has been processed.
+ *   -- A message that a Pipeline throws away (dropped, conflated, expired
+ *      or flushed) is released by the Pipeline.
+ *
+ * A message must not be touched by anyone after it has been released.
+ */
+public class MessageFactory
+{
+	static private final MsgPool<MotorMsg> motorPool =
+			new MsgPool<MotorMsg>( () -> new MotorMsg(0) );
+
+	static private final MsgPool<RangeMsg> rangePool =
+			new MsgPool<RangeMsg>( () -> new RangeMsg() );
+
+	static private final MsgPool<WatchDogMsg> watchDogPool =
+			new MsgPool<WatchDogMsg>( () -> new WatchDogMsg(false) );
+
+	static private final MsgPool<EmergencyStopMsg> stopPool =
+			new MsgPool<EmergencyStopMsg>( () -> new EmergencyStopMsg(), 4 );
+
+	/**
+	 * All methods are static.
+	 */
+	private MessageFactory()
+	{
+		return;
+	}
+
+	/**
+	 * Gets a STOP, FORWARD or BACKWARD Motor Message.
+	 *
+	 * @see MotorMsg#MotorMsg(int)
+	 */
+	static public MotorMsg motor( int speed )
+	{
+		MotorMsg msg = motorPool.acquire();
+
+		msg.setSpeed( speed );
+
+		return msg;
+	}
+
+	/**
+	 * Gets a TURN Motor Message.
+	 *
+	 * @see MotorMsg#MotorMsg(boolean, int, int)
+	 */
+	static public MotorMsg turn( boolean rightTurn, int speed, int rate )
+	{
+		MotorMsg msg = motorPool.acquire();
+
+		msg.setTurn( rightTurn, speed, rate );
+
+		return msg;
+	}
+
+	/**
+	 * Gets a Range Message that averages the default number of attempts.
+	 *
+	 * @see RangeMsg#RangeMsg(int, int)
+	 */
+	static public RangeMsg range( int range, int angle )
+	{
+		return range( range, angle, RangeMsg.DEFAULT_ATTEMPTS );
+	}
+
+	/**
+	 * Gets a Range Message.
+	 *
+	 * @see RangeMsg#RangeMsg(int, int, int)
+	 */
+	static public RangeMsg range( int range, int angle, int nAttempts )
+	{
+		RangeMsg msg = rangePool.acquire();
+
+		msg.setup( range, angle, nAttempts );
+
+		return msg;
+	}
+
+	static public WatchDogMsg watchDog( boolean carIsMoving )
+	{
+		WatchDogMsg msg = watchDogPool.acquire();
+
+		msg.setCarMoving( carIsMoving );
+
+		return msg;
+	}
+
+	static public EmergencyStopMsg emergencyStop()
+	{
+		return stopPool.acquire();
+	}
+
+	/**
+	 * @return Returns a one line summary per pool of how many messages
+	 *         were created and how many were reused.
+	 */
+	static public String getStats()
+	{
+		return String.format("Motor: %s%nRange: %s%nWatchDog: %s%nEmergencyStop: %s",
+				motorPool, rangePool, watchDogPool, stopPool);
+	}
+
+}   // end of class MessageFactory
@@ -3,12 +3,26 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.nio.ByteBuffer;
+
+import com.lebruns.steven.robotcar.pipeline.ConflatingMessage;
+
 /**
  * @author Steven F. LeBrun
  *
+ * A Motor Message sets the speed of all four wheels.  Each Motor Message
+ * completely replaces the wheel speeds set by the previous one, so a Motor
+ * Message that has not been sent yet is replaced by a newer one when the
+ * Command Pipeline conflates messages.
  */
-public class MotorMsg extends CommandMsg
+public class MotorMsg extends CommandMsg implements ConflatingMessage
 {
+	/**
+	 * Conflation key shared by all Motor Messages since each one sets
+	 * every wheel.
+	 */
+	static private final int ALL_WHEELS = 1;
+	
 	private MotorCmd  cmdType;
 	
 	private int leftSpeed;
@@ -22,6 +36,34 @@ public class MotorMsg extends CommandMsg
 	 *              Legal range: [-255 to 255]
 	 */
 	public MotorMsg( int speed )
+	{
+		setSpeed( speed );
+	}
+	
+	/**
+	 * Constructor for a TURN motor message.
+	 * 
+	 * @param rightTurn Boolean flag.  Set to @b true to turn to the right.
+	 *                  Set to @b false to turn to the left.
+	 * @param speed     The speed to run the fastest wheels on the opposite 
+	 *                  side of the turn.  Legal range: [-255 to 255]
+	 * @param rate      The speed to run the slowest wheels on the side of
+	 *                  the turn.  Legal range: [-255 to 255]
+	 */
+	public MotorMsg( boolean rightTurn, int speed, int rate )
+	{
+		setTurn( rightTurn, speed, rate );
+	}
+	
+	/**
+	 * Makes this a STOP, FORWARD or BACKWARD motor message.  Used by the
+	 * constructor and by the MessageFactory to fill in a reused message.
+	 * 
+	 * @param speed The speed to run the motors at.  Negative speeds
+	 *              result in backwards or reverse motion.
+	 *              Legal range: [-255 to 255]
+	 */
+	void setSpeed( int speed )
 	{
 		leftSpeed = rightSpeed = speed;
 		
@@ -42,16 +84,12 @@ public class MotorMsg extends CommandMsg
 	}
 	
 	/**
-	 * Constructor for a TURN motor message.
+	 * Makes this a TURN motor message.  Used by the constructor and by the
+	 * MessageFactory to fill in a reused message.
 	 * 
-	 * @param rightTurn Boolean flag.  Set to @b true to turn to the right.
-	 *                  Set to @b false to turn to the left.
-	 * @param speed     The speed to run the fastest wheels on the opposite 
-	 *                  side of the turn.  Legal range: [-255 to 255]
-	 * @param rate      The speed to run the slowest wheels on the side of
-	 *                  the turn.  Legal range: [-255 to 255]
+	 * @see #MotorMsg(boolean, int, int)
 	 */
-	public MotorMsg( boolean rightTurn, int speed, int rate )
+	void setTurn( boolean rightTurn, int speed, int rate )
 	{
 		cmdType = (rightTurn) ? MotorCmd.TURN_RIGHT : MotorCmd.TURN_LEFT ;
 		
@@ -115,23 +153,25 @@ public class MotorMsg extends CommandMsg
 	 *    C:<MsgID>:TW:1:<Speed>;
 	 *    C:<MsgID>:TW:2:<LeftSpeed>:<RightSpeed>;
 	 *    C:<MsgID>:TW:4:<LeftFront>:<RightFront>:LeftRear>:<RightRear>;
+	 *    
+	 * @see com.lebruns.steven.robotcar.CommandMsg#encodeTo(ByteBuffer)
 	 */
-	public String getMessage()
+	@Override
+	public void encodeTo( ByteBuffer dst )
 	{
-		 String message = COMMAND           + SEPARATOR +
-			Integer.toString(getMsgId())    + SEPARATOR;
+		 putHeader(dst);
 		 
 		 switch ( cmdType )
 		 {
 		 case STOP:
-			 message += getStopMessage();
+			 putStopMessage(dst);
 			 break;
 			 
 		 case FORWARD:
 		 case BACKWARD:
 		 case TURN_LEFT:
 		 case TURN_RIGHT:
-			 message += getMoveMessage();
+			 putMoveMessage(dst);
 			 break;
 			 
 			 default:
@@ -139,17 +179,26 @@ public class MotorMsg extends CommandMsg
 				  * @todo Add Error Handling here.
 				  */
 		 }
-		 
-		 
-		 return message;
 
-	}   // end of getMessage()
+	}   // end of encodeTo()
 	
-	private String getStopMessage()
+	/**
+	 * A STOP motor message is sent as a Stop Wheels command.  Every other
+	 * motor message is sent as a Turn Wheels command.
+	 * 
+	 * @see com.lebruns.steven.robotcar.CommandMsg#getArduinoCmdType()
+	 */
+	@Override
+	public ArduinoCmdType getArduinoCmdType()
 	{
-		String args = STOP + TERMINATOR;
-		
-		return args;
+		return ( cmdType == MotorCmd.STOP ) ?
+				ArduinoCmdType.StopWheels : ArduinoCmdType.TurnWheels ;
+	}
+	
+	private void putStopMessage( ByteBuffer dst )
+	{
+		putText(dst, STOP);
+		putText(dst, TERMINATOR);
 	}
 	
 //	private String getStraightMessage()
@@ -177,23 +226,47 @@ public class MotorMsg extends CommandMsg
 //	}
 
 	
-	private String getMoveMessage()
+	/**
+	 * @return Returns the speed sent to the Arduino for a wheel, after the
+	 *         motor corrections of Motor.convertSpeed().
+	 */
+	int getWheelSpeed( Wheels wheel )
 	{
-		int left_front   = Motor.convertSpeed(Wheels.LEFT_FRONT, getLeftSpeed());
-		int left_rear    = Motor.convertSpeed(Wheels.LEFT_REAR,  getLeftSpeed());
-		int right_front  = Motor.convertSpeed(Wheels.RIGHT_FRONT, getRightSpeed());
-		int right_rear   = Motor.convertSpeed(Wheels.RIGHT_REAR,  getRightSpeed());
+		boolean left = ( wheel == Wheels.LEFT_FRONT || wheel == Wheels.LEFT_REAR );
 		
-		String leftFront  = Integer.toString(left_front);
-		String leftRear   = Integer.toString(left_rear);
-		String rightFront = Integer.toString(right_front);
-		String rightRear  = Integer.toString(right_rear);
-		
-		String args = MOVE  + SEPARATOR + "4"        + SEPARATOR +
-				leftFront   + SEPARATOR + rightFront + SEPARATOR +
-				leftRear    + SEPARATOR + rightRear  + TERMINATOR;
+		return Motor.convertSpeed(wheel, left ? getLeftSpeed() : getRightSpeed());
+	}
+	
+	private void putMoveMessage( ByteBuffer dst )
+	{
+		int left_front   = getWheelSpeed(Wheels.LEFT_FRONT);
+		int left_rear    = getWheelSpeed(Wheels.LEFT_REAR);
+		int right_front  = getWheelSpeed(Wheels.RIGHT_FRONT);
+		int right_rear   = getWheelSpeed(Wheels.RIGHT_REAR);
 		
-		return args;
+		putText(dst, MOVE);
+		putText(dst, SEPARATOR);
+		putInt(dst, 4);
+		putText(dst, SEPARATOR);
+		putInt(dst, left_front);
+		putText(dst, SEPARATOR);
+		putInt(dst, right_front);
+		putText(dst, SEPARATOR);
+		putInt(dst, left_rear);
+		putText(dst, SEPARATOR);
+		putInt(dst, right_rear);
+		putText(dst, TERMINATOR);
+	}
+	
+	/**
+	 * All Motor Messages conflate with each other.
+	 * 
+	 * @see com.lebruns.steven.robotcar.pipeline.ConflatingMessage#conflationKey()
+	 */
+	@Override
+	public int conflationKey()
+	{
+		return ALL_WHEELS;
 	}
 	
 	public boolean isStopped()
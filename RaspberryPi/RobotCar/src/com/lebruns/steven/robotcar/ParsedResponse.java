@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A ParsedResponse holds the fields of one message from the Arduino, as
+ * decoded by the ResponseParser.  The Response Controller keeps a single
+ * ParsedResponse and reuses it for every message, so the fields are plain
+ * numbers and positions in the buffer the message was read into; nothing
+ * is allocated unless a field is asked for as a String.
+ *
+ * The arguments are the fields after the command type.  An argument that
+ * is a whole number is also available as an int.
+ *
+ * The contents are only valid until the next message is parsed.
+ */
+final class ParsedResponse
+{
+	/**
+	 * The most arguments a message can have.
+	 */
+	static final int MAX_ARGS = 8;
+
+	ArduinoMsgType msgType = null;
+	int            msgId   = 0;
+	ArduinoCmdType cmdType = ArduinoCmdType.UNKNOWN;
+
+	int            argCount = 0;
+
+	final int[]     args      = new int[MAX_ARGS];
+	final boolean[] numeric   = new boolean[MAX_ARGS];
+	final int[]     argStart  = new int[MAX_ARGS];
+	final int[]     argLength = new int[MAX_ARGS];
+
+	/**
+	 * The buffer holding the message.
+	 */
+	byte[]         source = null;
+
+	/**
+	 * Empties the response before a message is parsed into it.
+	 */
+	void clear( byte[] data )
+	{
+		source   = data;
+		msgType  = null;
+		msgId    = 0;
+		cmdType  = ArduinoCmdType.UNKNOWN;
+		argCount = 0;
+	}
+
+	public ArduinoMsgType getMsgType()
+	{
+		return msgType;
+	}
+
+	public int getMsgId()
+	{
+		return msgId;
+	}
+
+	public ArduinoCmdType getCmdType()
+	{
+		return cmdType;
+	}
+
+	public int getArgCount()
+	{
+		return argCount;
+	}
+
+	/**
+	 * @return Returns true if the argument is a whole number.
+	 */
+	public boolean isNumeric( int index )
+	{
+		return index < argCount && numeric[index];
+	}
+
+	/**
+	 * @return Returns the value of a numeric argument.  Returns 0 if the
+	 *         argument is not a number.
+	 */
+	public int getArg( int index )
+	{
+		return isNumeric(index) ? args[index] : 0 ;
+	}
+
+	/**
+	 * @return Returns a copy of an argument as a String.  Numbers are
+	 *         written out in full, whichever framing they arrived in.
+	 */
+	public String getArgText( int index )
+	{
+		if ( numeric[index] )
+		{
+			return Integer.toString(args[index]);
+		}
+		
+		return new String(source, argStart[index], argLength[index], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return Returns a copy of the arguments as Strings.
+	 */
+	public String[] getArgTexts()
+	{
+		String[] texts = new String[argCount];
+
+		for ( int i = 0 ; i < argCount ; ++i )
+		{
+			texts[i] = getArgText(i);
+		}
+
+		return texts;
+	}
+
+}   // end of class ParsedResponse
@@ -3,10 +3,14 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.lebruns.steven.robotcar.pipeline.LaneScheduling;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
+import com.lebruns.steven.robotcar.pipeline.PipelineOverflowPolicy;
+import com.lebruns.steven.robotcar.pipeline.PipelineStats;
 
 
 /**
@@ -21,6 +25,30 @@ public class PipeWork
 	static private PipeWork  pipework = null;
 	static private String    valve    = "Thread Lock";
 	
+	/**
+	 * Capacity and overflow policy for each Pipeline.  The array for each
+	 * Pipeline is allocated once so a flood of messages cannot grow memory
+	 * use or queueing delay without limit.
+	 * 
+	 * Commands that have waited while newer ones arrived are stale, so the
+	 * oldest is dropped.  Display messages are informational and newer ones
+	 * are dropped.  Only the newest WatchDog moving state matters.
+	 */
+	static private final int                    COMMAND_CAPACITY  = 32;
+	static private final PipelineOverflowPolicy COMMAND_OVERFLOW  = PipelineOverflowPolicy.DROP_OLDEST;
+	static private final int                    DISPLAY_CAPACITY  = 64;
+	static private final PipelineOverflowPolicy DISPLAY_OVERFLOW  = PipelineOverflowPolicy.DROP_NEWEST;
+	static private final int                    WATCHDOG_CAPACITY = 8;
+	static private final PipelineOverflowPolicy WATCHDOG_OVERFLOW = PipelineOverflowPolicy.DROP_OLDEST;
+	
+	/**
+	 * Priority lanes of the Command Pipeline.
+	 */
+	static private final int MOTOR_LANE        = 0;
+	static private final int RANGE_LANE        = 1;
+	static private final int MOTOR_LANE_WEIGHT = 2;
+	static private final int RANGE_LANE_WEIGHT = 1;
+	
 	private Map<PipeSink, Pipeline> pipes = null;
 	
 	/**
@@ -78,9 +106,21 @@ public class PipeWork
 	
 	private void init()
 	{
-		Pipeline commands = new CommandPipe();
-		Pipeline display  = new DisplayPipe();
-		Pipeline watchdog = new WatchDogPipe();
+		Pipeline commands = new CommandPipe(COMMAND_CAPACITY, COMMAND_OVERFLOW);
+		Pipeline display  = new DisplayPipe(DISPLAY_CAPACITY, DISPLAY_OVERFLOW);
+		Pipeline watchdog = new WatchDogPipe(WATCHDOG_CAPACITY, WATCHDOG_OVERFLOW);
+		
+		// Only the latest wheel speeds matter, so a Motor Message that has
+		// not been sent yet is replaced by a newer one.
+		commands.setConflation(true);
+		
+		// Motor and Range Messages travel in separate lanes so that a burst
+		// of one does not hold up the other.  The lanes take turns, with
+		// the motor lane allowed two messages per turn.
+		commands.configureLanes(LaneScheduling.WEIGHTED_ROUND_ROBIN, 
+				MOTOR_LANE_WEIGHT, RANGE_LANE_WEIGHT);
+		commands.assignLane(MotorMsg.class, MOTOR_LANE);
+		commands.assignLane(RangeMsg.class, RANGE_LANE);
 		
 		pipes.put(PipeSink.COMMAND_SINK, commands);
 		pipes.put(PipeSink.DISPLAY_SINK, display);
@@ -100,5 +140,39 @@ public class PipeWork
 		return null;
 	}
 	
+	/**
+	 * Takes a snapshot of the counters of a single Pipeline.
+	 * 
+	 * @param type The Pipeline in question.
+	 * 
+	 * @return Returns the counters of the Pipeline or @b null if there is
+	 *         no Pipeline for that sink.
+	 */
+	public PipelineStats getStats( PipeSink type )
+	{
+		Pipeline pipe = getPipeline(type);
+		
+		return ( pipe == null ) ? null : pipe.getStats() ;
+	}
+	
+	/**
+	 * Takes a snapshot of the counters of every Pipeline.  Used by the menu
+	 * or by tools that show how deep the Pipelines get and how long
+	 * messages wait in them.
+	 * 
+	 * @return Returns the counters of each Pipeline, keyed by its sink.
+	 */
+	public Map<PipeSink, PipelineStats> getAllStats()
+	{
+		Map<PipeSink, PipelineStats> stats = new EnumMap<PipeSink, PipelineStats>(PipeSink.class);
+		
+		for ( Map.Entry<PipeSink, Pipeline> element : pipes.entrySet() )
+		{
+			stats.put( element.getKey(), element.getValue().getStats() );
+		}
+		
+		return stats;
+	}
+	
 
 }   // end of class PipeWork
@@ -3,23 +3,30 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Steven F. LeBrun
  *
  */
 public class RangeMsg extends CommandMsg
 {
-	private final int MAX_RANGE = 400;
-	private final int MAX_ATTEMPTS = 8;
+	static private final int MAX_RANGE = 400;
+	static private final int MAX_ATTEMPTS = 8;
 	
-	private final int DEFAULT_RANGE    = MAX_RANGE;
-	private final int DEFAULT_ANGLE    = 0;
-	private final int DEFAULT_ATTEMPTS = 4;
+	static private final int DEFAULT_RANGE    = MAX_RANGE;
+	static private final int DEFAULT_ANGLE    = 0;
+	static final int DEFAULT_ATTEMPTS = 4;
 	
 	private int maxRange;
 	private int direction;
 	private int attempts;
 	
+	/**
+	 * Set when the car's safety depends on the range found.
+	 */
+	private boolean safety = false;
+	
 	public RangeMsg()
 	{
 		setup( DEFAULT_RANGE, DEFAULT_ANGLE, DEFAULT_ATTEMPTS);
@@ -70,6 +77,33 @@ public class RangeMsg extends CommandMsg
 		return attempts;
 	}
 	
+	/**
+	 * Marks the range finding as one the car's safety depends on, such as
+	 * a collision check while an obstacle is close.  The Link Scheduler
+	 * never holds such a range finding back for lack of a share, and
+	 * reports it as a fault if it could not be sent in time.
+	 */
+	public void setSafety( boolean critical )
+	{
+		safety = critical;
+	}
+	
+	public boolean isSafety()
+	{
+		return safety;
+	}
+	
+	/**
+	 * @see com.lebruns.steven.robotcar.CommandMsg#reset()
+	 */
+	@Override
+	protected void reset()
+	{
+		super.reset();
+		
+		safety = false;
+	}
+	
 	/**
 	 * 
 	 * @param range     The maximum distance to search for an object, in cm.
@@ -83,8 +117,10 @@ public class RangeMsg extends CommandMsg
 	 * @param nAttempts Number of range findings to average together for the
 	 *                  final results.
 	 *                  Legal Range: [1..8]
+	 * 
+	 * Also used by the MessageFactory to fill in a reused Range Message.
 	 */
-	private void setup( int range, int angle, int nAttempts )
+	void setup( int range, int angle, int nAttempts )
 	{
 		// Set maximum range : [0 .. MAX_RANGE] where zero is infinity.
 		if ( range > MAX_RANGE )
@@ -136,17 +172,30 @@ public class RangeMsg extends CommandMsg
 	/**
 	 * Syntax of Arduino Find Range Command is:
 	 *   C:<MsgID>:FR:<angle>:<attempts>:<maxRange>;
+	 *   
+	 * @see com.lebruns.steven.robotcar.CommandMsg#encodeTo(ByteBuffer)
 	 */
-	public String getMessage()
+	@Override
+	public void encodeTo( ByteBuffer dst )
 	{
-		String message = COMMAND                + SEPARATOR +
-				Integer.toString(getMsgId())    + SEPARATOR +
-				this.RANGE                      + SEPARATOR + 
-				Integer.toString(getAngle() )   + SEPARATOR +
-				Integer.toString(getAttempts()) + SEPARATOR +
-				Integer.toString(getRange())    + TERMINATOR;
-		
-		return message;
+		putHeader(dst);
+		putText(dst, RANGE);
+		putText(dst, SEPARATOR);
+		putInt(dst, getAngle());
+		putText(dst, SEPARATOR);
+		putInt(dst, getAttempts());
+		putText(dst, SEPARATOR);
+		putInt(dst, getRange());
+		putText(dst, TERMINATOR);
+	}
+	
+	/**
+	 * @see com.lebruns.steven.robotcar.CommandMsg#getArduinoCmdType()
+	 */
+	@Override
+	public ArduinoCmdType getArduinoCmdType()
+	{
+		return ArduinoCmdType.FindRange;
 	}
 
 
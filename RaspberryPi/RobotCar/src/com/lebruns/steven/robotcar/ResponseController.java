@@ -4,7 +4,9 @@
 package com.lebruns.steven.robotcar;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 
@@ -14,14 +16,8 @@ import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
  */
 public class ResponseController extends Controller
 {
-	final private String ARDUINO_SEPARATOR  = new String(":");
 	final private String ARDUINO_TERMINATOR = new String(";");
 	
-	// Message Header
-	final private int MSGTYPE = 0;
-	final private int ID      = 1;
-	final private int CMDTYPE = 2;
-	
 	// Stop Response
 	// -- No Arguments --
 //	final private int STOP_ARGS = 3;
@@ -33,23 +29,62 @@ public class ResponseController extends Controller
 //	final private int RIGHT_REAR  = 6;
 //	final private int TURN_WHEEL_ARGS = 7;
 	
-	// Find Range Response
-	final private int DISTANCE = 3;
-	final private int ANGLE    = 4;
-	final private int FIND_RANGE_ARGS = 5;
+	// Find Range Response arguments
+	final private int DISTANCE = 0;
+	final private int ANGLE    = 1;
+	final private int FIND_RANGE_ARGS = 2;
 	
 	// Find Range constants
 	final private int MIN_RANGE  = 10;  // centimeters
+	
+	/**
+	 * Milliseconds to wait at a time for a lost link to be restored.
+	 */
+	final private long LINK_WAIT = 500;
 
 	
 	private MailBag   bag     = null;
-	private USBDevice arduino = null;
+	private SerialTransport arduino = null;
+	
+	/**
+	 * Told the round trip of every answered command.  May be null.
+	 */
+	private CreditWindow    window  = null;
+	
+	/**
+	 * Told which wheel commands were acknowledged or failed.  May be null.
+	 */
+	private WheelState      wheels  = null;
+	
+	/**
+	 * Splits the bytes read from the Arduino into messages.
+	 */
+	private FrameExtractor  frames  = new FrameExtractor(FrameExtractor.DEFAULT_CAPACITY,
+			(byte) ARDUINO_TERMINATOR.charAt(0));
+	
+	/**
+	 * Decodes each message into the one reusable response.
+	 */
+	private ResponseParser  parser   = new ResponseParser();
+	private ParsedResponse  response = new ParsedResponse();
+	
+	/**
+	 * Reads and decodes the messages when binary framing is in use.
+	 */
+	private BinaryResponseDecoder  decoder = new BinaryResponseDecoder(BinaryResponseDecoder.DEFAULT_CAPACITY);
+	
+	/**
+	 * Handlers for the responses that need processing, by command type.
+	 * Responses to other commands only end the life of the command.
+	 */
+	private Map<ArduinoCmdType, ResponseHandler> handlers =
+			new EnumMap<ArduinoCmdType, ResponseHandler>(ArduinoCmdType.class);
 
 
 	/**
 	 * @param type
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag)
+	public ResponseController(SerialTransport device, MailBag mailBag)
 	{
 		super(PipeSink.RESPONSE_SINK);
 		
@@ -60,7 +95,7 @@ public class ResponseController extends Controller
 	 * @param type
 	 * @param arg0
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, Runnable arg0)
+	public ResponseController(SerialTransport device, MailBag mailBag, Runnable arg0)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0);
 
@@ -72,7 +107,7 @@ public class ResponseController extends Controller
 	 * @param type
 	 * @param arg0
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, String arg0)
+	public ResponseController(SerialTransport device, MailBag mailBag, String arg0)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0);
 
@@ -85,7 +120,7 @@ public class ResponseController extends Controller
 	 * @param arg0
 	 * @param arg1
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, ThreadGroup arg0, Runnable arg1)
+	public ResponseController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, Runnable arg1)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0, arg1);
 
@@ -98,7 +133,7 @@ public class ResponseController extends Controller
 	 * @param arg0
 	 * @param arg1
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, ThreadGroup arg0, String arg1)
+	public ResponseController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, String arg1)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0, arg1);
 
@@ -111,7 +146,7 @@ public class ResponseController extends Controller
 	 * @param arg0
 	 * @param arg1
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, Runnable arg0, String arg1)
+	public ResponseController(SerialTransport device, MailBag mailBag, Runnable arg0, String arg1)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0, arg1);
 
@@ -125,7 +160,7 @@ public class ResponseController extends Controller
 	 * @param arg1
 	 * @param arg2
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2)
+	public ResponseController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0, arg1, arg2);
 
@@ -140,7 +175,7 @@ public class ResponseController extends Controller
 	 * @param arg2
 	 * @param arg3
 	 */
-	public ResponseController(USBDevice device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2, long arg3)
+	public ResponseController(SerialTransport device, MailBag mailBag, ThreadGroup arg0, Runnable arg1, String arg2, long arg3)
 	{
 		super(PipeSink.RESPONSE_SINK, arg0, arg1, arg2, arg3);
 
@@ -154,15 +189,13 @@ public class ResponseController extends Controller
 	@Override
 	public void run()
 	{
-		String message = null;
-		
 		// Infinite Loop
 		for ( ; ; )
 		{
 			// Read bytes from Arduino until a full message has arrived
-			message = receiveMessage();
+			receiveMessage();
 			
-			processMessage(message);
+			processMessage(response);
 			
 		}   // end of infinite loop.
 
@@ -174,84 +207,103 @@ public class ResponseController extends Controller
 	 *
 	 * Used by the constructors.
 	 */
-	private void setup(USBDevice device, MailBag mailBag)
+	private void setup(SerialTransport device, MailBag mailBag)
 	{
 		arduino  = device;
 		bag      = mailBag;
 		
 		bag.size();
 		
+		handlers.put(ArduinoCmdType.FindRange, this::processFindRange);
+		
 		return;
 	}   // end of setup()
-	
-	private String receiveMessage()
+
+	/**
+	 * Sets the Credit Window that is told the round trip of each answered
+	 * command.  Should be called before the controller is started.
+	 */
+	public void setCreditWindow(CreditWindow credits)
+	{
+		window = credits;
+	}
+
+	/**
+	 * Sets the Wheel State that is told which wheel commands the Arduino
+	 * acknowledged.  Should be called before the controller is started.
+	 */
+	public void setWheelState(WheelState state)
+	{
+		wheels = state;
+	}
+
+	/**
+	 * Reads from the Arduino until a well formed message has arrived and
+	 * decodes it into the response.  Bytes are read in bulk and messages
+	 * are split out and decoded in place, so nothing is allocated.
+	 * Malformed messages are reported and skipped.
+	 */
+	private void receiveMessage()
 	{
-		StringBuilder  buffer = new StringBuilder();
-		
-		String         letter = null;
-		
-		byte[] incoming = new byte[2];
-		int    cnt      = 0;
-		
-		// Loop for reading in a full message from the Arduino.
 		for ( ; ; )
 		{
-			// Get next character.
+			boolean binary = ( arduino.getFraming() == Framing.BINARY );
+			
+			if ( binary )
+			{
+				if ( decoder.nextFrame(response) )
+				{
+					return;
+				}
+			}
+			else
+			{
+				while ( frames.nextFrame() )
+				{
+					if ( parser.parse(frames.getArray(), frames.getFrameStart(), 
+							frames.getFrameLength(), response) )
+					{
+						return;
+					}
+					
+					System.out.println("Malformed Arduino message: " + frames.getFrame());
+				}
+			}
+			
+			int cnt = 0;
+			
 	        try
 			{
-				cnt = arduino.read(incoming, 1);
+				cnt = binary ? decoder.fill(arduino) : frames.fill(arduino);
 			} 
 	        catch (IOException e)
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+	        	cnt = -1;
 			}
 	        
-	        if ( cnt == 1 )
+	        if ( cnt < 0 )
 	        {
-	        	// we got a new character
-	        	try
-	    		{
-	        		letter = new String(incoming, "UTF-8");
-	    		}
-	        	catch (UnsupportedEncodingException e)
-	        	{
-	        		// TODO Auto-generated catch block
-	        		e.printStackTrace();
-	    		}
-
-	        	buffer.append(letter);
-    		
-	        	if ( letter.equals(ARDUINO_TERMINATOR) ) 
-	        	{
-	        		break;
-	        	}
-	        }   // end of append letter to buffer
-
-		}   //  end of loop that reads a message
-
-		
-		return buffer.toString();
+	        	// The link is down.  Wait for the Link Supervisor to
+	        	// restore it; a partial message is lost with the link.
+	        	frames.clear();
+	        	decoder.clear();
+	        	
+	        	arduino.awaitOpen(LINK_WAIT, TimeUnit.MILLISECONDS);
+	        }
+		}
 	}   // end of receiveMessage()
 	
-	private void processMessage( String message )
+	private void processMessage( ParsedResponse message )
 	{		
-		String[] parts = message.split(ARDUINO_SEPARATOR);
+		ArduinoMsgType msgType = message.getMsgType();
 		
-		if ( parts.length < 3 )
+		if ( msgType == ArduinoMsgType.RESPONSE )
 		{
-			/** @todo Error Handling goes here. */
-		}
-		
-		int  msgId = Integer.parseInt(parts[ID]);
-		
-		if ( parts[MSGTYPE].equals(ArduinoMsgType.RESPONSE.toString()) )
-		{
-			processResponse(msgId, parts);
+			processResponse(message);
 		}
-		else if ( parts[MSGTYPE].equals(ArduinoMsgType.ERROR.toString()) )
+		else if ( msgType == ArduinoMsgType.ERROR )
 		{
-			processError(msgId, parts);
+			processError(message);
 		}
 		else
 		{
@@ -262,49 +314,69 @@ public class ResponseController extends Controller
 		return;
 	}   // end of processMessage()
 	
-	private void processResponse(int msgId, String[] parts )
+	private void processResponse( ParsedResponse parsed )
 	{
-		String cmdType = parts[CMDTYPE];
+		long           now     = System.nanoTime();
+		int            msgId   = parsed.getMsgId();
+		ArduinoCmdType cmdType = parsed.getCmdType();
 		
-		MsgCapsule message = null;
+		MsgCapsule message = bag.fetch(msgId);
 		
-		if ( bag.contains(msgId) )
-		{
-			message = bag.fetch(msgId);
-		}
+		CommandMsg command = ( message instanceof CommandMsg ) ? (CommandMsg) message : null ;
 		
-		if ( cmdType.equals(ArduinoCmdType.FindRange.toString()) )
+		if ( command != null )
 		{
-			processFindRange(msgId, parts, message);
+			LatencyTracer.getInstance().record(command, now);
+			RoundTripMonitor.getInstance().record(command, now);
+			
+			if ( window != null && command.getSentTime() != 0 )
+			{
+				window.acked(command.getArduinoCmdType(), now - command.getSentTime());
+			}
+			
+			if ( wheels != null )
+			{
+				wheels.acked(command);
+			}
 		}
-		else if ( cmdType.equals(ArduinoCmdType.StatusReport.toString()) )
+		
+		ResponseHandler handler = handlers.get(cmdType);
+		
+		if ( handler != null )
 		{
+			handler.handle(parsed, message);
 		}
-		else if ( cmdType.equals(ArduinoCmdType.TurnWheels.toString()) )
+		else if ( cmdType == ArduinoCmdType.UNKNOWN )
 		{
+			// Unknown or unexpected response
+			/** @todo Error Handling goes here. */
 		}
-		else if ( cmdType.equals(ArduinoCmdType.StatusReport.toString()) )
+		
+		// Hand the answer to whoever submitted the command.
+		if ( command != null && command.expectsReply() )
 		{
-			
+			command.answer( new ArduinoResponse(parsed) );
 		}
-		else
+		
+		// The response ends the life of the command.
+		if ( message != null )
 		{
-			// Unknown or unexpected response
-			/** @todo Error Handling goes here. */
+			message.release();
 		}
 	}   // end of processResponse()
 	
-	private void processFindRange(int id, String[] parts, MsgCapsule message)
+	private void processFindRange( ParsedResponse parsed, MsgCapsule message )
 	{
-		if ( parts.length != FIND_RANGE_ARGS ) 
+		if ( parsed.getArgCount() != FIND_RANGE_ARGS ||
+				!parsed.isNumeric(DISTANCE) || !parsed.isNumeric(ANGLE) ) 
 		{	
 			// Wrong number of arguments.
 			/** @todo Error Handling goes here. */
 			return;
 		}
 		
-		int range = Integer.parseInt(parts[DISTANCE]);
-		int angle = Integer.parseInt(parts[ANGLE]);
+		int range = parsed.getArg(DISTANCE);
+		int angle = parsed.getArg(ANGLE);
 		
 		if ( range <= MIN_RANGE )
 		{
@@ -316,19 +388,47 @@ public class ResponseController extends Controller
 		
 	}   // end of processFindRange()
 	
-	private void processError( int msgId, String[] parts )
+	private void processError( ParsedResponse parsed )
 	{
-	
+		// An error response also ends the life of the command.
+		MsgCapsule message = bag.fetch(parsed.getMsgId());
+		
+		if ( message == null )
+		{
+			return;
+		}
+		
+		if ( wheels != null && message instanceof CommandMsg )
+		{
+			// The Arduino did not change the wheels.
+			ArduinoCmdType type = ((CommandMsg) message).getArduinoCmdType();
+			
+			if ( type == ArduinoCmdType.TurnWheels || type == ArduinoCmdType.StopWheels )
+			{
+				wheels.failed();
+			}
+		}
+		
+		if ( message instanceof CommandMsg && ((CommandMsg) message).expectsReply() )
+		{
+			((CommandMsg) message).fail( new ArduinoErrorException(new ArduinoResponse(parsed)) );
+		}
+		
+		message.release();
 	}
 	
 	private void stopCar(int range, int angle)
 	{
-		MsgCapsule stopcar = new EmergencyStopMsg();
+		MsgCapsule stopcar = MessageFactory.emergencyStop();
 		
 		try
 		{
 			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(stopcar);
 			
+			// Otherwise the Drive Ticker would send the move that was
+			// stopped again.
+			DriveTicker.getInstance().stop();
+			
 			/** 
 			 * @todo Add code to tell Navigator Controllers to also stop or
 			 *       that an obstacle has been reached.
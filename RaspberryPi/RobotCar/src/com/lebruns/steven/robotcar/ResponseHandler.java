@@ -0,0 +1,26 @@
+/**
+ * 
+ */
+package com.lebruns.steven.robotcar;
+
+import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A Response Handler processes the Arduino responses to one type of
+ * command.  The Response Controller keeps one handler per ArduinoCmdType.
+ */
+interface ResponseHandler
+{
+	/**
+	 * Processes a response from the Arduino.
+	 * 
+	 * @param response The response.  It is reused for the next response,
+	 *                 so it must not be kept.
+	 * @param message  The command being answered, or @b null if it was not
+	 *                 found in the MailBag.
+	 */
+	public abstract void handle( ParsedResponse response, MsgCapsule message );
+
+}   // end of interface ResponseHandler
@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Response Parser decodes a message from the Arduino, such as
+ * "R:<id>:FR:<dist>:<angle>", straight from the bytes it was read into.
+ * The fields are walked one byte at a time; the field being read decides
+ * how its bytes are decoded:
+ *
+ *   0     -- Message type, a single letter.
+ *   1     -- Message ID, a whole number.
+ *   2     -- Command type, such as "FR".
+ *   3...  -- Arguments, kept as numbers when they are whole numbers.
+ *
+ * No Strings, arrays or exceptions are created, so parsing does not add
+ * to the garbage no matter how many messages arrive.  A malformed message
+ * is reported by returning false and is counted.
+ *
+ * This class is @b not thread-safe.  It is meant to be used by a single
+ * thread, the Response Controller.
+ */
+class ResponseParser
+{
+	static private final byte SEPARATOR = ':';
+
+	/**
+	 * The most digits a number may have, so that it fits in an int.
+	 */
+	static private final int  MAX_DIGITS = 9;
+
+	private long parsed    = 0;
+	private long malformed = 0;
+
+	/**
+	 * Parses a message.
+	 *
+	 * @param data     The buffer holding the message.
+	 * @param offset   Where the message starts in the buffer.
+	 * @param length   The length of the message, without its terminator.
+	 * @param response Filled in with the fields of the message.
+	 *
+	 * @return Returns true if the message is well formed.  Returns false
+	 *         if it is not, in which case the response is incomplete.
+	 */
+	boolean parse( byte[] data, int offset, int length, ParsedResponse response )
+	{
+		response.clear(data);
+
+		int end        = offset + length;
+		int field      = 0;
+		int fieldStart = offset;
+
+		for ( int i = offset ; i <= end ; ++i )
+		{
+			if ( i < end && data[i] != SEPARATOR )
+			{
+				continue;
+			}
+
+			if ( !decodeField(field, data, fieldStart, i - fieldStart, response) )
+			{
+				++malformed;
+				return false;
+			}
+
+			++field;
+			fieldStart = i + 1;
+		}
+
+		// An error may leave out the command type; nothing else may.
+		if ( field < 2 || (field < 3 && response.msgType != ArduinoMsgType.ERROR) )
+		{
+			++malformed;
+			return false;
+		}
+
+		++parsed;
+
+		return true;
+
+	}   // end of parse()
+
+	/**
+	 * @return Returns the number of well formed messages parsed.
+	 */
+	long getParsedCount()
+	{
+		return parsed;
+	}
+
+	/**
+	 * @return Returns the number of malformed messages.
+	 */
+	long getMalformedCount()
+	{
+		return malformed;
+	}
+
+	private boolean decodeField( int field, byte[] data, int start, int length, ParsedResponse response )
+	{
+		switch ( field )
+		{
+		case 0:
+			if ( length != 1 )
+			{
+				return false;
+			}
+
+			response.msgType = ArduinoMsgType.fromCode(data[start]);
+
+			return response.msgType == ArduinoMsgType.RESPONSE ||
+					response.msgType == ArduinoMsgType.ERROR;
+
+		case 1:
+			if ( !isNumber(data, start, length) || data[start] == '-' )
+			{
+				return false;
+			}
+
+			response.msgId = toNumber(data, start, length);
+
+			return true;
+
+		case 2:
+			response.cmdType = ArduinoCmdType.fromCode(data, start, length);
+
+			return true;
+
+		default:
+			int arg = response.argCount;
+
+			if ( arg == ParsedResponse.MAX_ARGS )
+			{
+				return false;
+			}
+
+			response.argStart[arg]  = start;
+			response.argLength[arg] = length;
+			response.numeric[arg]   = isNumber(data, start, length);
+			response.args[arg]      = response.numeric[arg] ? toNumber(data, start, length) : 0 ;
+
+			response.argCount = arg + 1;
+
+			return true;
+		}
+
+	}   // end of decodeField()
+
+	/**
+	 * @return Returns true if the bytes are a whole number, with an
+	 *         optional minus sign, that fits in an int.
+	 */
+	static private boolean isNumber( byte[] data, int start, int length )
+	{
+		int first = ( length > 0 && data[start] == '-' ) ? 1 : 0 ;
+
+		if ( length - first < 1 || length - first > MAX_DIGITS )
+		{
+			return false;
+		}
+
+		for ( int i = start + first ; i < start + length ; ++i )
+		{
+			if ( data[i] < '0' || data[i] > '9' )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @pre isNumber() is true for the bytes.
+	 */
+	static private int toNumber( byte[] data, int start, int length )
+	{
+		boolean negative = ( data[start] == '-' );
+		int     value    = 0;
+
+		for ( int i = start + (negative ? 1 : 0) ; i < start + length ; ++i )
+		{
+			value = value * 10 + (data[i] - '0');
+		}
+
+		return negative ? -value : value ;
+	}
+
+}   // end of class ResponseParser
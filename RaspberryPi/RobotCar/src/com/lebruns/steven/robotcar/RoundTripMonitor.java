@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.lebruns.steven.robotcar.pipeline.LatencyHistogram;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Round Trip Monitor keeps a histogram, per type of Arduino command, of
+ * the time between a command being sent and its response being parsed.
+ * Find Range commands are also kept per number of attempts, since each
+ * attempt is another sonar reading; these are the numbers used to tune
+ * RangeMsg attempts and the WatchDog period.
+ *
+ * The histograms use a fixed amount of memory, allocated up front.  A
+ * summary is printed every PRINT_PERIOD while responses are arriving.
+ *
+ * This is a singleton class.  Instances are thread-safe.
+ */
+public class RoundTripMonitor
+{
+	/**
+	 * How often the summary is printed.
+	 */
+	static private final long PRINT_PERIOD = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Find Range attempts are in the range [1..MAX_ATTEMPTS].
+	 */
+	static private final int  MAX_ATTEMPTS = 8;
+
+	static private final RoundTripMonitor monitor = new RoundTripMonitor();
+
+	private final Map<ArduinoCmdType, LatencyHistogram> byType =
+			new EnumMap<ArduinoCmdType, LatencyHistogram>(ArduinoCmdType.class);
+
+	/**
+	 * Find Range round trips, indexed by the number of attempts.  Index 0
+	 * is not used.
+	 */
+	private final LatencyHistogram[] rangeByAttempts = new LatencyHistogram[ MAX_ATTEMPTS + 1 ];
+
+	private volatile long lastPrint = System.nanoTime();
+
+	/**
+	 * Private Constructor.  Required for the Singleton Pattern.
+	 */
+	private RoundTripMonitor()
+	{
+		for ( ArduinoCmdType type : ArduinoCmdType.values() )
+		{
+			byType.put(type, new LatencyHistogram());
+		}
+
+		for ( int i = 1 ; i <= MAX_ATTEMPTS ; ++i )
+		{
+			rangeByAttempts[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Provides access to the singleton Round Trip Monitor.
+	 */
+	static public RoundTripMonitor getInstance()
+	{
+		return monitor;
+	}
+
+	/**
+	 * Records the round trip of a command whose response has just been
+	 * parsed, and prints the summary if it is due.  Commands that were
+	 * never sent are ignored.
+	 *
+	 * @param command      The command matching the response.
+	 * @param responseTime The time, as given by System.nanoTime(), at
+	 *                     which the response was parsed.
+	 */
+	public void record( CommandMsg command, long responseTime )
+	{
+		long sent = command.getSentTime();
+
+		if ( sent == 0 )
+		{
+			return;
+		}
+
+		long roundTrip = responseTime - sent;
+
+		byType.get(command.getArduinoCmdType()).record(roundTrip);
+
+		if ( command instanceof RangeMsg )
+		{
+			int attempts = ((RangeMsg) command).getAttempts();
+
+			if ( attempts >= 1 && attempts <= MAX_ATTEMPTS )
+			{
+				rangeByAttempts[attempts].record(roundTrip);
+			}
+		}
+
+		if ( responseTime - lastPrint >= PRINT_PERIOD )
+		{
+			lastPrint = responseTime;
+
+			dump(System.out);
+		}
+
+	}   // end of record()
+
+	/**
+	 * @return Returns a snapshot of the round trip histogram of every
+	 *         command type.  The snapshot does not change as more round
+	 *         trips are recorded.
+	 */
+	public Map<ArduinoCmdType, LatencyHistogram> getSnapshot()
+	{
+		Map<ArduinoCmdType, LatencyHistogram> snapshot =
+				new EnumMap<ArduinoCmdType, LatencyHistogram>(ArduinoCmdType.class);
+
+		for ( Map.Entry<ArduinoCmdType, LatencyHistogram> entry : byType.entrySet() )
+		{
+			snapshot.put(entry.getKey(), entry.getValue().copy());
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @param attempts The number of attempts, [1..8].
+	 *
+	 * @return Returns a snapshot of the Find Range round trips for the
+	 *         number of attempts.
+	 */
+	public LatencyHistogram getRangeSnapshot( int attempts )
+	{
+		return rangeByAttempts[attempts].copy();
+	}
+
+	/**
+	 * Clears all the recorded round trips.
+	 */
+	public void reset()
+	{
+		for ( LatencyHistogram histogram : byType.values() )
+		{
+			histogram.reset();
+		}
+
+		for ( int i = 1 ; i <= MAX_ATTEMPTS ; ++i )
+		{
+			rangeByAttempts[i].reset();
+		}
+	}
+
+	/**
+	 * Prints the round trip percentiles of every command type that has
+	 * been answered, then the Find Range round trips by attempts.
+	 *
+	 * @param out Where to print the round trips, such as System.out.
+	 */
+	public void dump( PrintStream out )
+	{
+		out.println("Arduino Round Trips:");
+
+		for ( Map.Entry<ArduinoCmdType, LatencyHistogram> entry : byType.entrySet() )
+		{
+			if ( entry.getValue().getCount() > 0 )
+			{
+				out.println(String.format("  %-12s %s", entry.getKey().name(), entry.getValue()));
+			}
+		}
+
+		for ( int i = 1 ; i <= MAX_ATTEMPTS ; ++i )
+		{
+			if ( rangeByAttempts[i].getCount() > 0 )
+			{
+				out.println(String.format("  FindRange x%d  %s", i, rangeByAttempts[i]));
+			}
+		}
+
+	}   // end of dump()
+
+}   // end of class RoundTripMonitor
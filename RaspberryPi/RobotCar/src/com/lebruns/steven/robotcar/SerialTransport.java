@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A SerialTransport is the byte link between the Raspberry Pi and the
+ * Arduino.  The Command Controller writes to it and the Response
+ * Controller reads from it.  USBDevice is the transport used on the car.
+ *
+ * Reads are done in bulk into a ByteBuffer that the caller keeps and
+ * reuses, so reading responses does not cost a call and an allocation per
+ * byte.
+ */
+public interface SerialTransport
+{
+	/**
+	 * Reads the bytes that are available, up to the space remaining in the
+	 * buffer, waiting for at least one byte if none are.  The bytes are
+	 * placed at the buffer's position, which is advanced past them.
+	 *
+	 * @param dst The buffer to read into.
+	 *
+	 * @return Returns the number of bytes read, or -1 if the link was
+	 *         closed.
+	 *
+	 * @throws IOException An IOException is thrown if the link is not open
+	 *                     or reading fails.
+	 */
+	public abstract int read( ByteBuffer dst )
+		throws IOException;
+
+	/**
+	 * Writes an array of bytes to the link.
+	 *
+	 * @throws IOException An IOException is thrown if the link is not open
+	 *                     or writing fails.
+	 */
+	public abstract void write( byte[] buffer )
+		throws IOException;
+
+	/**
+	 * Writes the bytes between a buffer's position and its limit to the
+	 * link.  The buffer's position is advanced to its limit.
+	 *
+	 * @throws IOException An IOException is thrown if the link is not open
+	 *                     or writing fails.
+	 */
+	public abstract void write( ByteBuffer src )
+		throws IOException;
+
+	/**
+	 * Writes a String to the link after converting it to bytes.
+	 *
+	 * @throws IOException An IOException is thrown if the link is not open
+	 *                     or writing fails.
+	 */
+	public abstract void write( String data )
+		throws IOException;
+
+	public abstract boolean isOpen();
+
+	/**
+	 * @return Returns the framing used on the link, TEXT unless binary
+	 *         framing was agreed when the link was opened.
+	 */
+	public abstract Framing getFraming();
+
+	/**
+	 * Waits for the link to be open.
+	 *
+	 * @return Returns true if the link is open.  Returns false if the time
+	 *         ran out or the thread was interrupted.
+	 */
+	public abstract boolean awaitOpen( long timeout, TimeUnit unit );
+
+	/**
+	 * Marks the link as lost, as when reading or writing fails.  The link
+	 * stays closed until it is restored.
+	 */
+	public abstract void linkLost();
+
+}   // end of interface SerialTransport
@@ -0,0 +1,22 @@
+/**
+ * 
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * What the Command Controller does when the Arduino has not answered a
+ * command by its deadline.
+ * 
+ *   RETRANSMIT     -- Send the command again, up to a limit, then drop it.
+ *   DROP           -- Forget the command.
+ *   EMERGENCY_STOP -- Forget the command and stop the car, since the link
+ *                     may be stalled while the car is moving.
+ */
+public enum TimeoutAction
+{
+	RETRANSMIT,
+	DROP,
+	EMERGENCY_STOP;
+}
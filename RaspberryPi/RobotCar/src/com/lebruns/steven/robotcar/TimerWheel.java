@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * A TimerWheel keeps track of deadlines for message IDs.  Time is split
+ * into ticks and each deadline is placed in the bucket for its tick, with
+ * the buckets arranged in a ring.  Scheduling a deadline and finding the
+ * ones that have passed only looks at the buckets for the ticks that went
+ * by, no matter how many deadlines are waiting.  A deadline further away
+ * than one trip around the ring stays in its bucket until its round comes.
+ *
+ * The entries are kept in preallocated arrays linked into lists, so
+ * scheduling and expiring deadlines does not create garbage.  The arrays
+ * only grow if more deadlines are waiting than the wheel was sized for.
+ *
+ * A deadline known to be unwanted can be cancelled, but the owner still
+ * checks, when a deadline expires, whether the message is still waiting.
+ *
+ * This class is @b not thread-safe.  It is meant to be used by a single
+ * thread, the Command Controller.
+ */
+class TimerWheel
+{
+	/**
+	 * Called for each deadline that has passed.
+	 */
+	interface Expiry
+	{
+		public abstract void expired( int id );
+	}
+
+	static private final int NONE = -1;
+
+	private final long  tickNanos;
+	private final long  origin;
+	private final int[] buckets;
+	private final int   mask;
+
+	/**
+	 * The entries.  next links the entries of a bucket, or the free
+	 * entries, into a list.
+	 */
+	private int[]  ids;
+	private long[] deadlines;
+	private int[]  next;
+
+	private int    free  = NONE;
+	private int    count = 0;
+
+	/**
+	 * The tick whose bucket has not been fully expired yet.
+	 */
+	private long   currentTick = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tickNanos  Length of a tick in nanoseconds.  Deadlines are
+	 *                   noticed up to one tick late.
+	 * @param wheelSize  Number of buckets, rounded up to a power of two.
+	 * @param capacity   Number of deadlines expected to be waiting at the
+	 *                   same time.
+	 * @param now        The current time, as given by System.nanoTime().
+	 */
+	TimerWheel( long tickNanos, int wheelSize, int capacity, long now )
+	{
+		int size = 1;
+
+		while ( size < wheelSize )
+		{
+			size <<= 1;
+		}
+
+		this.tickNanos = tickNanos;
+		this.origin    = now;
+		this.buckets   = new int[size];
+		this.mask      = size - 1;
+
+		for ( int i = 0 ; i < size ; ++i )
+		{
+			buckets[i] = NONE;
+		}
+
+		ids       = new int[0];
+		deadlines = new long[0];
+		next      = new int[0];
+
+		grow( (capacity < 1) ? 1 : capacity );
+	}
+
+	/**
+	 * Adds a deadline.
+	 *
+	 * @param id       The message ID.
+	 * @param deadline The time, as given by System.nanoTime(), at which
+	 *                 the deadline passes.
+	 */
+	void schedule( int id, long deadline )
+	{
+		if ( free == NONE )
+		{
+			grow( ids.length * 2 );
+		}
+
+		int entry = free;
+		free = next[entry];
+
+		int bucket = bucketOf(deadline);
+
+		ids[entry]       = id;
+		deadlines[entry] = deadline;
+		next[entry]      = buckets[bucket];
+		buckets[bucket]  = entry;
+
+		++count;
+	}
+
+	/**
+	 * Removes a deadline that is no longer wanted.  Only the bucket
+	 * schedule() put the deadline in is searched.
+	 *
+	 * @param id       The message ID.
+	 * @param deadline The deadline it was scheduled with.
+	 *
+	 * @return Returns true if the deadline was found and removed.
+	 */
+	boolean cancel( int id, long deadline )
+	{
+		int bucket = bucketOf(deadline);
+		int prev   = NONE;
+		int entry  = buckets[bucket];
+
+		while ( entry != NONE )
+		{
+			if ( ids[entry] == id && deadlines[entry] == deadline )
+			{
+				if ( prev == NONE )
+				{
+					buckets[bucket] = next[entry];
+				}
+				else
+				{
+					next[prev] = next[entry];
+				}
+
+				next[entry] = free;
+				free = entry;
+				--count;
+
+				return true;
+			}
+
+			prev  = entry;
+			entry = next[entry];
+		}
+
+		return false;
+	}
+
+	/**
+	 * Expires every deadline that has passed, in bucket order.  The
+	 * handler may schedule new deadlines.
+	 *
+	 * @param now     The current time, as given by System.nanoTime().
+	 * @param handler Called with the ID of each expired deadline.
+	 *
+	 * @return Returns the number of deadlines that expired.
+	 */
+	int advance( long now, Expiry handler )
+	{
+		long nowTick = tickOf(now);
+		int  expired = 0;
+
+		if ( nowTick - currentTick > mask )
+		{
+			// Asleep for more than a trip around the wheel; every bucket
+			// needs looking at once.
+			currentTick = nowTick - mask;
+		}
+
+		for ( ; currentTick < nowTick ; ++currentTick )
+		{
+			expired += expireBucket( (int) (currentTick & mask), now, handler );
+		}
+
+		// The bucket for the current tick may still hold deadlines later in
+		// this tick, so it is looked at again next time.
+		expired += expireBucket( (int) (nowTick & mask), now, handler );
+
+		return expired;
+	}
+
+	/**
+	 * @return Returns the number of deadlines waiting.
+	 */
+	int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return Returns the length of a tick in nanoseconds.
+	 */
+	long getTickNanos()
+	{
+		return tickNanos;
+	}
+
+	private long tickOf( long time )
+	{
+		return (time - origin) / tickNanos;
+	}
+
+	/**
+	 * Finds the bucket for a deadline.  A deadline that has already passed
+	 * goes in the bucket of the current tick, since the buckets behind it
+	 * will not be looked at again until the wheel comes round.  A deadline
+	 * still waiting there is always found, because advance() empties the
+	 * current bucket of passed deadlines before moving on.
+	 */
+	private int bucketOf( long deadline )
+	{
+		long tick = Math.max( tickOf(deadline), currentTick );
+
+		return (int) (tick & mask);
+	}
+
+	/**
+	 * Removes the entries of a bucket whose deadline has passed and calls
+	 * the handler for each one.  The bucket list is taken off the wheel
+	 * first and the entries still waiting are put back, so deadlines the
+	 * handler schedules into the same bucket are left for the next pass.
+	 */
+	private int expireBucket( int bucket, long now, Expiry handler )
+	{
+		int expired = 0;
+		int entry   = buckets[bucket];
+
+		buckets[bucket] = NONE;
+
+		while ( entry != NONE )
+		{
+			int following = next[entry];
+
+			if ( now - deadlines[entry] >= 0 )
+			{
+				int id = ids[entry];
+
+				next[entry] = free;
+				free = entry;
+				--count;
+				++expired;
+
+				handler.expired(id);
+			}
+			else
+			{
+				next[entry]     = buckets[bucket];
+				buckets[bucket] = entry;
+			}
+
+			entry = following;
+		}
+
+		return expired;
+	}
+
+	/**
+	 * Makes room for more entries, adding the new ones to the free list.
+	 */
+	private void grow( int size )
+	{
+		int    old          = ids.length;
+		int[]  newIds       = new int[size];
+		long[] newDeadlines = new long[size];
+		int[]  newNext      = new int[size];
+
+		System.arraycopy(ids,       0, newIds,       0, old);
+		System.arraycopy(deadlines, 0, newDeadlines, 0, old);
+		System.arraycopy(next,      0, newNext,      0, old);
+
+		for ( int i = size - 1 ; i >= old ; --i )
+		{
+			newNext[i] = free;
+			free = i;
+		}
+
+		ids       = newIds;
+		deadlines = newDeadlines;
+		next      = newNext;
+	}
+
+}   // end of class TimerWheel
@@ -0,0 +1,31 @@
+/**
+ * 
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The stages a command passes through on its way from an input, such as a
+ * Blue Dot line, to the Arduino and back.  The Latency Tracer keeps a
+ * histogram of the time spent in each stage.
+ * 
+ *   INPUT    -- Input received until the command is put in the Pipeline.
+ *   QUEUE    -- Waiting in the Command Pipeline.
+ *   DISPATCH -- Taken from the Pipeline until handed to the Arduino link.
+ *   WRITE    -- Time taken by one write to the Arduino link.  Recorded
+ *               once per write, which may carry several commands.
+ *   LINK     -- Handed to the Arduino link until the response is parsed.
+ *               Includes the write, the serial transfer and the time the
+ *               Arduino takes to carry out the command.
+ *   TOTAL    -- Input received until the response is parsed.
+ */
+public enum TraceStage
+{
+	INPUT,
+	QUEUE,
+	DISPATCH,
+	WRITE,
+	LINK,
+	TOTAL;
+}
@@ -0,0 +1,58 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The classes of traffic sharing the serial link to the Arduino, as seen
+ * by the Link Scheduler.
+ *
+ *   MOTOR  -- Turn Wheels and Stop Wheels commands, emergency stops
+ *             included.  Never held back.
+ *   SAFETY -- Find Range commands the car's safety depends on, such as
+ *             the WatchDog's pings while an obstacle is close.  Never
+ *             held back for lack of a share.
+ *   SONAR  -- Other Find Range commands.
+ *   STATUS -- Status Reports and anything else.
+ */
+public enum TrafficClass
+{
+	MOTOR,
+	SAFETY,
+	SONAR,
+	STATUS;
+
+	/**
+	 * Finds the traffic class of a command.
+	 */
+	static public TrafficClass of( CommandMsg command )
+	{
+		if ( command instanceof RangeMsg && ((RangeMsg) command).isSafety() )
+		{
+			return SAFETY;
+		}
+
+		return of( command.getArduinoCmdType() );
+	}
+
+	/**
+	 * Finds the traffic class of a type of command.
+	 */
+	static public TrafficClass of( ArduinoCmdType type )
+	{
+		switch ( type )
+		{
+		case TurnWheels:
+		case StopWheels:
+			return MOTOR;
+
+		case FindRange:
+			return SONAR;
+
+		default:
+			return STATUS;
+		}
+	}
+}
@@ -9,14 +9,31 @@ import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.pi4j.io.serial.*;
 
 /**
  * @author Steven F. LeBrun
  *
+ * USBDevice is the SerialTransport used on the car.
  */
-public class USBDevice 
+public class USBDevice implements SerialTransport
 {
 	/**
 	 * The number of milliseconds to wait for the Arduino to respond
@@ -25,19 +42,64 @@ public class USBDevice
 	static final int ARDIUNO_WAIT = 250;
 	
 	/**
-	 * The actual Serial object used for reading and writing
+	 * The number of milliseconds a device is given to send the handshake.
 	 */
-	private Serial  Arduino = null;
+	static final int HANDSHAKE_WAIT = 5 * ARDIUNO_WAIT;
+	
+	/**
+	 * The number of milliseconds between checks for the handshake.
+	 */
+	static final int PROBE_POLL = 10;
+	
+	/**
+	 * The file that remembers the USB device the Arduino was found on.
+	 */
+	static private final Path LAST_PORT = Paths.get(System.getProperty("user.home"), ".robotcar_port");
+	
+	/**
+	 * Creates the threads that probe USB devices.  They are daemon threads
+	 * so that a probe stuck in a device driver never keeps the program
+	 * running.
+	 */
+	static private final ThreadFactory probeThreads = (Runnable task) ->
+	{
+		Thread thread = new Thread(task, "USB Probe");
+		thread.setDaemon(true);
+		return thread;
+	};
+	
+	/**
+	 * The actual Serial object used for reading and writing.  It is
+	 * replaced when the link to the Arduino is lost and found again.
+	 */
+	private volatile Serial  Arduino = null;
 	
 	/**
 	 * State of Arduino (Serial device via USB)
 	 */
-	private boolean   is_open = false;
+	private volatile boolean   is_open = false;
+	
+	/**
+	 * Guards changes to the state of the link.  Threads waiting for the
+	 * link to open or to be lost wait on it.
+	 */
+	private final Object  linkLock = new Object();
+	
+	/**
+	 * When the link was lost, as given by System.nanoTime(), or 0 if the
+	 * link has never been lost.
+	 */
+	private long  downSince     = 0;
+	
+	private long  outages       = 0;
+	private long  lastOutage    = 0;
+	private long  longestOutage = 0;
+	private long  totalOutage   = 0;
 	
 	/**
 	 * File Name for USB Port
 	 */
-	private String   portName = "";
+	private volatile String   portName = "";
 	
 	/**
 	 * Handshake
@@ -45,6 +107,23 @@ public class USBDevice
 	private String  Handshake = new String("Ready");
 	private int     HandSize  = Handshake.length() + 2;  // 2 == "\n" at beginning and end of string.
 	
+	/**
+	 * Binary framing negotiation.  After the handshake, the request is
+	 * sent and binary framing is used only if the Arduino answers with the
+	 * accept response within NEGOTIATE_WAIT milliseconds.  Any other
+	 * answer, or none, leaves the link on the text protocol.
+	 */
+	static private final String BINARY_REQUEST = "C:0:BF:1;";
+	static private final String BINARY_ACCEPT  = "R:0:BF;";
+	static private final int    NEGOTIATE_WAIT = 200;
+	
+	/**
+	 * The framing asked for when the link is opened and the framing
+	 * agreed with the Arduino.
+	 */
+	private volatile Framing  preferred = Framing.TEXT;
+	private volatile Framing  framing   = Framing.TEXT;
+	
 
 	/**
 	 * Constructor for Arduino object.
@@ -72,6 +151,9 @@ public class USBDevice
 	 * already open, this method does nothing.  In order to create a new
 	 * connection, the close() method needs to be called first.
 	 * 
+	 * This is also how the link is restored after it was lost.  Threads
+	 * waiting in awaitOpen() are woken up once the link is open.
+	 * 
 	 * @return  Returns true if a connection was made or already exists.
 	 *          Returns false if unable to make a connection.
 	 */
@@ -86,7 +168,19 @@ public class USBDevice
 		
 		if ( flag )
 		{
-			is_open = true;
+			synchronized (linkLock)
+			{
+				if ( downSince != 0 )
+				{
+					lastOutage     = System.nanoTime() - downSince;
+					longestOutage  = Math.max(longestOutage, lastOutage);
+					totalOutage   += lastOutage;
+					downSince      = 0;
+				}
+				
+				is_open = true;
+				linkLock.notifyAll();
+			}
 		}
 		
 		return flag;
@@ -101,27 +195,152 @@ public class USBDevice
 	public void close()
 		throws IOException
 	{
-		if ( Arduino != null && Arduino.isOpen() )
+		synchronized (linkLock)
 		{
-			try
-			{
-				Arduino.close();
-				is_open = false;
-				Arduino = null;
-			}
-			catch ( IOException ex )
+			if ( Arduino != null && Arduino.isOpen() )
 			{
-				// Do Nothing for now.
+				try
+				{
+					Arduino.close();
+					is_open = false;
+					Arduino = null;
+				}
+				catch ( IOException ex )
+				{
+					// Do Nothing for now.
+				}
 			}
+			
+			linkLock.notifyAll();
 		}
 
 	}
 	
+	/**
+	 * Sets the framing to ask the Arduino for the next time the link is
+	 * opened, including when it is restored after being lost.  Binary
+	 * framing is only used if the Arduino agrees to it.
+	 */
+	public void setPreferredFraming( Framing framing )
+	{
+		preferred = framing;
+	}
+	
+	public Framing getPreferredFraming()
+	{
+		return preferred;
+	}
+	
+	/**
+	 * @return Returns the framing agreed with the Arduino when the link
+	 *         was opened.
+	 */
+	@Override
+	public Framing getFraming()
+	{
+		return framing;
+	}
+	
+	@Override
 	public boolean isOpen()
 	{
 		return is_open;
 	}
 	
+	/**
+	 * Marks the link to the Arduino as lost and closes the Serial device.
+	 * Called when reading or writing fails and when the USB device
+	 * disappears.  The link stays closed until open() finds the Arduino
+	 * again.
+	 */
+	@Override
+	public void linkLost()
+	{
+		linkLost( Arduino, null );
+	}
+	
+	/**
+	 * Waits for the link to the Arduino to be open.
+	 * 
+	 * @param timeout The longest time to wait.
+	 * @param unit    The time unit of the timeout argument.
+	 * 
+	 * @return Returns true if the link is open.  Returns false if the time
+	 *         ran out or the thread was interrupted.
+	 */
+	@Override
+	public boolean awaitOpen( long timeout, TimeUnit unit )
+	{
+		return awaitState( true, timeout, unit );
+	}
+	
+	/**
+	 * Waits for the link to the Arduino to be lost or closed.
+	 * 
+	 * @param timeout The longest time to wait.
+	 * @param unit    The time unit of the timeout argument.
+	 * 
+	 * @return Returns true if the link is closed.  Returns false if the
+	 *         time ran out or the thread was interrupted.
+	 */
+	public boolean awaitClosed( long timeout, TimeUnit unit )
+	{
+		return awaitState( false, timeout, unit );
+	}
+	
+	/**
+	 * Checks that the USB device file of the open link still exists.  The
+	 * file disappears as soon as the cable is pulled, well before a read or
+	 * write would notice.
+	 * 
+	 * @return Returns false if the link is open but its device is gone.
+	 */
+	public boolean isPortPresent()
+	{
+		String  path = portName;
+		
+		return !is_open || path.isEmpty() || new File(path).exists();
+	}
+	
+	/**
+	 * @return Returns the number of times the link was lost.
+	 */
+	public long getOutageCount()
+	{
+		synchronized (linkLock)
+		{
+			return outages;
+		}
+	}
+	
+	/**
+	 * @return Returns how long, in nanoseconds, the link was down the last
+	 *         time it was lost.
+	 */
+	public long getLastOutage()
+	{
+		synchronized (linkLock)
+		{
+			return lastOutage;
+		}
+	}
+	
+	public long getLongestOutage()
+	{
+		synchronized (linkLock)
+		{
+			return longestOutage;
+		}
+	}
+	
+	public long getTotalOutage()
+	{
+		synchronized (linkLock)
+		{
+			return totalOutage;
+		}
+	}
+	
 	public String port()
 	{
 		return portName;
@@ -136,18 +355,78 @@ public class USBDevice
 	 *         setup and open between the Raspberry Pi and the Arduino or if
 	 *         there is an error occurs when writing to the Arduino.
 	 */
+	@Override
 	public void write(byte[] buffer)
 		throws IOException
 	{
-		if ( !is_open )
+		Serial  usb = Arduino;
+		
+		if ( !is_open || usb == null )
 		{
 			throw new IOException("No Arduino Open");
 		}
 		
-		OutputStream device = Arduino.getOutputStream();
+		try
+		{
+			OutputStream device = usb.getOutputStream();
+			
+			device.write(buffer);
+			device.flush();
+		}
+		catch ( IOException ex )
+		{
+			linkLost( usb, ex );
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Write the bytes between a buffer's position and its limit to the
+	 * Arduino.  A buffer backed by an array, such as the Command
+	 * Controller's, is written straight from its array without a copy.
+	 * 
+	 * @param src  The bytes to be sent.  Its position is advanced to its
+	 *             limit.
+	 * 
+	 * @throws IOException An IOException is thrown if there is no connection
+	 *         setup and open between the Raspberry Pi and the Arduino or if
+	 *         there is an error occurs when writing to the Arduino.
+	 */
+	@Override
+	public void write(ByteBuffer src)
+		throws IOException
+	{
+		Serial  usb = Arduino;
 		
-		device.write(buffer);
-		device.flush();
+		if ( !is_open || usb == null )
+		{
+			throw new IOException("No Arduino Open");
+		}
+		
+		try
+		{
+			OutputStream device = usb.getOutputStream();
+			
+			if ( src.hasArray() )
+			{
+				device.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+			}
+			else
+			{
+				byte[] bytes = new byte[src.remaining()];
+				
+				src.get(bytes);
+				device.write(bytes);
+			}
+			
+			device.flush();
+		}
+		catch ( IOException ex )
+		{
+			linkLost( usb, ex );
+			throw ex;
+		}
 	}
 	
 	/**
@@ -161,6 +440,7 @@ public class USBDevice
 	 *                      Raspberry Pi and the Arduino or if there is an 
 	 *                      error occurs when writing to the Arduino.
 	 */
+	@Override
 	public void write(String data )
 		throws IOException
 	{
@@ -182,14 +462,24 @@ public class USBDevice
 	public int available()
 		throws IOException
 	{
-		if ( !is_open )
+		Serial  usb = Arduino;
+		
+		if ( !is_open || usb == null )
 		{
 			throw new IOException("No Arduino Open");
 		}
 		
-		InputStream device = Arduino.getInputStream();
-		
-		return device.available();
+		try
+		{
+			InputStream device = usb.getInputStream();
+			
+			return device.available();
+		}
+		catch ( IOException ex )
+		{
+			linkLost( usb, ex );
+			throw ex;
+		}
 		
 	}
 	
@@ -202,7 +492,8 @@ public class USBDevice
 	 * 
 	 * @return        Returns the number of bytes read.  If the connection
 	 *                has been closed and there are no bytes to be read, a
-	 *                -1 is returned to mark the end of file.
+	 *                -1 is returned to mark the end of file and the link
+	 *                is marked as lost.
 	 *                
 	 * @throws IOException  IOException An IOException is thrown if there
 	 * 		                is no connection setup and open between the 
@@ -212,26 +503,172 @@ public class USBDevice
 	public int read(byte[] buffer, int nBytes)
 		throws IOException
 	{
-		if ( !is_open )
+		Serial  usb = Arduino;
+		
+		if ( !is_open || usb == null )
 		{
 			throw new IOException("No Arduino Open");
 		}
 		
-		InputStream device = Arduino.getInputStream();
+		int count = 0;
+		
+		try
+		{
+			InputStream device = usb.getInputStream();
+			
+			count = device.read(buffer, 0, nBytes);
+		}
+		catch ( IOException ex )
+		{
+			linkLost( usb, ex );
+			throw ex;
+		}
+		
+		if ( count < 0 )
+		{
+			linkLost( usb, null );
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Reads the bytes that are available from the Arduino into a buffer,
+	 * waiting for at least one byte if none are.  All the available bytes
+	 * are taken in one read, up to the space remaining in the buffer.
+	 * 
+	 * @param dst The buffer to read into.  Its position is advanced past
+	 *            the bytes read.
+	 * 
+	 * @return Returns the number of bytes read, or -1 if the connection
+	 *         has been closed.
+	 * 
+	 * @throws IOException An IOException is thrown if there is no
+	 *                     connection open or reading fails.
+	 */
+	@Override
+	public int read(ByteBuffer dst)
+		throws IOException
+	{
+		Serial  usb = Arduino;
+		
+		if ( !is_open || usb == null )
+		{
+			throw new IOException("No Arduino Open");
+		}
 		
 		int count = 0;
 		
-		count = device.read(buffer, 0, nBytes);
+		try
+		{
+			InputStream device = usb.getInputStream();
+			
+			int  nBytes = Math.max(1, Math.min(device.available(), dst.remaining()));
+			
+			if ( dst.hasArray() )
+			{
+				count = device.read(dst.array(), dst.arrayOffset() + dst.position(), nBytes);
+				
+				if ( count > 0 )
+				{
+					dst.position(dst.position() + count);
+				}
+			}
+			else
+			{
+				byte[] bytes = new byte[nBytes];
+				
+				count = device.read(bytes, 0, nBytes);
+				
+				if ( count > 0 )
+				{
+					dst.put(bytes, 0, count);
+				}
+			}
+		}
+		catch ( IOException ex )
+		{
+			linkLost( usb, ex );
+			throw ex;
+		}
+		
+		if ( count < 0 )
+		{
+			linkLost( usb, null );
+		}
 		
 		return count;
 	}
 	
+	/**
+	 * Marks the link as lost if the Serial device that failed is still the
+	 * one in use.  A late failure of a Serial device that has already been
+	 * replaced is ignored.
+	 */
+	private void linkLost( Serial failed, IOException cause )
+	{
+		synchronized (linkLock)
+		{
+			if ( !is_open || failed == null || failed != Arduino )
+			{
+				return;
+			}
+			
+			is_open   = false;
+			Arduino   = null;
+			downSince = System.nanoTime();
+			++outages;
+			
+			linkLock.notifyAll();
+		}
+		
+		closeQuietly(failed);
+		
+		System.out.println("Arduino link lost on " + portName +
+				( cause == null ? "" : ": " + cause.getMessage() ) );
+	}
+	
+	private boolean awaitState( boolean open, long timeout, TimeUnit unit )
+	{
+		long  deadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		synchronized (linkLock)
+		{
+			try
+			{
+				while ( is_open != open )
+				{
+					long  remaining = deadline - System.nanoTime();
+					
+					if ( remaining <= 0 )
+					{
+						return false;
+					}
+					
+					TimeUnit.NANOSECONDS.timedWait(linkLock, remaining);
+				}
+			}
+			catch ( InterruptedException ex )
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
 	/**
 	 * FindArduino()
 	 * 
 	 * Searches all USB devices until it fines the one connected to the
 	 * Arduino.  This is the USB port that can be opened and returns the
 	 * string "Ready" when opened.
+	 * 
+	 * The port the Arduino was found on last time is tried first, on its
+	 * own.  If it is not the Arduino, all the other USB devices are probed
+	 * at the same time; the first one to send the handshake is used and the
+	 * other probes are cancelled.
 	 */
 	private boolean FindArduino()
 	{
@@ -273,27 +710,96 @@ public class USBDevice
 			return false;
 		}
 		
-		// Find which USB Device is attached to the Arduino
-		boolean  found = false;
-		for ( String  device : devices )
+		// Try the port the Arduino was on last time
+		String  lastPort = readLastPort();
+		
+		if ( lastPort != null && Arrays.asList(devices).contains(lastPort) )
 		{
-			found = CheckDevice(device);
-			if ( found )
+			Serial  usb = CheckDevice(lastPort, new AtomicReference<String>());
+			
+			if ( usb != null )
 			{
+				connected(usb, lastPort);
 				return true;
 			}
 		}
 		
-		return false;
+		// Find which of the other USB Devices is attached to the Arduino
+		List<String>  candidates = new ArrayList<String>();
+		
+		for ( String device : devices )
+		{
+			if ( !device.equals(lastPort) )
+			{
+				candidates.add(device);
+			}
+		}
+		
+		if ( candidates.isEmpty() )
+		{
+			return false;
+		}
+		
+		final AtomicReference<String>  winner = new AtomicReference<String>();
+		
+		ExecutorService  probes = Executors.newFixedThreadPool(candidates.size(), probeThreads);
+		CompletionService<Serial>  results = new ExecutorCompletionService<Serial>(probes);
+		
+		for ( final String device : candidates )
+		{
+			results.submit( () -> CheckDevice(device, winner) );
+		}
+		
+		Serial  usb = null;
+		
+		try
+		{
+			for ( int i = 0 ; i < candidates.size() && usb == null ; ++i )
+			{
+				usb = results.take().get();
+			}
+		}
+		catch ( InterruptedException ex )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( ExecutionException ex )
+		{
+			// Do something to report error
+		}
+		finally
+		{
+			// Stops the probes still waiting for a handshake.
+			probes.shutdownNow();
+		}
+		
+		if ( usb == null )
+		{
+			return false;
+		}
+		
+		connected(usb, winner.get());
+		
+		return true;
 		
 	}   // end of FindArduino()
 	
 	/**
-	 * Determines if Device is the USB connection to the Arduino
+	 * Determines if Device is the USB connection to the Arduino.
+	 * 
+	 * The device is polled every PROBE_POLL milliseconds until the handshake
+	 * arrives or HANDSHAKE_WAIT milliseconds have passed.  Several devices may
+	 * be checked at the same time; only the first one to claim the winner is
+	 * kept open.  The check gives up if the thread is interrupted.
+	 * 
 	 * @param device Name of USB Device
-	 * @return
+	 * @param winner Set to the name of the first device found to be the
+	 *               Arduino.
+	 * 
+	 * @return Returns the open Serial device if it is the Arduino and no
+	 *         other device was found first.  Returns null otherwise.
 	 */
-	private boolean CheckDevice( String device )
+	private Serial CheckDevice( String device, AtomicReference<String> winner )
 	{
 		final int  BufferMax = 32;
 		
@@ -304,71 +810,177 @@ public class USBDevice
 		
 		String  path = new String( "/dev/" + device);
 		
+		Serial  usb = null;
+		
 		// Try to open the USB Device
 		try
 		{
-			Serial  usb = SerialFactory.createInstance();
+			usb = SerialFactory.createInstance();
 
 			usb.open(path, 9600);
 			
 			if ( !usb.isOpen() )
 			{
-				usb.close();
-				return false;
+				closeQuietly(usb);
+				return null;
 			}
 			
 			InputStream  reader = usb.getInputStream();
 			
-			int tries  = 5;
-			int nBytes = 0;
-			int nChar  =  0;
+			long  deadline = System.currentTimeMillis() + HANDSHAKE_WAIT;
 			
-			for ( int i = 0 ; i < tries ; ++i )
+			while ( winner.get() == null && System.currentTimeMillis() < deadline )
 			{
-				try
-				{	
-					// Got to give the Arduino a chance to respond.
-					Thread.sleep(ARDIUNO_WAIT);
-					
-					nBytes = reader.available();
+				// Got to give the Arduino a chance to respond.
+				Thread.sleep(PROBE_POLL);
 				
-					if ( nBytes >= HandSize )
+				if ( reader.available() >= HandSize )
+				{
+					int nChar = reader.read(data, 0, HandSize);
+					
+					if ( nChar >= 0 )
 					{
-						nChar = reader.read(data, 0, HandSize);
+						String handshake = new String(data, 0, nChar, "UTF-8").trim();
 						
-						if ( nChar >= 0 )
+						if ( handshake.equals(Handshake) && winner.compareAndSet(null, device) ) 
 						{
-							String handshake = new String(data, "UTF-8").trim();
-							
-							if ( handshake.equals(Handshake) ) 
-							{
-								Arduino  = usb;
-								is_open  = true;
-								portName = path;
-								
-								return true;
-							}
+							return usb;
 						}
-						
-						usb.close();
 					}
-				}
-				catch ( Exception ex )
-				{
-					usb.close();
-					continue;
+					
+					break;
 				}
 			}
 		}
-		catch ( IOException ex )
+		catch ( InterruptedException ex )
+		{
+			// Another device was found to be the Arduino.
+		}
+		catch ( Exception ex )
 		{
 			// Do something to report error
-
-			return false;
 		}
 
-		return false;
+		closeQuietly(usb);
+		
+		return null;
+		
 	}   // end of USBDevice::CheckDevice()
 	
+	/**
+	 * Makes a device found by CheckDevice() the connection to the Arduino,
+	 * agrees on the framing and remembers its port for next time.
+	 */
+	private void connected( Serial usb, String device )
+	{
+		Arduino  = usb;
+		portName = "/dev/" + device;
+		framing  = ( preferred == Framing.BINARY ) ? negotiate(usb) : Framing.TEXT ;
+		
+		try
+		{
+			Files.write(LAST_PORT, device.getBytes("UTF-8"));
+		}
+		catch ( Exception ex )
+		{
+			// Not remembering the port only slows down the next start.
+		}
+	}
+	
+	/**
+	 * Asks the Arduino to switch to binary framing.
+	 * 
+	 * @return Returns BINARY if the Arduino accepted.  Returns TEXT if it
+	 *         refused, did not answer in time or the exchange failed.
+	 */
+	private Framing negotiate( Serial usb )
+	{
+		byte[]  reply = new byte[32];
+		int     count = 0;
+		
+		try
+		{
+			OutputStream  writer = usb.getOutputStream();
+			InputStream   reader = usb.getInputStream();
+			
+			writer.write(BINARY_REQUEST.getBytes(StandardCharsets.US_ASCII));
+			writer.flush();
+			
+			long  deadline = System.currentTimeMillis() + NEGOTIATE_WAIT;
+			
+			while ( count < reply.length && System.currentTimeMillis() < deadline )
+			{
+				int  nBytes = Math.min(reader.available(), reply.length - count);
+				
+				if ( nBytes <= 0 )
+				{
+					Thread.sleep(PROBE_POLL);
+					continue;
+				}
+				
+				count += reader.read(reply, count, nBytes);
+				
+				String  answer = new String(reply, 0, count, StandardCharsets.US_ASCII);
+				
+				if ( answer.contains(BINARY_ACCEPT) )
+				{
+					return Framing.BINARY;
+				}
+				
+				if ( answer.indexOf(';') >= 0 )
+				{
+					// Refused.
+					break;
+				}
+			}
+		}
+		catch ( Exception ex )
+		{
+			// Fall back to text.
+		}
+		
+		return Framing.TEXT;
+	}
+	
+	/**
+	 * @return Returns the name of the USB device the Arduino was found on
+	 *         last time, or null if it is not known.
+	 */
+	private String readLastPort()
+	{
+		try
+		{
+			if ( Files.isReadable(LAST_PORT) )
+			{
+				String  device = new String(Files.readAllBytes(LAST_PORT), "UTF-8").trim();
+				
+				return device.isEmpty() ? null : device;
+			}
+		}
+		catch ( Exception ex )
+		{
+			// Fall through and probe every device.
+		}
+		
+		return null;
+	}
+	
+	static private void closeQuietly( Serial usb )
+	{
+		if ( usb == null )
+		{
+			return;
+		}
+		
+		try
+		{
+			usb.close();
+		}
+		catch ( Exception ex )
+		{
+			// Do Nothing.
+		}
+	}
+	
 
 }   // end of class USBDevice
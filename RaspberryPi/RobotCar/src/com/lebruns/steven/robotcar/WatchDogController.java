@@ -3,6 +3,9 @@
  */
 package com.lebruns.steven.robotcar;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
 
@@ -18,12 +21,30 @@ public class WatchDogController extends Controller
 	 */
 	static private final int deltaWait = 1000; // 250;
 	
+	static private final long deltaWaitNanos = TimeUnit.MILLISECONDS.toNanos(deltaWait);
+	
+	/**
+	 * When the last range found was within CLOSE_RANGE centimeters, the
+	 * range is checked every closeWait milliseconds instead.
+	 */
+	static private final int  CLOSE_RANGE    = 100;
+	static private final int  closeWait      = 250;
+	static private final long closeWaitNanos = TimeUnit.MILLISECONDS.toNanos(closeWait);
+	
 	static private final int ANGLE    = 0;   // Straight Ahead
 	static private final int ATTEMPTS = 4;   // Average 4 readings
 	static private final int RANGE    = 400; // 400 centimeters
 	
 	private boolean  isMoving = false;
 	
+	/**
+	 * Set from the answers to range finding, which arrive on the Response
+	 * Controller thread.
+	 */
+	private volatile boolean obstacleNear = false;
+	
+	private final Consumer<ArduinoResponse> onRange = this::rangeFound;
+	
 	private Pipeline pipe  = null;
 	private Pipeline sonar = null;
 
@@ -130,9 +151,9 @@ public class WatchDogController extends Controller
 		sonar = pipework.getPipeline(PipeSink.COMMAND_SINK);
 		
 		// Wake Up Sonar Sensor
-		MsgCapsule left   = (MsgCapsule) new RangeMsg(RANGE, -45);
-		MsgCapsule right  = (MsgCapsule) new RangeMsg(RANGE,  45);
-		MsgCapsule ahead  = (MsgCapsule) new RangeMsg(RANGE,   0);
+		MsgCapsule left   = MessageFactory.range(RANGE, -45);
+		MsgCapsule right  = MessageFactory.range(RANGE,  45);
+		MsgCapsule ahead  = MessageFactory.range(RANGE,   0);
 		
 		try
 		{
@@ -160,32 +181,38 @@ public class WatchDogController extends Controller
 	
 	private void loop()
 	{
+		// Time at which the next range finding is due.
+		long nextPing = System.nanoTime();
+		
 		// Infinite Loop
 		for ( ; ; )
 		{
 			if ( isMoving )
 			{
-				rangeFind();
-				
-				try
+				if ( System.nanoTime() - nextPing >= 0 )
 				{
-					Thread.sleep(deltaWait);
-				}
-				catch (Exception exc)
-				{
-					// ignore exception
+					rangeFind();
+					
+					nextPing += obstacleNear ? closeWaitNanos : deltaWaitNanos ;
 				}
 				
-				if ( ! pipe.isEmpty() )
+				// Wait for a state change, but only until the next range
+				// finding is due.  A state change is handled right away
+				// instead of after the rest of the wait period.
+				MsgCapsule message = pipe.pollUntil(nextPing);
+				
+				if ( message != null )
 				{
-					// should not wait since Pipe is not Empty.
-					getNextMessage();
+					processMessage( message );
 				}
 			}
 			else
 			{
 				// May wait if there is not a message already in the Pipe.
 				getNextMessage();
+				
+				// Start range finding as soon as the car starts moving.
+				nextPing = System.nanoTime();
 			}
 		}
 	}   // end of loop()
@@ -222,26 +249,41 @@ public class WatchDogController extends Controller
 	private void rangeFind()
 	{
 		// Build MsgCapsule to trigger Range Finding
-		MsgCapsule ping = (MsgCapsule) new RangeMsg(RANGE, ANGLE, ATTEMPTS);
+		RangeMsg   ping = MessageFactory.range(RANGE, ANGLE, ATTEMPTS);
 		
-		try
-		{
-			sonar.put(ping);
-		}
-		catch ( Exception exc )
-		{
-			/** @todo Error handling goes here. */
-		}
+		// A ping that has not been sent by the time the next one is due
+		// is of no use.
+		ping.setTimeToLive(obstacleNear ? closeWait : deltaWait, TimeUnit.MILLISECONDS);
+		
+		// Close to an obstacle, the pings must not wait for the sonar's
+		// share of the link.
+		ping.setSafety(obstacleNear);
+		
+		// The answer is handled when it arrives; pings that fail or are
+		// thrown away leave the current ping rate alone.
+		CommandController.submit(ping).thenAccept(onRange);
 		
 		return;
 	}
 	
+	/**
+	 * Called with the answer to a range finding.  Runs on the Response
+	 * Controller thread.
+	 */
+	private void rangeFound(ArduinoResponse range)
+	{
+		obstacleNear = ( range.getDistance() <= CLOSE_RANGE );
+	}
+	
 	private void processMessage(MsgCapsule msg)
 	{
 		WatchDogMsg message = (WatchDogMsg) msg;
 		
 		isMoving = message.isCarMoving();
 		
+		// The WatchDog Message ends here.
+		message.release();
+		
 		return;
 	}
 
@@ -21,6 +21,14 @@ public class WatchDogMsg extends MsgCapsule
 		isMoving = carIsMoving;
 	}
 	
+	/**
+	 * Used by the MessageFactory to fill in a reused WatchDog Message.
+	 */
+	void setCarMoving(boolean carIsMoving)
+	{
+		isMoving = carIsMoving;
+	}
+	
 	public boolean isCarMoving()
 	{
 		return isMoving;
@@ -3,8 +3,8 @@
  */
 package com.lebruns.steven.robotcar;
 
-import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
 import com.lebruns.steven.robotcar.pipeline.Pipeline;
+import com.lebruns.steven.robotcar.pipeline.PipelineOverflowPolicy;
 
 /**
  * @author Steven F. LeBrun
@@ -18,18 +18,20 @@ public class WatchDogPipe extends Pipeline
 	 */
 	public WatchDogPipe()
 	{
-		return;
+		supportMessages(WatchDogMsg.class);
 	}
 
-	/* (non-Javadoc)
-	 * @see com.lebruns.steven.robotcar.pipeline.Pipeline#is_supported(com.lebruns.steven.robotcar.pipeline.MsgCapsule)
+	/**
+	 * Constructor for a bounded WatchDog Pipe.
+	 * 
+	 * @param capacity The maximum number of messages waiting in the pipe.
+	 * @param overflow What to do when the pipe is full.
 	 */
-	@Override
-	public boolean is_supported(MsgCapsule msg)
+	public WatchDogPipe(int capacity, PipelineOverflowPolicy overflow)
 	{
-		boolean supported = ( msg instanceof WatchDogMsg ) ? true : false ;
+		super(capacity, overflow);
 		
-		return supported;
+		supportMessages(WatchDogMsg.class);
 	}
 
 }   // end of class WatchDogPipe
@@ -0,0 +1,252 @@
+/**
+ *
+ */
+package com.lebruns.steven.robotcar;
+
+import java.util.Arrays;
+
+/**
+ * @author Steven F. LeBrun
+ *
+ * The Wheel State is the Raspberry Pi's model of what the wheels are
+ * doing: the speed of each wheel in the last wheel command sent to the
+ * Arduino and in the last one the Arduino acknowledged.  The speeds are
+ * the ones written in the command, after Motor.convertSpeed().
+ *
+ * The navigators send a Motor Message for every small move of the
+ * driver's finger, and most of them barely change the wheel speeds.  The
+ * Command Controller offers each Motor Message to the Wheel State first
+ * and skips it if no wheel would change by more than the deadband, which
+ * leaves the serial link free for range finding.  A command is always sent
+ * when it:
+ *   -- starts or stops a wheel, so stopping the car is never skipped,
+ *   -- reverses a wheel,
+ *   -- follows a wheel command that failed or was not answered, since the
+ *      wheels are then not known to be doing what was last sent.
+ *
+ * The Command Controller reports what it sends and the Response
+ * Controller what is acknowledged.  Instances are thread-safe.
+ */
+public class WheelState
+{
+	/**
+	 * The largest change in a wheel speed, out of 255, that is not worth
+	 * sending.
+	 */
+	static public final int DEFAULT_DEADBAND = 5;
+
+	static private final Wheels[] WHEELS = Wheels.values();
+
+	private final int[] sent    = new int[WHEELS.length];
+	private final int[] acked   = new int[WHEELS.length];
+	private final int[] offered = new int[WHEELS.length];
+	private final int[] wanted  = new int[WHEELS.length];
+
+	private int     deadband = DEFAULT_DEADBAND;
+
+	/**
+	 * Set when the next wheel command must be sent whatever it is.
+	 */
+	private boolean resync   = true;
+
+	private volatile long offers  = 0;
+	private volatile long skipped = 0;
+
+	/**
+	 * Constructor for a Wheel State with the default deadband.
+	 */
+	public WheelState()
+	{
+		this( DEFAULT_DEADBAND );
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param deadband The largest change in a wheel speed that is skipped.
+	 *                 Zero skips only commands that change nothing.
+	 */
+	public WheelState( int deadband )
+	{
+		setDeadband( deadband );
+	}
+
+	public synchronized void setDeadband( int deadband )
+	{
+		this.deadband = Math.max( 0, deadband );
+	}
+
+	public synchronized int getDeadband()
+	{
+		return deadband;
+	}
+
+	/**
+	 * Decides whether a command is worth sending.  A Motor Message that is
+	 * sent is recorded as the last wheel command sent.  Other commands,
+	 * emergency stops included, are always sent.
+	 *
+	 * @param command A command about to be sent.
+	 *
+	 * @return Returns false if the command should be skipped.
+	 */
+	public synchronized boolean offer( CommandMsg command )
+	{
+		if ( !(command instanceof MotorMsg) )
+		{
+			speedsOf(command, sent);
+			return true;
+		}
+
+		speedsOf(command, offered);
+
+		++offers;
+
+		if ( resync || changed(offered, sent) )
+		{
+			System.arraycopy(offered, 0, sent, 0, sent.length);
+			resync = false;
+
+			return true;
+		}
+
+		++skipped;
+
+		return false;
+	}
+
+	/**
+	 * Records a command sent without being offered, such as a
+	 * retransmission.  Commands that do not set the wheels are ignored.
+	 */
+	public synchronized void sent( CommandMsg command )
+	{
+		speedsOf(command, sent);
+	}
+
+	/**
+	 * Records the command the Arduino acknowledged.  Commands that do not
+	 * set the wheels are ignored.
+	 */
+	public synchronized void acked( CommandMsg command )
+	{
+		speedsOf(command, acked);
+	}
+
+	/**
+	 * Records that a wheel command failed or was not answered.  The wheels
+	 * are assumed to be as last acknowledged, and the next wheel command is
+	 * sent whatever it is.
+	 */
+	public synchronized void failed()
+	{
+		System.arraycopy(acked, 0, sent, 0, sent.length);
+		resync = true;
+	}
+
+	/**
+	 * Determines whether the wheels, as last acknowledged, already do what
+	 * a command asks for, to within the deadband.  Used to notice a wheel
+	 * command that was lost after it was sent.
+	 *
+	 * @return Returns false if a wheel would start, stop, reverse or change
+	 *         speed by more than the deadband, or if the wheels are not
+	 *         known to be doing what was last sent.
+	 */
+	public synchronized boolean settled( CommandMsg command )
+	{
+		if ( resync )
+		{
+			return false;
+		}
+
+		if ( !speedsOf(command, wanted) )
+		{
+			return true;
+		}
+
+		return !changed(wanted, acked);
+	}
+
+	/**
+	 * @return Returns the number of Motor Messages offered.
+	 */
+	public long getOfferedCount()
+	{
+		return offers;
+	}
+
+	public long getSkippedCount()
+	{
+		return skipped;
+	}
+
+	/**
+	 * @return Returns the fraction of the Motor Messages offered that were
+	 *         skipped.
+	 */
+	public double getSkipRatio()
+	{
+		long total = offers;
+
+		return ( total == 0 ) ? 0.0 : (double) skipped / total ;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("deadband=%d offered=%d skipped=%d (%.1f%%) sent=%s acked=%s",
+				deadband, offers, skipped, 100.0 * getSkipRatio(),
+				Arrays.toString(sent), Arrays.toString(acked));
+	}
+
+	/**
+	 * Fills in the wheel speeds a command sets.
+	 *
+	 * @return Returns false if the command does not set the wheels.
+	 */
+	static private boolean speedsOf( CommandMsg command, int[] speeds )
+	{
+		if ( command.getArduinoCmdType() == ArduinoCmdType.StopWheels )
+		{
+			Arrays.fill(speeds, 0);
+			return true;
+		}
+
+		if ( !(command instanceof MotorMsg) )
+		{
+			return false;
+		}
+
+		MotorMsg motor = (MotorMsg) command;
+
+		for ( Wheels wheel : WHEELS )
+		{
+			speeds[wheel.ordinal()] = motor.getWheelSpeed(wheel);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Returns true if any wheel starts, stops, reverses or changes
+	 *         speed by more than the deadband from the last speeds given.
+	 */
+	private boolean changed( int[] speeds, int[] lastSpeeds )
+	{
+		for ( int i = 0 ; i < speeds.length ; ++i )
+		{
+			int now  = speeds[i];
+			int last = lastSpeeds[i];
+
+			if ( (now == 0) != (last == 0) || (now < 0) != (last < 0) ||
+					Math.abs(now - last) > deadband )
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+}   // end of class WheelState
@@ -22,9 +22,6 @@ import javax.microedition.io.Connector;
 import javax.microedition.io.StreamConnection;
 import javax.microedition.io.StreamConnectionNotifier;
 
-import com.lebruns.steven.robotcar.pipeline.MsgCapsule;
-import com.lebruns.steven.robotcar.pipeline.PipelineIllegalParameterException;
-
 /**
  * @author Steven F. LeBrun
  * 
@@ -315,17 +312,8 @@ public class WheelTestController extends Controller
 
 	private void stopCar()
 	{
-		MsgCapsule message = new MotorMsg(0);
+		DriveTicker.getInstance().stop();
 		
-		try
-		{
-			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(message);
-			
-		} catch (PipelineIllegalParameterException exc)
-		{
-			// TODO Auto-generated catch block
-			
-		}
 	}   // end of stopCar()
 	
 	private void moveCar( double xpos, double ypos )
@@ -350,15 +338,13 @@ public class WheelTestController extends Controller
 		
 		System.out.println(String.format("Wheel Speed @ %d", speed));
 		
-		MsgCapsule message = new MotorMsg( speed );
-		MsgCapsule stopMsg = new MotorMsg(0);
-
+		DriveTicker drive = DriveTicker.getInstance();
 		
 		try
 		{
-			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(message);
+			drive.setSpeed( speed );
 			TimeUnit.SECONDS.sleep(1);	
-			PipeWork.getInstance().getPipeline(PipeSink.COMMAND_SINK).put(stopMsg);
+			drive.stop();
 		} 
 		catch ( Exception exc )
 		{